@@ -40,6 +40,11 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return builder.toString();
     }
 
+    @Override
+    public String visitImportStmt(Stmt.Import stmt) {
+        return "Import " + stmt.path.lexeme;
+    }
+
     @Override
     public String visitPrintStmt(Stmt.Print stmt) {
         return "PrintStmt " + stmt.expression.accept(this);
@@ -0,0 +1,229 @@
+package com.zhsu.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+// Runs a few workloads on the Interpreter, the ClosureCompiler, the stack VM
+// and the RegisterVM and prints the time each took, the bytes it allocated
+// on its thread and, for the VMs, the instructions it ran. The Interpreter
+// runs with its JIT off, since what is compared is how each engine represents values and
+// code. Then does the same for scanning and parsing a generated script of
+// several megabytes, and times loading a program of many such files on one
+// thread and on every core. Run with
+// "mvn exec:java -Dexec.mainClass=com.zhsu.lox.Benchmark".
+class Benchmark {
+
+    private static final Map<String, String> WORKLOADS = new LinkedHashMap<>();
+
+    static {
+        WORKLOADS.put("fib", """
+                fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+                print fib(27);
+                """);
+        WORKLOADS.put("numeric", """
+                var total = 0;
+                for (var i = 0; i < 3000000; i = i + 1) {
+                  if (i / 3 > 1000) total = total + i * 0.5; else total = total - 1;
+                }
+                print total;
+                """);
+        WORKLOADS.put("closures", """
+                fun counter() {
+                  var count = 0;
+                  fun next() { count = count + 1; return count; }
+                  return next;
+                }
+                var next = counter();
+                var sum = 0;
+                for (var i = 0; i < 1000000; i = i + 1) sum = sum + next();
+                print sum;
+                """);
+        WORKLOADS.put("objects", """
+                class Point {
+                  init(x, y) { this.x = x; this.y = y; }
+                  add(other) { return Point(this.x + other.x, this.y + other.y); }
+                }
+                var p = Point(0, 0);
+                var step = Point(1, 2);
+                for (var i = 0; i < 500000; i = i + 1) p = p.add(step);
+                print p.x + p.y;
+                """);
+        WORKLOADS.put("strings", """
+                var s = "";
+                for (var i = 0; i < 2000; i = i + 1) s = s + "ab";
+                print s == s + "";
+                """);
+    }
+
+    private enum Engine {
+        TREE,
+        CLOSURE,
+        VM,
+        REGISTER
+    }
+
+    private static final int RUNS = 5;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int MODULES = 200;
+
+    public static void main(String[] args) throws IOException {
+        Jit.threshold = Integer.MAX_VALUE;
+        Jit.backEdgeThreshold = Integer.MAX_VALUE;
+
+        System.out.printf("%-10s %-9s %10s %14s %14s%n",
+                "workload", "engine", "ms", "allocated", "instructions");
+        for (Map.Entry<String, String> workload : WORKLOADS.entrySet()) {
+            for (Engine engine : Engine.values()) {
+                // The fastest of a few runs, so the JVM's own warm-up does
+                // not count; counting instructions slows a VM down, so it
+                // gets a run of its own.
+                long[] result = run(engine, workload.getValue(), false);
+                for (int i = 0; i < RUNS - 1; i++) {
+                    long[] next = run(engine, workload.getValue(), false);
+                    if (next[0] < result[0]) {
+                        result = next;
+                    }
+                }
+                long instructions = run(engine, workload.getValue(), true)[2];
+                System.out.printf("%-10s %-9s %10d %14d %14s%n",
+                        workload.getKey(), engine.name().toLowerCase(), result[0],
+                        result[1], engine == Engine.TREE || engine == Engine.CLOSURE ? "-"
+                                : Long.toString(instructions));
+            }
+        }
+
+        String script = generatedScript(8 << 20);
+        System.out.printf("%n%-20s %10s %14s%n", "front end, " + (script.length() >> 20) + " MB",
+                "ms", "allocated");
+        frontEnd("scan", () -> new Scanner(script).scan());
+        TokenBuffer tokens = new Scanner(script).scan();
+        frontEnd("parse", () -> new Parser(tokens).parse());
+        frontEnd("scan and parse", () -> new Parser(new Scanner(script).scan()).parse());
+
+        Path directory = Files.createTempDirectory("lox-modules");
+        StringBuilder imports = new StringBuilder();
+        String module = generatedScript(64 << 10);
+        for (int i = 0; i < MODULES; i++) {
+            Path file = directory.resolve("module" + i + ".lox");
+            Files.writeString(file, module);
+            file.toFile().deleteOnExit();
+            imports.append("import \"module").append(i).append(".lox\";\n");
+        }
+        directory.toFile().deleteOnExit();
+        List<Stmt> main = new Parser(new Scanner(imports.toString()).scan()).parse();
+        System.out.printf("%n%-20s %10s%n", MODULES + " modules, " + (module.length() >> 10) + " KB",
+                "ms");
+        // One untimed load first, so the single-thread row is not the one
+        // that pays for loading and compiling the front end.
+        ForkJoinPool warmUp = new ForkJoinPool(1);
+        new ModuleLoader(warmUp).load(main, directory);
+        warmUp.shutdown();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] counts = cores == 1 ? new int[] {1} : new int[] {1, cores};
+        for (int threads : counts) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                new ModuleLoader(pool).load(main, directory);
+                best = Math.min(best, (System.nanoTime() - start) / 1_000_000);
+            }
+            pool.shutdown();
+            System.out.printf("%-20s %10d%n", "load, " + threads + " threads", best);
+        }
+    }
+
+    // Declarations, statements and expressions of every kind, repeated
+    // with fresh names until there are about size characters.
+    static String generatedScript(int size) {
+        StringBuilder script = new StringBuilder(size + 1024);
+        for (int i = 0; script.length() < size; i++) {
+            script.append("class Shape").append(i).append(" {\n")
+                    .append("  init(w, h) { this.w = w; this.h = h; }\n")
+                    .append("  area { return this.w * this.h; }\n")
+                    .append("  scaled(k) { return Shape").append(i)
+                    .append("(this.w * k, this.h * k); }\n")
+                    .append("}\n")
+                    .append("fun compute").append(i).append("(n) {\n")
+                    .append("  var total = 0;\n")
+                    .append("  for (var j = 0; j < n; j = j + 1) {\n")
+                    .append("    if (j > 2 and j != 7 or !(j <= 1)) total = total + j / 2;\n")
+                    .append("    else total = total - 1;\n")
+                    .append("  }\n")
+                    .append("  var label = total > 10 ? \"big\" : \"small\";\n")
+                    .append("  var twice = fun (x) { return x * 2; };\n")
+                    .append("  return twice(total), label;\n")
+                    .append("}\n")
+                    .append("var value").append(i).append(" = compute").append(i)
+                    .append("(").append(i % 100).append(".5);\n");
+        }
+        return script.toString();
+    }
+
+    private static void frontEnd(String name, Runnable work) {
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            work.run();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            if (millis < best) {
+                best = millis;
+                allocated = threads.getThreadAllocatedBytes(thread) - before;
+            }
+        }
+        System.out.printf("%-20s %10d %14d%n", name, best, allocated);
+    }
+
+    // Returns the milliseconds, allocated bytes and instructions of a run.
+    private static long[] run(Engine engine, String source, boolean counting) {
+        List<Stmt> statements = new Parser(new Scanner(source).scan()).parse();
+        new Resolver().resolve(statements);
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long instructions = 0;
+        try {
+            switch (engine) {
+                case TREE -> new Interpreter().interpret(statements);
+                case CLOSURE -> {
+                    Interpreter interpreter = new Interpreter();
+                    interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+                }
+                case VM -> {
+                    VM vm = new VM();
+                    vm.countInstructions = counting;
+                    vm.interpret(new Compiler().compile(statements));
+                    instructions = vm.instructionCount;
+                }
+                case REGISTER -> {
+                    RegisterVM vm = new RegisterVM();
+                    vm.countInstructions = counting;
+                    vm.interpret(new RegisterCompiler(vm).compile(statements));
+                    instructions = vm.instructionCount;
+                }
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        return new long[] {millis, threads.getThreadAllocatedBytes(thread) - allocated,
+                instructions};
+    }
+}
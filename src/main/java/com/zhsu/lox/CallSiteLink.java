@@ -0,0 +1,297 @@
+package com.zhsu.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+// The linkage of one Expr.Call when calls are linked (--link-calls). The
+// site starts out pointing at relink(), which checks the callee the way
+// Interpreter.callable() does and then points the site straight at that
+// callee's entry point, behind an identity check. Until a different callee
+// shows up, calls skip the callable and arity checks altogether, and code
+// the Jit compiles holds the site as a constant the JVM can inline through.
+//
+// A site's type is (Object callee, LoxInstance receiver, Interpreter,
+// arguments...)Object, the arguments passed one by one up to four and as
+// an Object[] beyond that.
+final class CallSiteLink extends MutableCallSite {
+
+    static boolean enabled = false;
+
+    // Sites that keep seeing new callees stop relinking and just check
+    // every call: their target is set to the megamorphic entry for their
+    // arity once, and never changes again.
+    private static final int MAX_RELINKS = 8;
+
+    private static final int MAX_FIXED_ARITY = 4;
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle IS_TARGET;
+    // By argument count: LoxFunction.invokeN, LoxCallable.callN and
+    // Jit.Code.runN; the last entry takes an Object[].
+    private static final MethodHandle[] INVOKE = new MethodHandle[MAX_FIXED_ARITY + 2];
+    private static final MethodHandle[] CALL = new MethodHandle[MAX_FIXED_ARITY + 2];
+    private static final MethodHandle[] RUN = new MethodHandle[MAX_FIXED_ARITY + 2];
+    // By argument count: the megamorphicN methods below, taking the site's
+    // Expr.Call ahead of the site's own parameters.
+    private static final MethodHandle[] MEGAMORPHIC = new MethodHandle[MAX_FIXED_ARITY + 2];
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            RELINK = lookup.findVirtual(CallSiteLink.class, "relink",
+                    MethodType.methodType(Object.class, Object.class, LoxInstance.class,
+                            Interpreter.class, Object[].class));
+            IS_TARGET = lookup.findStatic(CallSiteLink.class, "isTarget",
+                    MethodType.methodType(boolean.class, Object.class, Object.class));
+            for (int count = 0; count < INVOKE.length; count++) {
+                String suffix = count <= MAX_FIXED_ARITY ? String.valueOf(count) : "";
+                MethodType arguments = count <= MAX_FIXED_ARITY
+                        ? MethodType.genericMethodType(count)
+                        : MethodType.methodType(Object.class, Object[].class);
+                INVOKE[count] = lookup.findVirtual(LoxFunction.class, "invoke" + suffix,
+                        arguments.insertParameterTypes(0, Interpreter.class, LoxInstance.class));
+                CALL[count] = lookup.findVirtual(LoxCallable.class, "call" + suffix,
+                        arguments.insertParameterTypes(0, Interpreter.class));
+                RUN[count] = lookup.findVirtual(Jit.Code.class, "run" + suffix,
+                        arguments.insertParameterTypes(0, Interpreter.class, Cell[].class,
+                                LoxInstance.class));
+                MEGAMORPHIC[count] = lookup.findStatic(CallSiteLink.class,
+                        "megamorphic" + suffix,
+                        type(count).insertParameterTypes(0, Expr.Call.class));
+            }
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    // Links to interpreted functions are made under this; the Jit turns it
+    // off whenever it installs compiled code, so those sites relink to it.
+    private static volatile SwitchPoint interpreted = new SwitchPoint();
+
+    private final Expr.Call call;
+    private final int argCount;
+    private final MethodHandle relink;
+    // The site's target, called through; constant for compiled code.
+    final MethodHandle invoker;
+    private Object linked = null;
+    private int relinks = 0;
+
+    CallSiteLink(Expr.Call call) {
+        super(type(call.arguments.size()));
+        this.call = call;
+        this.argCount = call.arguments.size();
+        MethodHandle fallback = RELINK.bindTo(this);
+        if (argCount <= MAX_FIXED_ARITY) {
+            fallback = fallback.asCollector(Object[].class, argCount);
+        }
+        this.relink = fallback;
+        setTarget(relink);
+        this.invoker = dynamicInvoker();
+    }
+
+    static MethodType type(int argCount) {
+        MethodType arguments = argCount <= MAX_FIXED_ARITY
+                ? MethodType.genericMethodType(argCount)
+                : MethodType.methodType(Object.class, Object[].class);
+        return arguments.insertParameterTypes(0, Object.class, LoxInstance.class,
+                Interpreter.class);
+    }
+
+    static void compiledCodeInstalled() {
+        SwitchPoint previous = interpreted;
+        interpreted = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[] { previous });
+    }
+
+    private static boolean isTarget(Object target, Object callee) {
+        return target == callee;
+    }
+
+    private Object relink(Object callee, LoxInstance receiver, Interpreter interpreter,
+            Object[] arguments) {
+        LoxCallable function = Interpreter.callable(call, callee, argCount);
+        if (callee != linked) {
+            relinks++;
+            linked = callee;
+        }
+        if (relinks <= MAX_RELINKS) {
+            MethodHandle direct = direct(function);
+            MethodHandle test = IS_TARGET.bindTo(callee);
+            setTarget(MethodHandles.guardWithTest(test, direct, relink));
+        } else {
+            // Nothing falls back to relink() from here on.
+            setTarget(MEGAMORPHIC[Math.min(argCount, MAX_FIXED_ARITY + 1)].bindTo(call));
+        }
+
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke(interpreter, receiver, arguments);
+        }
+        return function.call(interpreter, arguments);
+    }
+
+    // The targets of megamorphic sites: the Interpreter's own checks and
+    // entry points, with the arguments passed as they come.
+
+    private static Object megamorphic0(Expr.Call call, Object callee, LoxInstance receiver,
+            Interpreter interpreter) {
+        LoxCallable function = Interpreter.callable(call, callee, 0);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke0(interpreter, receiver);
+        }
+        return function.call0(interpreter);
+    }
+
+    private static Object megamorphic1(Expr.Call call, Object callee, LoxInstance receiver,
+            Interpreter interpreter, Object a0) {
+        LoxCallable function = Interpreter.callable(call, callee, 1);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke1(interpreter, receiver, a0);
+        }
+        return function.call1(interpreter, a0);
+    }
+
+    private static Object megamorphic2(Expr.Call call, Object callee, LoxInstance receiver,
+            Interpreter interpreter, Object a0, Object a1) {
+        LoxCallable function = Interpreter.callable(call, callee, 2);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke2(interpreter, receiver, a0, a1);
+        }
+        return function.call2(interpreter, a0, a1);
+    }
+
+    private static Object megamorphic3(Expr.Call call, Object callee, LoxInstance receiver,
+            Interpreter interpreter, Object a0, Object a1, Object a2) {
+        LoxCallable function = Interpreter.callable(call, callee, 3);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke3(interpreter, receiver, a0, a1, a2);
+        }
+        return function.call3(interpreter, a0, a1, a2);
+    }
+
+    private static Object megamorphic4(Expr.Call call, Object callee, LoxInstance receiver,
+            Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        LoxCallable function = Interpreter.callable(call, callee, 4);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke4(interpreter, receiver, a0, a1, a2, a3);
+        }
+        return function.call4(interpreter, a0, a1, a2, a3);
+    }
+
+    private static Object megamorphic(Expr.Call call, Object callee, LoxInstance receiver,
+            Interpreter interpreter, Object[] arguments) {
+        LoxCallable function = Interpreter.callable(call, callee, arguments.length);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke(interpreter, receiver, arguments);
+        }
+        return function.call(interpreter, arguments);
+    }
+
+    // Calls function with the site's type, the callee argument ignored.
+    private MethodHandle direct(LoxCallable function) {
+        int index = Math.min(argCount, MAX_FIXED_ARITY + 1);
+        if (!(function instanceof LoxFunction)) {
+            MethodHandle target = CALL[index].bindTo(function);
+            return MethodHandles.dropArguments(target, 0, Object.class, LoxInstance.class);
+        }
+
+        LoxFunction lox = (LoxFunction) function;
+        Jit.Code compiled = lox.compiled();
+        MethodHandle target;
+        if (compiled != null && !lox.isInitializer()) {
+            // (Interpreter, LoxInstance, arguments) like invokeN.
+            target = MethodHandles.insertArguments(RUN[index].bindTo(compiled), 1,
+                    (Object) lox.upvalues());
+        } else {
+            target = INVOKE[index].bindTo(lox);
+        }
+        if (!lox.isUnbound()) {
+            // Already bound or not a method at all: "this" is its own.
+            target = MethodHandles.insertArguments(target, 1, lox.receiver());
+            target = MethodHandles.dropArguments(target, 0, Object.class, LoxInstance.class);
+        } else {
+            // Takes the receiver from the site, which has it before the
+            // interpreter.
+            target = MethodHandles.dropArguments(target, 0, Object.class);
+            int[] order = new int[target.type().parameterCount()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            order[1] = 2;
+            order[2] = 1;
+            target = MethodHandles.permuteArguments(target, type(), order);
+        }
+        if (compiled == null) {
+            target = interpreted.guardWithTest(target, relink);
+        }
+        return target;
+    }
+
+    // Calls through the site; invokeExact needs the exact static types.
+
+    Object call0(Object callee, LoxInstance receiver, Interpreter interpreter) {
+        try {
+            return (Object) invoker.invokeExact(callee, receiver, interpreter);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    Object call1(Object callee, LoxInstance receiver, Interpreter interpreter, Object a0) {
+        try {
+            return (Object) invoker.invokeExact(callee, receiver, interpreter, a0);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    Object call2(Object callee, LoxInstance receiver, Interpreter interpreter, Object a0,
+            Object a1) {
+        try {
+            return (Object) invoker.invokeExact(callee, receiver, interpreter, a0, a1);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    Object call3(Object callee, LoxInstance receiver, Interpreter interpreter, Object a0,
+            Object a1, Object a2) {
+        try {
+            return (Object) invoker.invokeExact(callee, receiver, interpreter, a0, a1, a2);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    Object call4(Object callee, LoxInstance receiver, Interpreter interpreter, Object a0,
+            Object a1, Object a2, Object a3) {
+        try {
+            return (Object) invoker.invokeExact(callee, receiver, interpreter, a0, a1, a2, a3);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    Object call(Object callee, LoxInstance receiver, Interpreter interpreter,
+            Object[] arguments) {
+        try {
+            return (Object) invoker.invokeExact(callee, receiver, interpreter, arguments);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+}
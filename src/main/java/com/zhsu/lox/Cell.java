@@ -0,0 +1,16 @@
+package com.zhsu.lox;
+
+// A box for a local variable that some closure captures. The frame slot
+// holds the Cell instead of the value, and each closure referencing the
+// variable holds the same Cell, so both see every assignment.
+final class Cell {
+
+    Object value;
+
+    Cell() {
+    }
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
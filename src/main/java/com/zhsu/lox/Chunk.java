@@ -0,0 +1,52 @@
+package com.zhsu.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class Chunk {
+
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    // The receiver shape of the GET_FIELD_SLOT_n each was quickened into,
+    // by the offset of the instruction.
+    Shape[] shapes = new Shape[64];
+
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+
+    // Numbers and strings are interned so that repeated names and literals
+    // share one pool entry.
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+            shapes = Arrays.copyOf(shapes, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        boolean internable = value instanceof String || value instanceof Double;
+        if (internable) {
+            Integer index = constantIndex.get(value);
+            if (index != null) {
+                return index;
+            }
+        }
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (internable) {
+            constantIndex.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+}
@@ -0,0 +1,513 @@
+package com.zhsu.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes just as much of the class file format as the Jit needs: one public
+// class with fields and methods, whose code is assembled through Code.
+// The files use version 49, which predates stack map frames, so the JVM
+// checks them with its inferring verifier and none have to be computed.
+final class ClassWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int DUP2 = 0x5c;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int ARRAYLENGTH = 0xbe;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Thrown when generated code outgrows what this writer can encode;
+    // callers treat it like any other construct they cannot compile.
+    static final class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolEntries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassWriter(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor) {
+        return new Code(access, name, descriptor);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    // The constant pool. Each entry is written once and then found again
+    // by its key.
+
+    private int entry(String key, int tag, int... operands) {
+        Integer index = poolEntries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            for (int operand : operands) {
+                poolOut.writeShort(operand);
+            }
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        return added(key);
+    }
+
+    private int added(String key) {
+        if (poolCount == 0xffff) {
+            throw new TooLarge("Too many constants.");
+        }
+        poolEntries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolEntries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(value);
+        } catch (IOException error) {
+            throw new TooLarge("Constant too long.");
+        }
+        return added(key);
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer index = poolEntries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(CONSTANT_INTEGER);
+            poolOut.writeInt(value);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        return added(key);
+    }
+
+    int number(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolEntries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(CONSTANT_DOUBLE);
+            poolOut.writeDouble(value);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        index = added(key);
+        // A double takes up two entries.
+        added("-" + key);
+        return index;
+    }
+
+    int classRef(String name) {
+        return entry("C" + name, CONSTANT_CLASS, utf8(name));
+    }
+
+    int string(String value) {
+        return entry("S" + value, CONSTANT_STRING, utf8(value));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + " " + descriptor, CONSTANT_NAME_AND_TYPE,
+                utf8(name), utf8(descriptor));
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        return entry(tag + owner + "." + name + " " + descriptor, tag,
+                classRef(owner), nameAndType(name, descriptor));
+    }
+
+    // A jump target inside one method.
+    static final class Label {
+        private int position = -1;
+        // Stack depth on arrival, once some jump has been seen.
+        private int stack = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    // The code of one method. Every emit method keeps track of the operand
+    // stack depth so max_stack comes out right.
+    final class Code {
+
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        private final List<Label> labels = new ArrayList<>();
+        // start, end, handler for each range that catches anything thrown.
+        private final List<Label[]> handlers = new ArrayList<>();
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = ((access & ACC_STATIC) != 0 ? 0 : 1) + argumentSlots(descriptor);
+        }
+
+        private void u1(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        // An instruction without operands, and its effect on the stack.
+        void op(int opcode, int delta) {
+            u1(opcode);
+            adjust(delta);
+        }
+
+        void aload(int local) {
+            local(ALOAD, local, 1);
+            adjust(1);
+        }
+
+        void astore(int local) {
+            local(ASTORE, local, 1);
+            adjust(-1);
+        }
+
+        void iload(int local) {
+            local(ILOAD, local, 1);
+            adjust(1);
+        }
+
+        void istore(int local) {
+            local(ISTORE, local, 1);
+            adjust(-1);
+        }
+
+        // A double takes local and the one after it.
+        void dload(int local) {
+            local(DLOAD, local, 2);
+            adjust(2);
+        }
+
+        void dstore(int local) {
+            local(DSTORE, local, 2);
+            adjust(-2);
+        }
+
+        private void local(int opcode, int local, int size) {
+            if (local + size > 0x100) {
+                throw new TooLarge("Too many locals.");
+            }
+            u1(opcode);
+            u1(local);
+            if (local + size > maxLocals) {
+                maxLocals = local + size;
+            }
+        }
+
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(integer(value));
+            }
+            adjust(1);
+        }
+
+        void ldc(String value) {
+            u1(LDC_W);
+            u2(string(value));
+            adjust(1);
+        }
+
+        void ldc(double value) {
+            u1(LDC2_W);
+            u2(number(value));
+            adjust(2);
+        }
+
+        void type(int opcode, String className) {
+            u1(opcode);
+            u2(classRef(className));
+        }
+
+        void field(int opcode, String owner, String fieldName, String fieldDescriptor) {
+            u1(opcode);
+            u2(member(CONSTANT_FIELDREF, owner, fieldName, fieldDescriptor));
+            int size = slots(fieldDescriptor.charAt(0));
+            switch (opcode) {
+                case GETSTATIC -> adjust(size);
+                case PUTSTATIC -> adjust(-size);
+                case GETFIELD -> adjust(size - 1);
+                default -> adjust(-size - 1);
+            }
+        }
+
+        void invoke(int opcode, String owner, String methodName, String methodDescriptor) {
+            boolean isInterface = opcode == INVOKEINTERFACE;
+            u1(opcode);
+            u2(member(isInterface ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF,
+                    owner, methodName, methodDescriptor));
+            int arguments = argumentSlots(methodDescriptor);
+            if (isInterface) {
+                u1(arguments + 1);
+                u1(0);
+            }
+            int receiver = opcode == INVOKESTATIC ? 0 : 1;
+            char result = methodDescriptor.charAt(methodDescriptor.indexOf(')') + 1);
+            adjust(-arguments - receiver + (result == 'V' ? 0 : slots(result)));
+        }
+
+        void jump(int opcode, Label target) {
+            switch (opcode) {
+                case GOTO -> adjust(0);
+                case IF_ICMPNE, IF_ACMPNE -> adjust(-2);
+                default -> adjust(-1);
+            }
+            target.stack = stack;
+            target.fixups.add(length);
+            u1(opcode);
+            u2(0);
+            if (!labels.contains(target)) {
+                labels.add(target);
+            }
+        }
+
+        // Places label here. Code after an unconditional jump is reached
+        // only through its labels, so it starts from their stack depth.
+        void mark(Label label) {
+            label.position = length;
+            if (label.stack != -1) {
+                stack = label.stack;
+            }
+            if (!labels.contains(label)) {
+                labels.add(label);
+            }
+        }
+
+        // After areturn or goto nothing is on the stack until a label says
+        // otherwise.
+        void unreachable() {
+            stack = 0;
+        }
+
+        // Sends anything thrown between start and end to handler, which
+        // starts with it on the stack. Each label must be marked.
+        void handler(Label start, Label end, Label handler) {
+            handler.stack = 1;
+            handlers.add(new Label[] { start, end, handler });
+        }
+
+        void end() {
+            for (Label label : labels) {
+                for (int site : label.fixups) {
+                    int offset = label.position - site;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new TooLarge("Jump too far.");
+                    }
+                    code[site + 1] = (byte) (offset >> 8);
+                    code[site + 2] = (byte) offset;
+                }
+            }
+            if (length > 0xffff) {
+                throw new TooLarge("Method too large.");
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + length + 8 * handlers.size());
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(handlers.size());
+                for (Label[] handler : handlers) {
+                    out.writeShort(handler[0].position);
+                    out.writeShort(handler[1].position);
+                    out.writeShort(handler[2].position);
+                    out.writeShort(0);
+                }
+                out.writeShort(0);
+            } catch (IOException error) {
+                throw new AssertionError(error);
+            }
+            methods.add(bytes.toByteArray());
+        }
+    }
+
+    private static int slots(char type) {
+        return type == 'J' || type == 'D' ? 2 : 1;
+    }
+
+    private static int argumentSlots(String descriptor) {
+        int count = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char type = descriptor.charAt(i);
+            while (type == '[') {
+                type = descriptor.charAt(++i);
+            }
+            if (type == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            // An array takes one slot whatever its element type.
+            count += descriptor.charAt(i - 1) == '[' || type == 'L' ? 1 : slots(type);
+            i++;
+        }
+        return count;
+    }
+}
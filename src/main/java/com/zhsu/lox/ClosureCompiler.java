@@ -0,0 +1,888 @@
+package com.zhsu.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Turns a resolved program into a tree of Java closures before running it.
+// What the tree-walker works out on every visit - the kind of node, the
+// operator, where a variable lives, the value of a literal - is settled
+// once here, so running the program is only calling closures.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Evaluator>,
+        Stmt.Visitor<ClosureCompiler.Executor> {
+
+    // A compiled expression. frame is the running function's frame, or null
+    // at the top level; upvalues are the Cells the function captured.
+    interface Evaluator {
+        Object evaluate(Environment frame, Cell[] upvalues);
+    }
+
+    // A compiled statement. It completes the way the Interpreter's visitors
+    // do, leaving a returned value in the runtime's returnValue.
+    interface Executor {
+        Return execute(Environment frame, Cell[] upvalues);
+    }
+
+    // Calls callee with a call's arguments; there is one for each small
+    // argument count, so those calls need no argument array.
+    private interface Invoker {
+        Object invoke(Object callee, LoxInstance receiver, Environment frame, Cell[] upvalues);
+    }
+
+    // Holds the globals and the return value, and is what compiled code
+    // passes to the LoxCallables it calls.
+    private final Interpreter runtime;
+    // The namespace of the code being compiled: the runtime's globals, or
+    // those of a module.
+    private final Environment globals;
+
+    ClosureCompiler(Interpreter runtime) {
+        this(runtime, runtime.globals);
+    }
+
+    ClosureCompiler(Interpreter runtime, Environment globals) {
+        this.runtime = runtime;
+        this.globals = globals;
+    }
+
+    Executor compile(List<Stmt> statements) {
+        return sequence(statements);
+    }
+
+    private Evaluator compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Executor compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Executor sequence(List<Stmt> statements) {
+        Executor[] executors = new Executor[statements.size()];
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = compile(statements.get(i));
+        }
+        if (executors.length == 1) {
+            return executors[0];
+        }
+        return (frame, upvalues) -> {
+            for (Executor executor : executors) {
+                Return completion = executor.execute(frame, upvalues);
+                if (completion != null) {
+                    return completion;
+                }
+            }
+            return null;
+        };
+    }
+
+    // The Cells a new closure captures, in the order the Resolver listed.
+    private static Cell[] capture(int[] captures, Environment frame, Cell[] upvalues) {
+        Cell[] cells = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int source = captures[i];
+            cells[i] = source >= 0 ? frame.cell(source) : upvalues[-1 - source];
+        }
+        return cells;
+    }
+
+    // Functions and classes are declared rarely enough to decide where
+    // they go when they run; see Interpreter.predeclare.
+    private static void predeclare(Environment frame, int slot, boolean boxed) {
+        if (boxed) {
+            frame.define(slot, new Cell());
+        }
+    }
+
+    private void declare(Environment frame, int slot, boolean boxed, Token name, Object value) {
+        if (slot == -1) {
+            globals.define(name.lexeme, value);
+        } else if (boxed) {
+            frame.cell(slot).value = value;
+        } else {
+            frame.define(slot, value);
+        }
+    }
+
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        Executor body = sequence(stmt.statements);
+        // Only top-level blocks own a frame; others use their function's.
+        if (stmt.slotCount > 0) {
+            int slotCount = stmt.slotCount;
+            return (frame, upvalues) -> body.execute(new Environment(slotCount), upvalues);
+        }
+        return body;
+    }
+
+    @Override
+    public Executor visitClassStmt(Stmt.Class stmt) {
+        Evaluator superclassExpr = stmt.superclass != null ? compile(stmt.superclass) : null;
+        Executor[] methods = new Executor[stmt.methods.size()];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = sequence(stmt.methods.get(i).body);
+        }
+        Executor[] staticMethods = new Executor[stmt.staticMethods.size()];
+        for (int i = 0; i < staticMethods.length; i++) {
+            staticMethods[i] = sequence(stmt.staticMethods.get(i).body);
+        }
+
+        return (frame, upvalues) -> {
+            Object superclass = null;
+            if (superclassExpr != null) {
+                superclass = superclassExpr.evaluate(frame, upvalues);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.superclass.name,
+                            "Superclass must be a class.");
+                }
+            }
+
+            predeclare(frame, stmt.slot, stmt.boxed);
+            declare(frame, stmt.slot, stmt.boxed, stmt.name, null);
+
+            Environment scope = stmt.slotCount > 0 ? new Environment(stmt.slotCount) : frame;
+            if (stmt.superSlot != -1) {
+                scope.define(stmt.superSlot, new Cell(superclass));
+            }
+            Cell classCell = new Cell();
+            scope.define(stmt.thisSlot, classCell);
+
+            Map<String, LoxFunction> methodTable = new HashMap<>();
+            for (int i = 0; i < methods.length; i++) {
+                Stmt.Function method = stmt.methods.get(i);
+                methodTable.put(method.name.lexeme, new LoxFunction(method,
+                        capture(method.captures, scope, upvalues),
+                        method.name.lexeme.equals("init"), true, methods[i]));
+            }
+            Map<String, LoxFunction> staticTable = new HashMap<>();
+            for (int i = 0; i < staticMethods.length; i++) {
+                Stmt.Function method = stmt.staticMethods.get(i);
+                staticTable.put(method.name.lexeme, new LoxFunction(method,
+                        capture(method.captures, scope, upvalues),
+                        method.name.lexeme.equals("init"), false, staticMethods[i]));
+            }
+
+            LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass,
+                    methodTable, staticTable);
+            classCell.value = klass;
+            declare(frame, stmt.slot, stmt.boxed, stmt.name, klass);
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return (frame, upvalues) -> {
+            expression.evaluate(frame, upvalues);
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        Executor body = sequence(stmt.body);
+        return (frame, upvalues) -> {
+            predeclare(frame, stmt.slot, stmt.boxed);
+            LoxFunction function = new LoxFunction(stmt,
+                    capture(stmt.captures, frame, upvalues), false, false, body);
+            declare(frame, stmt.slot, stmt.boxed, stmt.name, function);
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return (frame, upvalues) -> {
+                if (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                    return thenBranch.execute(frame, upvalues);
+                }
+                return null;
+            };
+        }
+        Executor elseBranch = compile(stmt.elseBranch);
+        return (frame, upvalues) -> {
+            if (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                return thenBranch.execute(frame, upvalues);
+            }
+            return elseBranch.execute(frame, upvalues);
+        };
+    }
+
+    // See Interpreter.visitImportStmt.
+    @Override
+    public Executor visitImportStmt(Stmt.Import stmt) {
+        Module module = stmt.module;
+        Environment globals = this.globals;
+        return (frame, upvalues) -> {
+            Environment namespace = runtime.namespace(module);
+            if (namespace == null) {
+                namespace = runtime.newNamespace(module);
+                new ClosureCompiler(runtime, namespace).compile(module.statements)
+                        .execute(null, null);
+            }
+            runtime.defineExports(module, globals);
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return (frame, upvalues) -> {
+            System.out.println(Interpreter.stringify(expression.evaluate(frame, upvalues)));
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        Interpreter runtime = this.runtime;
+        if (stmt.value == null) {
+            return (frame, upvalues) -> {
+                runtime.returnValue = null;
+                return Return.RETURN;
+            };
+        }
+        Evaluator value = compile(stmt.value);
+        return (frame, upvalues) -> {
+            runtime.returnValue = value.evaluate(frame, upvalues);
+            return Return.RETURN;
+        };
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        Evaluator initializer = stmt.initializer != null
+                ? compile(stmt.initializer)
+                : (frame, upvalues) -> null;
+        int slot = stmt.slot;
+        if (slot == -1) {
+            Environment globals = this.globals;
+            String name = stmt.name.lexeme;
+            return (frame, upvalues) -> {
+                globals.define(name, initializer.evaluate(frame, upvalues));
+                return null;
+            };
+        }
+        if (stmt.boxed) {
+            // The Cell exists before the initializer runs; see
+            // Interpreter.predeclare.
+            return (frame, upvalues) -> {
+                Cell cell = new Cell();
+                frame.define(slot, cell);
+                cell.value = initializer.evaluate(frame, upvalues);
+                return null;
+            };
+        }
+        return (frame, upvalues) -> {
+            frame.define(slot, initializer.evaluate(frame, upvalues));
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor body = compile(stmt.body);
+        return (frame, upvalues) -> {
+            while (Interpreter.isTruthy(condition.evaluate(frame, upvalues))) {
+                Return completion = body.execute(frame, upvalues);
+                if (completion != null) {
+                    return completion;
+                }
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        Evaluator value = compile(expr.value);
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (slot != -1) {
+            return (frame, upvalues) -> {
+                Object result = value.evaluate(frame, upvalues);
+                frame.assign(slot, result);
+                return result;
+            };
+        }
+        if (upvalue != -1) {
+            return (frame, upvalues) -> {
+                Object result = value.evaluate(frame, upvalues);
+                upvalues[upvalue].value = result;
+                return result;
+            };
+        }
+        Environment globals = this.globals;
+        Token name = expr.name;
+        return new Evaluator() {
+            // Kept from the first successful lookup; see visitVariableExpr.
+            private Cell global;
+
+            @Override
+            public Object evaluate(Environment frame, Cell[] upvalues) {
+                Object result = value.evaluate(frame, upvalues);
+                if (global == null) {
+                    global = globals.cell(name);
+                }
+                global.value = result;
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+        Token operator = expr.operator;
+
+        // A number literal on the right, as in "i < 10" or "n - 1", is
+        // folded into the operation.
+        if (expr.right instanceof Expr.Literal && ((Expr.Literal) expr.right).value instanceof Double) {
+            double constant = (double) ((Expr.Literal) expr.right).value;
+            Evaluator folded = binaryConstant(operator, left, constant);
+            if (folded != null) {
+                return folded;
+            }
+        }
+
+        switch (operator.type) {
+            case PLUS -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a + (double) b;
+                    }
+                    if (a instanceof String || b instanceof String) {
+                        return Interpreter.stringify(a) + Interpreter.stringify(b);
+                    }
+                    throw new RuntimeError(operator,
+                            "Operands must be two numbers or two strings.");
+                };
+            }
+            case MINUS -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a - (double) b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case STAR -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a * (double) b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case SLASH -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return divide(operator, (double) a, (double) b);
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case GREATER -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a > (double) b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case GREATER_EQUAL -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a >= (double) b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case LESS -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a < (double) b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case LESS_EQUAL -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    Object b = right.evaluate(frame, upvalues);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a <= (double) b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case EQUAL_EQUAL -> {
+                return (frame, upvalues) -> Interpreter.isEqual(
+                        left.evaluate(frame, upvalues), right.evaluate(frame, upvalues));
+            }
+            case BANG_EQUAL -> {
+                return (frame, upvalues) -> !Interpreter.isEqual(
+                        left.evaluate(frame, upvalues), right.evaluate(frame, upvalues));
+            }
+            default -> {
+                // The comma operator: both sides run for their effects.
+                return (frame, upvalues) -> {
+                    left.evaluate(frame, upvalues);
+                    right.evaluate(frame, upvalues);
+                    return null;
+                };
+            }
+        }
+    }
+
+    // Returns null for operators that gain nothing from a constant operand.
+    private static Evaluator binaryConstant(Token operator, Evaluator left, double b) {
+        switch (operator.type) {
+            case PLUS -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a + b;
+                    }
+                    if (a instanceof String) {
+                        return a + Interpreter.stringify(b);
+                    }
+                    throw new RuntimeError(operator,
+                            "Operands must be two numbers or two strings.");
+                };
+            }
+            case MINUS -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a - b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case STAR -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a * b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case GREATER -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a > b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case GREATER_EQUAL -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a >= b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case LESS -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a < b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            case LESS_EQUAL -> {
+                return (frame, upvalues) -> {
+                    Object a = left.evaluate(frame, upvalues);
+                    if (a instanceof Double) {
+                        return (double) a <= b;
+                    }
+                    throw numbersExpected(operator);
+                };
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private static double divide(Token operator, double left, double right) {
+        if (right == 0.0) {
+            throw new RuntimeError(operator, "Deviding zero.");
+        }
+        return left / right;
+    }
+
+    private static RuntimeError numbersExpected(Token operator) {
+        return new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        Invoker invoker = invoker(expr);
+        Interpreter runtime = this.runtime;
+
+        // obj.method(...) and super.method(...) call the method with its
+        // receiver directly instead of creating a bound method first.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Evaluator object = compile(get.object);
+            Token name = get.name;
+            PropertyCache cache = new PropertyCache();
+            return (frame, upvalues) -> {
+                LoxInstance receiver = Interpreter.instanceOf(
+                        object.evaluate(frame, upvalues), name);
+                Object callee = cache.get(receiver, name);
+                if (Interpreter.isGetter(callee)) {
+                    callee = runtime.callGetter((LoxFunction) callee, receiver);
+                }
+                return invoker.invoke(callee, receiver, frame, upvalues);
+            };
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            Evaluator receiver = superReceiver(superExpr);
+            return (frame, upvalues) -> invoker.invoke(
+                    Interpreter.superMethod(superExpr, upvalues),
+                    (LoxInstance) receiver.evaluate(frame, upvalues), frame, upvalues);
+        }
+        Evaluator callee = compile(expr.callee);
+        return (frame, upvalues) -> invoker.invoke(callee.evaluate(frame, upvalues), null,
+                frame, upvalues);
+    }
+
+    // As in the Interpreter, an unbound callee is a method looked up on
+    // receiver, which is invoked on it directly. Arguments are evaluated
+    // before the callee is checked.
+    private Invoker invoker(Expr.Call call) {
+        Interpreter runtime = this.runtime;
+        Evaluator[] arguments = new Evaluator[call.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(call.arguments.get(i));
+        }
+
+        if (CallSiteLink.enabled) {
+            return linked(call, arguments);
+        }
+
+        switch (arguments.length) {
+            case 0 -> {
+                return (callee, receiver, frame, upvalues) -> {
+                    LoxCallable function = Interpreter.callable(call, callee, 0);
+                    if (Interpreter.isUnbound(function)) {
+                        return ((LoxFunction) function).invoke0(runtime, receiver);
+                    }
+                    return function.call0(runtime);
+                };
+            }
+            case 1 -> {
+                Evaluator e0 = arguments[0];
+                return (callee, receiver, frame, upvalues) -> {
+                    Object a0 = e0.evaluate(frame, upvalues);
+                    LoxCallable function = Interpreter.callable(call, callee, 1);
+                    if (Interpreter.isUnbound(function)) {
+                        return ((LoxFunction) function).invoke1(runtime, receiver, a0);
+                    }
+                    return function.call1(runtime, a0);
+                };
+            }
+            case 2 -> {
+                Evaluator e0 = arguments[0];
+                Evaluator e1 = arguments[1];
+                return (callee, receiver, frame, upvalues) -> {
+                    Object a0 = e0.evaluate(frame, upvalues);
+                    Object a1 = e1.evaluate(frame, upvalues);
+                    LoxCallable function = Interpreter.callable(call, callee, 2);
+                    if (Interpreter.isUnbound(function)) {
+                        return ((LoxFunction) function).invoke2(runtime, receiver, a0, a1);
+                    }
+                    return function.call2(runtime, a0, a1);
+                };
+            }
+            case 3 -> {
+                Evaluator e0 = arguments[0];
+                Evaluator e1 = arguments[1];
+                Evaluator e2 = arguments[2];
+                return (callee, receiver, frame, upvalues) -> {
+                    Object a0 = e0.evaluate(frame, upvalues);
+                    Object a1 = e1.evaluate(frame, upvalues);
+                    Object a2 = e2.evaluate(frame, upvalues);
+                    LoxCallable function = Interpreter.callable(call, callee, 3);
+                    if (Interpreter.isUnbound(function)) {
+                        return ((LoxFunction) function).invoke3(runtime, receiver, a0, a1, a2);
+                    }
+                    return function.call3(runtime, a0, a1, a2);
+                };
+            }
+            case 4 -> {
+                Evaluator e0 = arguments[0];
+                Evaluator e1 = arguments[1];
+                Evaluator e2 = arguments[2];
+                Evaluator e3 = arguments[3];
+                return (callee, receiver, frame, upvalues) -> {
+                    Object a0 = e0.evaluate(frame, upvalues);
+                    Object a1 = e1.evaluate(frame, upvalues);
+                    Object a2 = e2.evaluate(frame, upvalues);
+                    Object a3 = e3.evaluate(frame, upvalues);
+                    LoxCallable function = Interpreter.callable(call, callee, 4);
+                    if (Interpreter.isUnbound(function)) {
+                        return ((LoxFunction) function).invoke4(runtime, receiver,
+                                a0, a1, a2, a3);
+                    }
+                    return function.call4(runtime, a0, a1, a2, a3);
+                };
+            }
+            default -> {
+                return (callee, receiver, frame, upvalues) -> {
+                    Object[] values = new Object[arguments.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = arguments[i].evaluate(frame, upvalues);
+                    }
+                    LoxCallable function = Interpreter.callable(call, callee, values.length);
+                    if (Interpreter.isUnbound(function)) {
+                        return ((LoxFunction) function).invoke(runtime, receiver, values);
+                    }
+                    return function.call(runtime, values);
+                };
+            }
+        }
+    }
+
+    // The site is made the first time the call runs, as in the Interpreter.
+    private Invoker linked(Expr.Call call, Evaluator[] arguments) {
+        Interpreter runtime = this.runtime;
+        switch (arguments.length) {
+            case 0 -> {
+                return (callee, receiver, frame, upvalues) -> Interpreter.link(call)
+                        .call0(callee, receiver, runtime);
+            }
+            case 1 -> {
+                Evaluator e0 = arguments[0];
+                return (callee, receiver, frame, upvalues) -> Interpreter.link(call)
+                        .call1(callee, receiver, runtime, e0.evaluate(frame, upvalues));
+            }
+            case 2 -> {
+                Evaluator e0 = arguments[0];
+                Evaluator e1 = arguments[1];
+                return (callee, receiver, frame, upvalues) -> Interpreter.link(call)
+                        .call2(callee, receiver, runtime, e0.evaluate(frame, upvalues),
+                                e1.evaluate(frame, upvalues));
+            }
+            case 3 -> {
+                Evaluator e0 = arguments[0];
+                Evaluator e1 = arguments[1];
+                Evaluator e2 = arguments[2];
+                return (callee, receiver, frame, upvalues) -> Interpreter.link(call)
+                        .call3(callee, receiver, runtime, e0.evaluate(frame, upvalues),
+                                e1.evaluate(frame, upvalues), e2.evaluate(frame, upvalues));
+            }
+            case 4 -> {
+                Evaluator e0 = arguments[0];
+                Evaluator e1 = arguments[1];
+                Evaluator e2 = arguments[2];
+                Evaluator e3 = arguments[3];
+                return (callee, receiver, frame, upvalues) -> Interpreter.link(call)
+                        .call4(callee, receiver, runtime, e0.evaluate(frame, upvalues),
+                                e1.evaluate(frame, upvalues), e2.evaluate(frame, upvalues),
+                                e3.evaluate(frame, upvalues));
+            }
+            default -> {
+                return (callee, receiver, frame, upvalues) -> {
+                    Object[] values = new Object[arguments.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = arguments[i].evaluate(frame, upvalues);
+                    }
+                    return Interpreter.link(call).call(callee, receiver, runtime, values);
+                };
+            }
+        }
+    }
+
+    @Override
+    public Evaluator visitGetExpr(Expr.Get expr) {
+        Evaluator object = compile(expr.object);
+        Token name = expr.name;
+        PropertyCache cache = new PropertyCache();
+        Interpreter runtime = this.runtime;
+        return (frame, upvalues) -> {
+            LoxInstance instance = Interpreter.instanceOf(object.evaluate(frame, upvalues), name);
+            Object result = cache.get(instance, name);
+            if (Interpreter.isGetter(result)) {
+                return runtime.callGetter((LoxFunction) result, instance);
+            }
+            if (Interpreter.isUnbound(result)) {
+                return ((LoxFunction) result).bind(instance);
+            }
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitSetExpr(Expr.Set expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator value = compile(expr.value);
+        Token name = expr.name;
+        PropertyCache cache = new PropertyCache();
+        return (frame, upvalues) -> {
+            Object instance = object.evaluate(frame, upvalues);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name,
+                        "Only instances have fields.");
+            }
+
+            Object result = value.evaluate(frame, upvalues);
+            cache.set((LoxInstance) instance, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitSuperExpr(Expr.Super expr) {
+        Evaluator receiver = superReceiver(expr);
+        return (frame, upvalues) -> Interpreter.superMethod(expr, upvalues)
+                .bind((LoxInstance) receiver.evaluate(frame, upvalues));
+    }
+
+    private static Evaluator superReceiver(Expr.Super expr) {
+        int thisSlot = expr.thisSlot;
+        int thisUpvalue = expr.thisUpvalue;
+        if (thisUpvalue != -1) {
+            return (frame, upvalues) -> upvalues[thisUpvalue].value;
+        }
+        return (frame, upvalues) -> frame.get(thisSlot);
+    }
+
+    @Override
+    public Evaluator visitThisExpr(Expr.This expr) {
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (slot != -1) {
+            return (frame, upvalues) -> frame.get(slot);
+        }
+        return (frame, upvalues) -> upvalues[upvalue].value;
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return (frame, upvalues) -> value;
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return (frame, upvalues) -> {
+                Object value = left.evaluate(frame, upvalues);
+                return Interpreter.isTruthy(value) ? value : right.evaluate(frame, upvalues);
+            };
+        }
+        return (frame, upvalues) -> {
+            Object value = left.evaluate(frame, upvalues);
+            return Interpreter.isTruthy(value) ? right.evaluate(frame, upvalues) : value;
+        };
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        Evaluator right = compile(expr.right);
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case BANG -> {
+                return (frame, upvalues) -> !Interpreter.isTruthy(right.evaluate(frame, upvalues));
+            }
+            case MINUS -> {
+                return (frame, upvalues) -> {
+                    Object value = right.evaluate(frame, upvalues);
+                    if (value instanceof Double) {
+                        return -(double) value;
+                    }
+                    throw new RuntimeError(operator, "Operand must be a number.");
+                };
+            }
+            default -> {
+                return (frame, upvalues) -> {
+                    right.evaluate(frame, upvalues);
+                    return null;
+                };
+            }
+        }
+    }
+
+    @Override
+    public Evaluator visitConditionalExpr(Expr.Conditional expr) {
+        Evaluator condition = compile(expr.condition);
+        Evaluator trueValue = compile(expr.trueValue);
+        Evaluator falseValue = compile(expr.FalseValue);
+        return (frame, upvalues) -> Interpreter.isTruthy(condition.evaluate(frame, upvalues))
+                ? trueValue.evaluate(frame, upvalues)
+                : falseValue.evaluate(frame, upvalues);
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (slot != -1) {
+            return (frame, upvalues) -> frame.get(slot);
+        }
+        if (upvalue != -1) {
+            return (frame, upvalues) -> upvalues[upvalue].value;
+        }
+        Environment globals = this.globals;
+        Token name = expr.name;
+        return new Evaluator() {
+            // A global never goes away once defined, so its Cell can be
+            // kept from the first successful lookup on.
+            private Cell global;
+
+            @Override
+            public Object evaluate(Environment frame, Cell[] upvalues) {
+                if (global == null) {
+                    global = globals.cell(name);
+                }
+                return global.value;
+            }
+        };
+    }
+
+    @Override
+    public Evaluator visitLambdaExpr(Expr.Lambda expr) {
+        Executor body = sequence(expr.body);
+        int[] captures = expr.captures;
+        return (frame, upvalues) -> new LoxFunction(expr, capture(captures, frame, upvalues),
+                body);
+    }
+}
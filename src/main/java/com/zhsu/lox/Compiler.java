@@ -0,0 +1,746 @@
+package com.zhsu.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static class Local {
+
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class FunctionState {
+
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the receiver in methods and the callee otherwise.
+            String slotZero = (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) ? "this" : "";
+            locals.add(new Local(slotZero, 0));
+        }
+    }
+
+    private static class ClassState {
+
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_JUMP = 65535;
+
+    private FunctionState current;
+    private ClassState currentClass;
+    private int line = 1;
+
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction("script", false), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        compileStatements(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = identifierConstant(stmt.name);
+        declareVariable(stmt.name);
+
+        emitOp(OpCode.CLASS);
+        emitShort(nameConstant);
+        defineVariable(nameConstant);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+
+            beginScope();
+            addLocal(new Token(TokenType.SUPER, "super", null, stmt.superclass.name.line));
+
+            namedVariable(stmt.name, false);
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(stmt.name, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitOp(OpCode.METHOD);
+            emitShort(identifierConstant(method.name));
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            // A static "init" returns its receiver, the class, like any
+            // initializer.
+            function(method, method.name.lexeme.equals("init")
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD);
+            emitOp(OpCode.STATIC_METHOD);
+            emitShort(identifierConstant(method.name));
+        }
+        emitOp(OpCode.POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (addLocalConstant(stmt.expression)) {
+            return null;
+        }
+        compile(stmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    // Emits ADD_LOCAL_CONSTANT for a statement like "i = i + 1;" on a
+    // local, instead of GET_LOCAL, CONSTANT, ADD, SET_LOCAL and POP.
+    private boolean addLocalConstant(Expr expr) {
+        if (!(expr instanceof Expr.Assign)
+                || !(((Expr.Assign) expr).value instanceof Expr.Binary)) {
+            return false;
+        }
+        Expr.Assign assign = (Expr.Assign) expr;
+        Expr.Binary sum = (Expr.Binary) assign.value;
+        if (sum.operator.type != TokenType.PLUS
+                || !(sum.left instanceof Expr.Variable)
+                || !((Expr.Variable) sum.left).name.lexeme.equals(assign.name.lexeme)
+                || !(sum.right instanceof Expr.Literal)
+                || !(((Expr.Literal) sum.right).value instanceof Double)) {
+            return false;
+        }
+        int slot = resolveLocal(current, assign.name.lexeme);
+        if (slot == -1) {
+            return false;
+        }
+
+        line = sum.operator.line;
+        emitOp(OpCode.ADD_LOCAL_CONSTANT);
+        emitByte(slot);
+        emitShort(makeConstant(((Expr.Literal) sum.right).value));
+        return true;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        int nameConstant = current.scopeDepth > 0 ? 0 : identifierConstant(stmt.name);
+        // Declared before the body so the function can refer to itself.
+        declareVariable(stmt.name);
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(nameConstant);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int thenJump = emitConditionJump(stmt.condition);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            patchJump(thenJump);
+            return null;
+        }
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    // Modules each need a namespace of their own, which only the
+    // Interpreter has.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        Lox.error(stmt.keyword, "Can only import with the tree or closure engine.");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) {
+            if (stmt.value != null) {
+                // Only a static "init" may return a value; it is run and
+                // dropped.
+                compile(stmt.value);
+                emitOp(OpCode.POP);
+            }
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        int nameConstant = current.scopeDepth > 0 ? 0 : identifierConstant(stmt.name);
+        // Like the Resolver, let closures in the initializer see the new
+        // local; the initializer's value ends up in its slot.
+        declareVariable(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        defineVariable(nameConstant);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        int exitJump = emitConditionJump(stmt.condition);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operator.type == TokenType.COMMA) {
+            // Both operands are evaluated for their effects; the tree-walker
+            // yields nil for the comma operator.
+            compile(expr.left);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            emitOp(OpCode.POP);
+            emitOp(OpCode.NIL);
+            return null;
+        }
+
+        compileOperands(expr);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL ->
+                emitOp(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL ->
+                emitOp(OpCode.EQUAL);
+            case GREATER ->
+                emitOp(OpCode.GREATER);
+            case GREATER_EQUAL ->
+                emitOp(OpCode.GREATER_EQUAL);
+            case LESS ->
+                emitOp(OpCode.LESS);
+            case LESS_EQUAL ->
+                emitOp(OpCode.LESS_EQUAL);
+            case PLUS ->
+                emitOp(OpCode.ADD);
+            case MINUS ->
+                emitOp(OpCode.SUBTRACT);
+            case STAR ->
+                emitOp(OpCode.MULTIPLY);
+            case SLASH ->
+                emitOp(OpCode.DIVIDE);
+            default -> {
+                emitOp(OpCode.POP);
+                emitOp(OpCode.POP);
+                emitOp(OpCode.NIL);
+            }
+        }
+        return null;
+    }
+
+    // Pushes both operands, the two at once when they are a local and a
+    // constant.
+    private void compileOperands(Expr.Binary expr) {
+        if (expr.left instanceof Expr.Variable && expr.right instanceof Expr.Literal) {
+            Token name = ((Expr.Variable) expr.left).name;
+            Object value = ((Expr.Literal) expr.right).value;
+            int slot = resolveLocal(current, name.lexeme);
+            if (slot != -1 && (value instanceof Double || value instanceof String)) {
+                line = name.line;
+                emitOp(OpCode.GET_LOCAL_CONSTANT);
+                emitByte(slot);
+                emitShort(makeConstant(value));
+                return;
+            }
+        }
+        compile(expr.left);
+        compile(expr.right);
+    }
+
+    // Compiles a condition and a jump taken when it is false, which leaves
+    // nothing on the stack either way. A comparison jumps by itself.
+    private int emitConditionJump(Expr condition) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            byte op = switch (binary.operator.type) {
+                case LESS -> OpCode.JUMP_IF_NOT_LESS;
+                case LESS_EQUAL -> OpCode.JUMP_IF_NOT_LESS_EQUAL;
+                case GREATER -> OpCode.JUMP_IF_NOT_GREATER;
+                case GREATER_EQUAL -> OpCode.JUMP_IF_NOT_GREATER_EQUAL;
+                default -> -1;
+            };
+            if (op != -1) {
+                compileOperands(binary);
+                line = binary.operator.line;
+                return emitJump(op);
+            }
+        }
+        compile(condition);
+        return emitJump(OpCode.POP_JUMP_IF_FALSE);
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(args) looks the method up without binding it.
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            line = get.name.line;
+            emitOp(OpCode.GET_METHOD);
+            emitShort(identifierConstant(get.name));
+            return callMethod(expr);
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            loadThisAndSuper(superExpr);
+            line = superExpr.method.line;
+            emitOp(OpCode.GET_SUPER_METHOD);
+            emitShort(identifierConstant(superExpr.method));
+            return callMethod(expr);
+        }
+
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitOp(OpCode.CALL);
+        emitByte(argumentCount(expr));
+        return null;
+    }
+
+    private Void callMethod(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitOp(OpCode.CALL_METHOD);
+        emitByte(argumentCount(expr));
+        return null;
+    }
+
+    private int argumentCount(Expr.Call expr) {
+        if (expr.arguments.size() > 255) {
+            Lox.error(expr.paren, "Can't have more than 255 arguments.");
+        }
+        return expr.arguments.size();
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY);
+        emitShort(identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY);
+        emitShort(identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        loadThisAndSuper(expr);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER);
+        emitShort(identifierConstant(expr.method));
+        return null;
+    }
+
+    private void loadThisAndSuper(Expr.Super expr) {
+        namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line), false);
+        namedVariable(expr.keyword, false);
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value instanceof Boolean) {
+            emitOp((Boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emitOp(OpCode.CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG ->
+                emitOp(OpCode.NOT);
+            case MINUS ->
+                emitOp(OpCode.NEGATE);
+            default -> {
+                emitOp(OpCode.POP);
+                emitOp(OpCode.NIL);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        int elseJump = emitConditionJump(expr.condition);
+        compile(expr.trueValue);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        compile(expr.FalseValue);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, false);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        namedVariable(expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        FunctionState state = new FunctionState(current, new VmFunction(null, false), FunctionType.FUNCTION);
+        functionBody(state, expr.params, expr.body);
+        return null;
+    }
+
+    private void function(Stmt.Function declaration, FunctionType type) {
+        VmFunction function = new VmFunction(declaration.name.lexeme, declaration.isGetter);
+        functionBody(new FunctionState(current, function, type), declaration.params, declaration.body);
+    }
+
+    private void functionBody(FunctionState state, List<Token> params, List<Stmt> body) {
+        current = state;
+        beginScope();
+        for (Token param : params) {
+            state.function.arity++;
+            declareVariable(param);
+            defineVariable(0);
+        }
+        compileStatements(body);
+        emitReturn();
+        current = state.enclosing;
+
+        state.function.upvalueCount = state.upvalues.size();
+        emitOp(OpCode.CLOSURE);
+        emitShort(makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private void namedVariable(Token name, boolean assign) {
+        line = name.line;
+        byte getOp;
+        byte setOp;
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        } else {
+            emitOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+            emitShort(identifierConstant(name));
+            return;
+        }
+
+        emitOp(assign ? setOp : getOp);
+        emitByte(arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) {
+            return -1;
+        }
+
+        int local = resolveLocal(state.enclosing, name.lexeme);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, name);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, name);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token name) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            Lox.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) {
+            return;
+        }
+        addLocal(name);
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() == MAX_LOCALS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, current.scopeDepth));
+    }
+
+    private void defineVariable(int global) {
+        if (current.scopeDepth > 0) {
+            // The value is already sitting in the local's stack slot.
+            return;
+        }
+        emitOp(OpCode.DEFINE_GLOBAL);
+        emitShort(global);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(OpCode.CLOSE_UPVALUE);
+            } else {
+                emitOp(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private int identifierConstant(Token name) {
+        return makeConstant(name.lexeme);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = current.function.chunk.addConstant(value);
+        if (constant >= MAX_CONSTANTS) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private void emitByte(int b) {
+        current.function.chunk.write((byte) b, line);
+    }
+
+    private void emitOp(byte op) {
+        current.function.chunk.write(op, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitByte(0xff);
+        emitByte(0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        // -2 to adjust for the jump offset itself.
+        int jump = chunk.count - offset - 2;
+        if (jump > MAX_JUMP) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > MAX_JUMP) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+}
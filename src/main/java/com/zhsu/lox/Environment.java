@@ -5,25 +5,35 @@ import java.util.Map;
 
 public class Environment {
 
-    final Environment enclosing;
+    // Globals are looked up by name; they are the only bindings the
+    // Resolver cannot place. Each name keeps one Cell for good, so a use
+    // can hold on to it after the first lookup.
+    private final Map<String, Cell> values;
 
-    private final Map<String, Object> values = new HashMap<>();
+    // A call frame: every local of a function, whatever block declared it,
+    // has a fixed slot here. Captured locals hold a Cell.
+    private final Object[] slots;
 
     Environment() {
-        enclosing = null;
+        values = new HashMap<>();
+        slots = null;
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(int size) {
+        this.values = null;
+        this.slots = new Object[size];
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+    // A frame around slots filled in already.
+    Environment(Object[] slots) {
+        this.values = null;
+        this.slots = slots;
+    }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    Cell cell(Token name) {
+        Cell cell = values.get(name.lexeme);
+        if (cell != null) {
+            return cell;
         }
 
         throw new RuntimeError(name,
@@ -31,39 +41,50 @@ public class Environment {
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        Cell cell = values.get(name);
+        if (cell == null) {
+            values.put(name, new Cell(value));
+        } else {
+            cell.value = value;
+        }
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    // Stores straight into slot, replacing whatever an earlier variable
+    // sharing it left behind.
+    void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Object get(int slot) {
+        Object value = slots[slot];
+        if (value instanceof Cell) {
+            return ((Cell) value).value;
+        }
+        return value;
     }
 
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    void assign(int slot, Object value) {
+        Object current = slots[slot];
+        if (current instanceof Cell) {
+            ((Cell) current).value = value;
+        } else {
+            slots[slot] = value;
         }
-
-        return environment;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+    Cell cell(int slot) {
+        return (Cell) slots[slot];
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+    // The frame's slots themselves, for a compiled loop to take over; null
+    // for the globals.
+    Object[] slots() {
+        return slots;
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+    // Moves the value already in slot into a new Cell.
+    void box(int slot) {
+        slots[slot] = new Cell(slots[slot]);
     }
 
 }
@@ -37,6 +37,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    // Filled in after parsing.
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
 
   static class Call extends Expr {
@@ -54,6 +57,11 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    // Filled in after parsing.
+    LoxCallable target;
+    boolean generic;
+    CallSiteLink link;
   }
 
   static class Get extends Expr {
@@ -69,6 +77,9 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    // Filled in after parsing.
+    PropertyCache cache;
   }
 
   static class Set extends Expr {
@@ -86,6 +97,9 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    // Filled in after parsing.
+    PropertyCache cache;
   }
 
   static class Super extends Expr {
@@ -101,6 +115,11 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    // Filled in after parsing.
+    int upvalue;
+    int thisSlot = -1;
+    int thisUpvalue = -1;
   }
 
   static class This extends Expr {
@@ -114,6 +133,10 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    // Filled in after parsing.
+    int slot = -1;
+    int upvalue = -1;
   }
 
   static class Grouping extends Expr {
@@ -202,6 +225,12 @@ abstract class Expr {
     }
 
     final Token name;
+
+    // Filled in after parsing.
+    int slot = -1;
+    int upvalue = -1;
+    Cell global;
+    Module module;
   }
 
   static class Assign extends Expr {
@@ -217,6 +246,12 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    // Filled in after parsing.
+    int slot = -1;
+    int upvalue = -1;
+    Cell global;
+    Module module;
   }
 
   static class Lambda extends Expr {
@@ -232,6 +267,12 @@ abstract class Expr {
 
     final List<Token> params;
     final List<Stmt> body;
+
+    // Filled in after parsing.
+    int slotCount;
+    int[] captures;
+    int[] boxedSlots;
+    Jit.Profile profile;
   }
 
 }
@@ -1,37 +1,77 @@
 package com.zhsu.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.zhsu.lox.Expr.Conditional;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Return> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    private static final LoxCallable clock = new LoxCallable() {
+        @Override
+        public int arity() {
+            return 0;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return call0(interpreter);
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter) {
+            return (double) System.currentTimeMillis() / 1000.0;
+        }
 
-    private final Map<Expr, Integer> locals = new HashMap<>();
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    final Environment globals = new Environment();
+    // The namespace of each module imported so far.
+    private final Map<Module, Environment> namespaces = new HashMap<>();
+    // Where top-level declarations go: the globals, or the namespace of
+    // the module whose top-level code is running.
+    private Environment topLevel = globals;
+    // The current call's frame, or null at the top level.
+    private Environment environment = null;
+    // The captured variables of the function being run.
+    private Cell[] upvalues = null;
+    // The value of the last return executed; read by LoxFunction once its
+    // body completes with Return.RETURN.
+    Object returnValue = null;
+    // Watching the innermost loop being recorded for a trace, if any.
+    private Tracer.Recorder recorder = null;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+        globals.define("clock", clock);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                    List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+    // The namespace module's globals live in, null if it has not been
+    // imported yet; the globals for the main script.
+    Environment namespace(Module module) {
+        return module == null ? globals : namespaces.get(module);
+    }
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    // Defines what module's top-level code declared in importer too, with
+    // the values they have now.
+    void defineExports(Module module, Environment importer) {
+        Environment namespace = namespaces.get(module);
+        for (Token name : module.exports) {
+            importer.define(name.lexeme, namespace.cell(name).value);
+        }
+    }
+
+    // A namespace for module holding just the natives, to run its
+    // top-level code in.
+    Environment newNamespace(Module module) {
+        Environment namespace = new Environment();
+        namespace.define("clock", clock);
+        namespaces.put(module, namespace);
+        return namespace;
     }
 
     void interpret(List<Stmt> statements) {
@@ -44,40 +84,94 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    // Runs a program built by the ClosureCompiler, with this interpreter's
+    // globals.
+    void interpret(ClosureCompiler.Executor program) {
+        try {
+            program.execute(null, null);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Return execute(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // A captured local gets its Cell before its value is computed, so that
+    // closures created meanwhile (a recursive function, say) share it.
+    private void predeclare(int slot, boolean boxed) {
+        if (boxed) {
+            environment.define(slot, new Cell());
+        }
+    }
+
+    private void declare(int slot, boolean boxed, Token name, Object value) {
+        if (slot == -1) {
+            topLevel.define(name.lexeme, value);
+        } else if (boxed) {
+            environment.cell(slot).value = value;
+        } else {
+            environment.define(slot, value);
+        }
+    }
+
+    // The Cells a new closure captures, in the order the Resolver listed.
+    private Cell[] capture(int[] captures) {
+        Cell[] cells = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int source = captures[i];
+            cells[i] = source >= 0 ? environment.cell(source) : upvalues[-1 - source];
+        }
+        return cells;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    Return executeBody(List<Stmt> body, Environment frame, Cell[] upvalues) {
+        Cell[] previous = this.upvalues;
+        try {
+            this.upvalues = upvalues;
+            return executeBlock(body, frame);
+        } finally {
+            this.upvalues = previous;
+        }
     }
 
-    void executeBlock(List<Stmt> statements,
+    private Return executeBlock(List<Stmt> statements,
             Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            return executeStatements(statements);
         } finally {
             this.environment = previous;
         }
     }
 
-    @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+    private Return executeStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Return completion = execute(statement);
+            if (completion != null) {
+                return completion;
+            }
+        }
         return null;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Return visitBlockStmt(Stmt.Block stmt) {
+        // Only top-level blocks own a frame; others use their function's.
+        if (stmt.slotCount > 0) {
+            return executeBlock(stmt.statements, new Environment(stmt.slotCount));
+        }
+        return executeStatements(stmt.statements);
+    }
+
+    @Override
+    public Return visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -87,100 +181,215 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        predeclare(stmt.slot, stmt.boxed);
+        declare(stmt.slot, stmt.boxed, stmt.name, null);
 
-        if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
-        }
-
-        Map<String, LoxFunction> methods = new HashMap<>();
-        for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
-        }
-        Map<String, LoxFunction> staticMethods = new HashMap<>();
-        for (Stmt.Function method : stmt.staticMethods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-            staticMethods.put(method.name.lexeme, function);
+        Environment previous = environment;
+        if (stmt.slotCount > 0) {
+            environment = new Environment(stmt.slotCount);
         }
+        LoxClass klass;
+        try {
+            // The hidden "super" and static "this" only exist to be
+            // captured by the methods, so they always live in Cells.
+            if (stmt.superSlot != -1) {
+                environment.define(stmt.superSlot, new Cell(superclass));
+            }
+            Cell classCell = new Cell();
+            environment.define(stmt.thisSlot, classCell);
+
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (Stmt.Function method : stmt.methods) {
+                LoxFunction function = new LoxFunction(method, capture(method.captures),
+                        method.name.lexeme.equals("init"), true);
+                methods.put(method.name.lexeme, function);
+            }
+            Map<String, LoxFunction> staticMethods = new HashMap<>();
+            for (Stmt.Function method : stmt.staticMethods) {
+                LoxFunction function = new LoxFunction(method, capture(method.captures),
+                        method.name.lexeme.equals("init"));
+                staticMethods.put(method.name.lexeme, function);
+            }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods, staticMethods);
-        if (superclass != null) {
-            environment = environment.enclosing;
+            klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods, staticMethods);
+            classCell.value = klass;
+        } finally {
+            environment = previous;
         }
-        environment.assign(stmt.name, klass);
+        declare(stmt.slot, stmt.boxed, stmt.name, klass);
         return null;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Return visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+    public Return visitFunctionStmt(Stmt.Function stmt) {
+        predeclare(stmt.slot, stmt.boxed);
+        LoxFunction function = new LoxFunction(stmt, capture(stmt.captures), false);
+        declare(stmt.slot, stmt.boxed, stmt.name, function);
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+    public Return visitIfStmt(Stmt.If stmt) {
+        boolean taken = isTruthy(evaluate(stmt.condition));
+        if (recorder != null) {
+            recorder.branch(stmt, taken);
+        }
+        if (taken) {
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
+        }
+        return null;
+    }
+
+    // A module's top-level code runs the first time it is imported, in its
+    // own namespace; every import then copies what it declared into the
+    // importer's.
+    @Override
+    public Return visitImportStmt(Stmt.Import stmt) {
+        Environment namespace = namespace(stmt.module);
+        if (namespace == null) {
+            namespace = newNamespace(stmt.module);
+            Environment importer = topLevel;
+            try {
+                topLevel = namespace;
+                executeStatements(stmt.module.statements);
+            } finally {
+                topLevel = importer;
+            }
         }
+        defineExports(stmt.module, topLevel);
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Return visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Return visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
         }
 
-        throw new Return(value);
+        returnValue = value;
+        return Return.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Return visitVarStmt(Stmt.Var stmt) {
+        predeclare(stmt.slot, stmt.boxed);
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        declare(stmt.slot, stmt.boxed, stmt.name, value);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Return visitWhileStmt(Stmt.While stmt) {
+        Jit.LoopProfile profile = Jit.profile(stmt);
+        // The recording of this loop, which another loop inside it may
+        // take over.
+        Tracer.Recorder recording = null;
+        try {
+            while (isTruthy(evaluate(stmt.condition))) {
+                Return completion = execute(stmt.body);
+                if (completion != null) {
+                    return completion;
+                }
+                // Once the loop is compiled, its code takes the frame over
+                // at the next back-edge and runs the rest of the loop. At
+                // the top level there is no frame, only globals.
+                Tracer.Trace trace = profile.trace;
+                Jit.Loop loop = profile.code;
+                if (trace != null) {
+                    Object[] block = trace.blockSize > 0 ? new Object[trace.blockSize] : null;
+                    int exit = trace.run(this, upvalues, frameSlots(), block);
+                    if (exit == Tracer.LOOP_DONE) {
+                        return null;
+                    } else if (exit == Tracer.RETURNED) {
+                        return Return.RETURN;
+                    }
+                    Tracer.exited(profile, exit);
+                    if (exit != Tracer.NOT_ENTERED) {
+                        completion = resume(trace.exits[exit], block);
+                        if (completion != null) {
+                            return completion;
+                        }
+                    }
+                } else if (recording != null) {
+                    if (recorder == recording) {
+                        recorder = null;
+                        profile.trace = Tracer.compile(profile, recording, this, frameSlots(),
+                                upvalues);
+                    }
+                    if (profile.trace == null) {
+                        Jit.submit(profile, stmt, frameSlots());
+                    }
+                    recording = null;
+                } else if (loop != null) {
+                    Object[] slots = frameSlots();
+                    if (loop.fits(slots)) {
+                        return loop.run(this, upvalues, slots);
+                    }
+                } else if (profile.backEdges < Jit.backEdgeThreshold
+                        && ++profile.backEdges == Jit.backEdgeThreshold) {
+                    // Counting stops at the threshold, as for calls.
+                    if (Tracer.enabled && profile.recordings < Tracer.MAX_RECORDINGS) {
+                        recording = new Tracer.Recorder(stmt);
+                        recorder = recording;
+                    } else {
+                        Jit.submit(profile, stmt, frameSlots());
+                    }
+                }
+            }
+            return null;
+        } finally {
+            if (recording != null && recorder == recording) {
+                recorder = null;
+            }
         }
-        return null;
+    }
+
+    // Finishes the trip round a loop that its trace left at exit; block
+    // holds the slots of the body's own frame, if it has one.
+    private Return resume(Tracer.Exit exit, Object[] block) {
+        if (block != null) {
+            return executeBlock(exit.statements, new Environment(block));
+        }
+        return executeStatements(exit.statements);
+    }
+
+    private Object[] frameSlots() {
+        return environment == null ? null : environment.slots();
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.slot != -1) {
+            environment.assign(expr.slot, value);
+        } else if (expr.upvalue != -1) {
+            upvalues[expr.upvalue].value = value;
         } else {
-            globals.assign(expr.name, value);
+            if (expr.global == null) {
+                expr.global = namespace(expr.module).cell(expr.name);
+            }
+            expr.global.value = value;
         }
 
         return value;
@@ -233,44 +442,210 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // obj.method(...) and super.method(...) call the method with its
+        // receiver directly instead of creating a bound method first.
+        LoxInstance receiver = null;
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            receiver = instanceOf(evaluate(get.object), get.name);
+            callee = PropertyCache.of(get).get(receiver, get.name);
+            if (isGetter(callee)) {
+                callee = callGetter((LoxFunction) callee, receiver);
+            }
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            receiver = superReceiver(superExpr);
+            callee = superMethod(superExpr, upvalues);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+        if (recorder != null) {
+            recorder.call(expr, callee);
+        }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        // Small calls pass their arguments straight through; only longer
+        // argument lists need an array.
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return call0(expr, callee, receiver);
+            case 1:
+                return call1(expr, callee, receiver, evaluate(arguments.get(0)));
+            case 2:
+                return call2(expr, callee, receiver, evaluate(arguments.get(0)),
+                        evaluate(arguments.get(1)));
+            case 3:
+                return call3(expr, callee, receiver, evaluate(arguments.get(0)),
+                        evaluate(arguments.get(1)), evaluate(arguments.get(2)));
+            case 4:
+                return call4(expr, callee, receiver, evaluate(arguments.get(0)),
+                        evaluate(arguments.get(1)), evaluate(arguments.get(2)),
+                        evaluate(arguments.get(3)));
+            default:
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return call(expr, callee, receiver, values);
         }
+    }
+
+    // In the callN methods an unbound callee is a method looked up on
+    // receiver, which is invoked on it directly. A linked site does all of
+    // that itself.
 
+    // The call's site when calls are linked, made the first time the call
+    // runs so that calls never reached cost nothing; null otherwise.
+    static CallSiteLink link(Expr.Call call) {
+        CallSiteLink link = call.link;
+        if (link == null && CallSiteLink.enabled) {
+            link = new CallSiteLink(call);
+            call.link = link;
+        }
+        return link;
+    }
+
+    private Object call0(Expr.Call call, Object callee, LoxInstance receiver) {
+        CallSiteLink link = link(call);
+        if (link != null) {
+            return link.call0(callee, receiver, this);
+        }
+        LoxCallable function = callable(call, callee, 0);
+        if (isUnbound(function)) {
+            return ((LoxFunction) function).invoke0(this, receiver);
+        }
+        return function.call0(this);
+    }
+
+    private Object call1(Expr.Call call, Object callee, LoxInstance receiver, Object a0) {
+        CallSiteLink link = link(call);
+        if (link != null) {
+            return link.call1(callee, receiver, this, a0);
+        }
+        LoxCallable function = callable(call, callee, 1);
+        if (isUnbound(function)) {
+            return ((LoxFunction) function).invoke1(this, receiver, a0);
+        }
+        return function.call1(this, a0);
+    }
+
+    private Object call2(Expr.Call call, Object callee, LoxInstance receiver, Object a0,
+            Object a1) {
+        CallSiteLink link = link(call);
+        if (link != null) {
+            return link.call2(callee, receiver, this, a0, a1);
+        }
+        LoxCallable function = callable(call, callee, 2);
+        if (isUnbound(function)) {
+            return ((LoxFunction) function).invoke2(this, receiver, a0, a1);
+        }
+        return function.call2(this, a0, a1);
+    }
+
+    private Object call3(Expr.Call call, Object callee, LoxInstance receiver, Object a0,
+            Object a1, Object a2) {
+        CallSiteLink link = link(call);
+        if (link != null) {
+            return link.call3(callee, receiver, this, a0, a1, a2);
+        }
+        LoxCallable function = callable(call, callee, 3);
+        if (isUnbound(function)) {
+            return ((LoxFunction) function).invoke3(this, receiver, a0, a1, a2);
+        }
+        return function.call3(this, a0, a1, a2);
+    }
+
+    private Object call4(Expr.Call call, Object callee, LoxInstance receiver, Object a0,
+            Object a1, Object a2, Object a3) {
+        CallSiteLink link = link(call);
+        if (link != null) {
+            return link.call4(callee, receiver, this, a0, a1, a2, a3);
+        }
+        LoxCallable function = callable(call, callee, 4);
+        if (isUnbound(function)) {
+            return ((LoxFunction) function).invoke4(this, receiver, a0, a1, a2, a3);
+        }
+        return function.call4(this, a0, a1, a2, a3);
+    }
+
+    private Object call(Expr.Call call, Object callee, LoxInstance receiver, Object[] arguments) {
+        CallSiteLink link = link(call);
+        if (link != null) {
+            return link.call(callee, receiver, this, arguments);
+        }
+        LoxCallable function = callable(call, callee, arguments.length);
+        if (isUnbound(function)) {
+            return ((LoxFunction) function).invoke(this, receiver, arguments);
+        }
+        return function.call(this, arguments);
+    }
+
+    // A call site remembers the first callee that passed its checks and skips
+    // them while it keeps calling that one; a site that sees a second callee
+    // goes generic and checks every time.
+    static LoxCallable callable(Expr.Call call, Object callee, int argCount) {
+        if (callee == call.target && callee != null) {
+            return call.target;
+        }
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(call.paren,
                     "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable) callee;
-
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected "
+        if (argCount != function.arity()) {
+            throw new RuntimeError(call.paren, "Expected "
                     + function.arity() + " arguments but got "
-                    + arguments.size() + ".");
+                    + argCount + ".");
         }
+        if (!call.generic) {
+            if (call.target == null) {
+                call.target = function;
+            } else {
+                call.target = null;
+                call.generic = true;
+            }
+        }
+        return function;
+    }
 
-        return function.call(this, arguments);
+    static boolean isUnbound(Object callee) {
+        return callee instanceof LoxFunction && ((LoxFunction) callee).isUnbound();
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
-        if (object instanceof LoxInstance) {
-            Object result = ((LoxInstance) object).get(expr.name);
-            if (result instanceof LoxFunction && ((LoxFunction) result).isGetter()) {
-                result = ((LoxFunction) result).bind((LoxInstance) object).call(this, null);
-            }
-            return result;
+        LoxInstance instance = instanceOf(evaluate(expr.object), expr.name);
+        Object result = PropertyCache.of(expr).get(instance, expr.name);
+        if (isGetter(result)) {
+            return callGetter((LoxFunction) result, instance);
+        }
+        if (isUnbound(result)) {
+            return ((LoxFunction) result).bind(instance);
         }
+        return result;
+    }
 
-        throw new RuntimeError(expr.name,
+    static LoxInstance instanceOf(Object object, Token name) {
+        if (object instanceof LoxInstance) {
+            return (LoxInstance) object;
+        }
+        throw new RuntimeError(name,
                 "Only instances have properties.");
     }
 
+    static boolean isGetter(Object property) {
+        return property instanceof LoxFunction && ((LoxFunction) property).isGetter();
+    }
+
+    Object callGetter(LoxFunction getter, LoxInstance instance) {
+        if (getter.isUnbound()) {
+            return getter.invoke0(this, instance);
+        }
+        return getter.call0(this);
+    }
+
     @Override
     public Object visitSetExpr(Expr.Set expr) {
         Object object = evaluate(expr.object);
@@ -281,77 +656,240 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        PropertyCache.of(expr).set((LoxInstance) object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(
-                distance, "super");
-        LoxInstance object = (LoxInstance) environment.getAt(
-                distance - 1, "this");
+        return superMethod(expr, upvalues).bind(superReceiver(expr));
+    }
 
+    private LoxInstance superReceiver(Expr.Super expr) {
+        if (expr.thisUpvalue != -1) {
+            return (LoxInstance) upvalues[expr.thisUpvalue].value;
+        }
+        return (LoxInstance) environment.get(expr.thisSlot);
+    }
+
+    static LoxFunction superMethod(Expr.Super expr, Cell[] upvalues) {
+        LoxClass superclass = (LoxClass) upvalues[expr.upvalue].value;
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
         if (method == null) {
             throw new RuntimeError(expr.method,
                     "Undefined property '" + expr.method.lexeme + "'.");
         }
-
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        // "this" is never global; the Resolver reports it outside a class.
+        if (expr.slot != -1) {
+            return environment.get(expr.slot);
+        }
+        return upvalues[expr.upvalue].value;
     }
 
     @Override
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        return new LoxFunction(expr, environment);
+        return new LoxFunction(expr, capture(expr.captures));
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+        if (expr.slot != -1) {
+            return environment.get(expr.slot);
+        } else if (expr.upvalue != -1) {
+            return upvalues[expr.upvalue].value;
         } else {
-            return globals.get(name);
+            // A global never goes away once defined, so its Cell can be
+            // kept from the first successful lookup on.
+            if (expr.global == null) {
+                expr.global = namespace(expr.module).cell(expr.name);
+            }
+            return expr.global.value;
         }
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        switch (expr.specialization) {
+            case NUMBERS -> {
+                if (isComparison(expr.operator.type)) {
+                    double left = evaluateDouble(expr.left);
+                    Object leftValue = left == left ? NUMBER : notANumber;
+                    double right = evaluateDouble(expr.right);
+                    Object rightValue = right == right ? NUMBER : notANumber;
+                    if (leftValue == NUMBER && rightValue == NUMBER) {
+                        return compare(expr.operator, left, right);
+                    }
+                    expr.specialization = Specialization.GENERIC;
+                    return binary(expr.operator,
+                            leftValue == NUMBER ? (Object) left : leftValue,
+                            rightValue == NUMBER ? (Object) right : rightValue);
+                }
+                // The result is boxed only here, where it leaves arithmetic.
+                double value = evaluateDouble(expr);
+                if (value != value && notANumber != NUMBER) {
+                    return notANumber;
+                }
+                return value;
+            }
+            case STRINGS -> {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                expr.specialization = Specialization.GENERIC;
+                return binary(expr.operator, left, right);
+            }
+            case UNINITIALIZED -> {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                expr.specialization = specialize(expr.operator, left, right);
+                return binary(expr.operator, left, right);
+            }
+            default -> {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                return binary(expr.operator, left, right);
+            }
+        }
+    }
 
-        switch (expr.operator.type) {
+    private static Specialization specialize(Token operator, Object left, Object right) {
+        TokenType type = operator.type;
+        if (left instanceof Double && right instanceof Double
+                && (isArithmetic(type) || isComparison(type))) {
+            return Specialization.NUMBERS;
+        }
+        if (left instanceof String && right instanceof String && type == TokenType.PLUS) {
+            return Specialization.STRINGS;
+        }
+        return Specialization.GENERIC;
+    }
+
+    private static boolean isArithmetic(TokenType type) {
+        return type == TokenType.PLUS || type == TokenType.MINUS
+                || type == TokenType.STAR || type == TokenType.SLASH;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.GREATER || type == TokenType.GREATER_EQUAL
+                || type == TokenType.LESS || type == TokenType.LESS_EQUAL;
+    }
+
+    // evaluateDouble returns NaN for anything that is not a number, and
+    // then leaves the value here; a NaN that is a genuine Lox number sets
+    // it to NUMBER instead. Callers only look here after getting a NaN.
+    private static final Object NUMBER = new Object();
+    private Object notANumber = NUMBER;
+
+    // Evaluates expr without boxing arithmetic on the way: operands of
+    // + - * / nodes specialized to NUMBERS are passed around as primitive
+    // doubles.
+    private double evaluateDouble(Expr expr) {
+        // Operands are mostly variables and literals; reaching them here
+        // directly saves a trip through accept().
+        if (expr instanceof Expr.Variable) {
+            return unbox(visitVariableExpr((Expr.Variable) expr));
+        }
+        if (expr instanceof Expr.Literal) {
+            return unbox(((Expr.Literal) expr).value);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.specialization == Specialization.NUMBERS
+                    && isArithmetic(binary.operator.type)) {
+                double left = evaluateDouble(binary.left);
+                Object leftValue = left == left ? NUMBER : notANumber;
+                double right = evaluateDouble(binary.right);
+                Object rightValue = right == right ? NUMBER : notANumber;
+                if (leftValue == NUMBER && rightValue == NUMBER) {
+                    return arithmetic(binary.operator, left, right);
+                }
+                // The guard failed: fall back to the generic node for good.
+                binary.specialization = Specialization.GENERIC;
+                return unbox(binary(binary.operator,
+                        leftValue == NUMBER ? (Object) left : leftValue,
+                        rightValue == NUMBER ? (Object) right : rightValue));
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Unary
+                && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            double value = evaluateDouble(unary.right);
+            if (value != value && notANumber != NUMBER) {
+                throw new RuntimeError(unary.operator, "Operand must be a number.");
+            }
+            return -value;
+        }
+        return unbox(evaluate(expr));
+    }
+
+    private double unbox(Object value) {
+        if (value instanceof Double) {
+            return number((double) value);
+        }
+        notANumber = value;
+        return Double.NaN;
+    }
+
+    private double number(double value) {
+        if (value != value) {
+            notANumber = NUMBER;
+        }
+        return value;
+    }
+
+    private double arithmetic(Token operator, double left, double right) {
+        double result;
+        TokenType type = operator.type;
+        if (type == TokenType.PLUS) {
+            result = left + right;
+        } else if (type == TokenType.MINUS) {
+            result = left - right;
+        } else if (type == TokenType.STAR) {
+            result = left * right;
+        } else {
+            if (right == 0.0) {
+                throw new RuntimeError(operator, "Deviding zero.");
+            }
+            result = left / right;
+        }
+        return number(result);
+    }
+
+    private static Boolean compare(Token operator, double left, double right) {
+        switch (operator.type) {
             case GREATER -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
+                return left > right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
+                return left >= right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
+                return left < right;
             }
-            case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
+            default -> {
+                return left <= right;
             }
-            case MINUS -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+        }
+    }
+
+    private Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                checkNumberOperands(operator, left, right);
+                return compare(operator, (double) left, (double) right);
+            }
+            case MINUS, STAR, SLASH -> {
+                checkNumberOperands(operator, left, right);
+                return arithmetic(operator, (double) left, (double) right);
             }
             case PLUS -> {
                 if (left instanceof Double && right instanceof Double) {
@@ -362,20 +900,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return stringify(left) + stringify(right);
                 }
 
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings.");
             }
-            case SLASH -> {
-                checkNumberOperands(expr.operator, left, right);
-                if ((double) right == 0.0) {
-                    throw new RuntimeError(expr.operator, "Deviding zero.");
-                }
-                return (double) left / (double) right;
-            }
-            case STAR -> {
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
-            }
             case BANG_EQUAL -> {
                 return !isEqual(left, right);
             }
@@ -414,7 +941,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         }
@@ -424,7 +951,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) {
             return true;
         }
@@ -435,7 +962,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
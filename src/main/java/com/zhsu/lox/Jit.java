@@ -0,0 +1,902 @@
+package com.zhsu.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Compiles hot functions to JVM bytecode. Every function declaration counts
+// its calls in its Profile; at the threshold its body is queued for a
+// background thread, which writes a class for it and loads it as a hidden
+// class. From then on LoxFunction runs the compiled Code instead. A body
+// using anything the compiler does not handle (closures, classes, captured
+// locals) is left to the interpreter for good.
+//
+// While loops are compiled the same way once they have gone round often
+// enough, which is what helps a script that is one long top-level loop: at
+// its next back-edge the Interpreter hands the loop's frame over to the
+// compiled Loop, which runs the rest of it (on-stack replacement).
+final class Jit {
+
+    // A compiled function body. Every class implements run, which takes the
+    // arguments as an array; one for a function of at most four parameters
+    // also overrides the entry point for its arity, which gets them straight
+    // from the call, and its run unpacks the array into that. The other
+    // entry points pack theirs into an array for run, so whichever one a
+    // call reaches, it ends up in the compiled body.
+    abstract static class Code {
+
+        abstract Object run(Interpreter runtime, Cell[] upvalues, LoxInstance instance,
+                Object[] arguments);
+
+        Object run0(Interpreter runtime, Cell[] upvalues, LoxInstance instance) {
+            return run(runtime, upvalues, instance, new Object[0]);
+        }
+
+        Object run1(Interpreter runtime, Cell[] upvalues, LoxInstance instance, Object a0) {
+            return run(runtime, upvalues, instance, new Object[] { a0 });
+        }
+
+        Object run2(Interpreter runtime, Cell[] upvalues, LoxInstance instance, Object a0,
+                Object a1) {
+            return run(runtime, upvalues, instance, new Object[] { a0, a1 });
+        }
+
+        Object run3(Interpreter runtime, Cell[] upvalues, LoxInstance instance, Object a0,
+                Object a1, Object a2) {
+            return run(runtime, upvalues, instance, new Object[] { a0, a1, a2 });
+        }
+
+        Object run4(Interpreter runtime, Cell[] upvalues, LoxInstance instance, Object a0,
+                Object a1, Object a2, Object a3) {
+            return run(runtime, upvalues, instance, new Object[] { a0, a1, a2, a3 });
+        }
+    }
+
+    // A compiled while loop. It starts at the loop's condition, with the
+    // frame's slots as they were at the back-edge it was entered from, and
+    // stores them back when the loop ends.
+    abstract static class Loop {
+        // Which slots held a Cell when the loop was compiled; the code
+        // reads those through the Cell. Slots the loop declares itself are
+        // never Cells to it.
+        boolean[] cells;
+        boolean[] declared;
+
+        // Whether slots is laid out the way this code expects.
+        boolean fits(Object[] slots) {
+            int size = slots == null ? 0 : slots.length;
+            if (size != cells.length) {
+                return false;
+            }
+            for (int slot = 0; slot < size; slot++) {
+                if (!declared[slot] && cells[slot] != slots[slot] instanceof Cell) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        abstract Return run(Interpreter runtime, Cell[] upvalues, Object[] slots);
+    }
+
+    // One per function declaration, shared by every closure made from it.
+    static final class Profile {
+        // Calls so far; only counted until the function is queued.
+        int invocations = 0;
+        volatile Code code = null;
+    }
+
+    // One per while statement.
+    static final class LoopProfile {
+        // Times the loop has gone round; only counted until it is queued.
+        int backEdges = 0;
+        volatile Loop code = null;
+        // With the Tracer on, the loop's current trace, the traces recorded
+        // so far, and the if statements traces do not guess a way through
+        // any more.
+        Tracer.Trace trace = null;
+        int recordings = 0;
+        Set<Stmt.If> unstable = null;
+    }
+
+    // Calls before a function is compiled; 0 turns compilation off.
+    static int threshold = 1000;
+
+    // Back-edges before a loop is compiled; 0 turns that off.
+    static int backEdgeThreshold = 10000;
+
+    // The last error the compiler thread died of, such as a VerifyError
+    // for a bad class, for tests to check; it is printed as well.
+    static volatile Throwable failure = null;
+
+    private static final ExecutorService compiler = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "lox-jit");
+        thread.setDaemon(true);
+        thread.setUncaughtExceptionHandler((dead, error) -> {
+            failure = error;
+            dead.getThreadGroup().uncaughtException(dead, error);
+        });
+        return thread;
+    });
+
+    // Hands a class's constants to its static initializer, which runs on
+    // the compiler thread while the class is defined.
+    private static final ThreadLocal<Object[]> pendingConstants = new ThreadLocal<>();
+
+    private Jit() {
+    }
+
+    // A declaration's profile, made the first time the interpreter makes
+    // a function from it: the VMs and code that never runs need none.
+    static Profile profile(Stmt.Function declaration) {
+        if (declaration.profile == null) {
+            declaration.profile = new Profile();
+        }
+        return declaration.profile;
+    }
+
+    static Profile profile(Expr.Lambda lambda) {
+        if (lambda.profile == null) {
+            lambda.profile = new Profile();
+        }
+        return lambda.profile;
+    }
+
+    // A loop's profile, made the first time the interpreter runs it.
+    static LoopProfile profile(Stmt.While loop) {
+        if (loop.profile == null) {
+            loop.profile = new LoopProfile();
+        }
+        return loop.profile;
+    }
+
+    static void submit(Profile profile, List<Stmt> body, int arity, boolean isMethod,
+            int slotCount, int[] boxedSlots) {
+        if (boxedSlots.length > 0) {
+            return;
+        }
+        compiler.execute(() -> {
+            try {
+                profile.code = compile(body, arity, isMethod, slotCount);
+                if (CallSiteLink.enabled) {
+                    CallSiteLink.compiledCodeInstalled();
+                }
+            } catch (Unsupported | ClassWriter.TooLarge error) {
+                // Stays interpreted.
+            }
+        });
+    }
+
+    static void submit(LoopProfile profile, Stmt.While loop, Object[] slots) {
+        boolean[] cells = new boolean[slots == null ? 0 : slots.length];
+        for (int slot = 0; slot < cells.length; slot++) {
+            cells[slot] = slots[slot] instanceof Cell;
+        }
+        compiler.execute(() -> {
+            try {
+                profile.code = compile(loop, cells);
+            } catch (Unsupported | ClassWriter.TooLarge error) {
+                // Stays interpreted.
+            }
+        });
+    }
+
+    static Object[] constants() {
+        return pendingConstants.get();
+    }
+
+    private static Code compile(List<Stmt> body, int arity, boolean isMethod, int slotCount) {
+        Generator generator = new Generator(arity, isMethod, slotCount, null);
+        byte[] bytes = generator.generate(body);
+        return (Code) load(bytes, generator.constants.toArray());
+    }
+
+    private static Loop compile(Stmt.While loop, boolean[] cells) {
+        boolean[] declared = new boolean[cells.length];
+        declarations(loop, declared);
+        boolean[] boxed = cells.clone();
+        for (int slot = 0; slot < cells.length; slot++) {
+            boxed[slot] &= !declared[slot];
+        }
+        Generator generator = new Generator(0, false, cells.length, boxed);
+        byte[] bytes = generator.generate(loop);
+        Loop code = (Loop) load(bytes, generator.constants.toArray());
+        code.cells = boxed;
+        code.declared = declared;
+        return code;
+    }
+
+    // Marks the slots of the variables stmt declares, outside any block
+    // with a frame of its own.
+    private static void declarations(Stmt stmt, boolean[] declared) {
+        if (stmt instanceof Stmt.Var) {
+            int slot = ((Stmt.Var) stmt).slot;
+            if (slot >= 0 && slot < declared.length) {
+                declared[slot] = true;
+            }
+        } else if (stmt instanceof Stmt.Block && ((Stmt.Block) stmt).slotCount == 0) {
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                declarations(statement, declared);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            declarations(((Stmt.If) stmt).thenBranch, declared);
+            if (((Stmt.If) stmt).elseBranch != null) {
+                declarations(((Stmt.If) stmt).elseBranch, declared);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            declarations(((Stmt.While) stmt).body, declared);
+        }
+    }
+
+    // Defines a class written with constants for its K array, and makes
+    // one of it. A class the JVM rejects is a bug in the generator, so its
+    // VerifyError or ClassFormatError is left to propagate.
+    static Object load(byte[] bytes, Object[] constants) {
+        pendingConstants.set(constants);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class));
+            return constructor.invoke();
+        } catch (IllegalAccessException | NoSuchMethodException error) {
+            throw new Unsupported();
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            // The constructor declares nothing checked.
+            throw new AssertionError(error);
+        } finally {
+            pendingConstants.remove();
+        }
+    }
+
+    // Thrown for code the compilers do not handle.
+    static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String CELL = "com/zhsu/lox/Cell";
+    private static final String INTERPRETER = "com/zhsu/lox/Interpreter";
+    private static final String RUNTIME = "com/zhsu/lox/JitRuntime";
+    private static final String TOKEN = "Lcom/zhsu/lox/Token;";
+    private static final String O = "Ljava/lang/Object;";
+    private static final String I = "Lcom/zhsu/lox/Interpreter;";
+    private static final String METHOD_HANDLE = "Ljava/lang/invoke/MethodHandle;";
+
+    // Writes the class for one function body or loop. The function's locals
+    // live in JVM locals: those of its parameters are the entry point's own
+    // arguments, and the rest follow. A loop copies its frame's slots into
+    // JVM locals on entry and back on exit.
+    private static final class Generator implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+        private static final int RUNTIME_LOCAL = 1;
+        private static final int UPVALUES_LOCAL = 2;
+        private static final int INSTANCE_LOCAL = 3;
+        private static final int SLOTS_LOCAL = 3;
+        private static final int ARGUMENTS_LOCAL = 4;
+        private static final int MAX_FIXED_ARITY = 4;
+
+        private final int arity;
+        private final boolean isMethod;
+        // Not final: a block with a frame of its own, in a loop run on the
+        // globals, has its slots for the time being.
+        private int slotCount;
+        // The JVM local of slot 0; past the arguments array when there is one.
+        private final int firstSlot;
+        // For a loop, the slots holding a Cell; null for a function.
+        private final boolean[] cells;
+        // Objects the code needs that have no constant pool form; loaded
+        // from the class's static K array.
+        final List<Object> constants = new ArrayList<>();
+        // For each linked call site, the index in constants of its invoker,
+        // which the class keeps in static final field L<n> so that the JVM
+        // treats the site as a constant.
+        private final List<Integer> links = new ArrayList<>();
+        private final String superName;
+        private final ClassWriter writer;
+        private ClassWriter.Code code;
+
+        Generator(int arity, boolean isMethod, int slotCount, boolean[] cells) {
+            this.arity = arity;
+            this.isMethod = isMethod;
+            this.slotCount = slotCount;
+            this.firstSlot = arity <= MAX_FIXED_ARITY ? 4 : 5;
+            this.cells = cells;
+            this.superName = cells == null ? "com/zhsu/lox/Jit$Code" : "com/zhsu/lox/Jit$Loop";
+            this.writer = new ClassWriter("com/zhsu/lox/JitCode", superName);
+        }
+
+        byte[] generate(List<Stmt> body) {
+            String prefix = "(" + I + "[Lcom/zhsu/lox/Cell;Lcom/zhsu/lox/LoxInstance;";
+            if (arity <= MAX_FIXED_ARITY) {
+                code = writer.method(0, "run" + arity, prefix + O.repeat(arity) + ")" + O);
+            } else {
+                code = writer.method(0, "run", prefix + "[Ljava/lang/Object;)" + O);
+                for (int slot = 0; slot < arity; slot++) {
+                    code.aload(ARGUMENTS_LOCAL);
+                    code.push(slot);
+                    code.op(ClassWriter.AALOAD, -1);
+                    code.astore(firstSlot + slot);
+                }
+            }
+            int slot = arity;
+            if (isMethod) {
+                code.aload(INSTANCE_LOCAL);
+                code.astore(firstSlot + slot++);
+            }
+            for (; slot < slotCount; slot++) {
+                code.op(ClassWriter.ACONST_NULL, 1);
+                code.astore(firstSlot + slot);
+            }
+            for (Stmt statement : body) {
+                statement.accept(this);
+            }
+            code.op(ClassWriter.ACONST_NULL, 1);
+            code.op(ClassWriter.ARETURN, -1);
+            code.end();
+
+            if (arity <= MAX_FIXED_ARITY) {
+                // run, unpacking the arguments for the entry point above.
+                code = writer.method(0, "run", prefix + "[Ljava/lang/Object;)" + O);
+                for (int local = 0; local < ARGUMENTS_LOCAL; local++) {
+                    code.aload(local);
+                }
+                for (int argument = 0; argument < arity; argument++) {
+                    code.aload(ARGUMENTS_LOCAL);
+                    code.push(argument);
+                    code.op(ClassWriter.AALOAD, -1);
+                }
+                code.invoke(ClassWriter.INVOKEVIRTUAL, "com/zhsu/lox/JitCode", "run" + arity,
+                        prefix + O.repeat(arity) + ")" + O);
+                code.op(ClassWriter.ARETURN, -1);
+                code.end();
+            }
+            return finish();
+        }
+
+        byte[] generate(Stmt.While loop) {
+            code = writer.method(0, "run",
+                    "(" + I + "[Lcom/zhsu/lox/Cell;[Ljava/lang/Object;)Lcom/zhsu/lox/Return;");
+            for (int slot = 0; slot < slotCount; slot++) {
+                code.aload(SLOTS_LOCAL);
+                code.push(slot);
+                code.op(ClassWriter.AALOAD, -1);
+                code.astore(firstSlot + slot);
+            }
+            loop.accept(this);
+            for (int slot = 0; slot < slotCount; slot++) {
+                code.aload(SLOTS_LOCAL);
+                code.push(slot);
+                code.aload(firstSlot + slot);
+                code.op(ClassWriter.AASTORE, -3);
+            }
+            code.op(ClassWriter.ACONST_NULL, 1);
+            code.op(ClassWriter.ARETURN, -1);
+            code.end();
+            return finish();
+        }
+
+        private byte[] finish() {
+            writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC | ClassWriter.ACC_FINAL,
+                    "K", "[Ljava/lang/Object;");
+
+            ClassWriter.Code constructor = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "()V");
+            constructor.aload(0);
+            constructor.invoke(ClassWriter.INVOKESPECIAL, superName, "<init>", "()V");
+            constructor.op(ClassWriter.RETURN, 0);
+            constructor.end();
+
+            ClassWriter.Code init = writer.method(ClassWriter.ACC_STATIC, "<clinit>", "()V");
+            init.invoke(ClassWriter.INVOKESTATIC, "com/zhsu/lox/Jit", "constants",
+                    "()[Ljava/lang/Object;");
+            init.field(ClassWriter.PUTSTATIC, "com/zhsu/lox/JitCode", "K", "[Ljava/lang/Object;");
+            for (int i = 0; i < links.size(); i++) {
+                writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC
+                        | ClassWriter.ACC_FINAL, "L" + i, METHOD_HANDLE);
+                init.field(ClassWriter.GETSTATIC, "com/zhsu/lox/JitCode", "K",
+                        "[Ljava/lang/Object;");
+                init.push(links.get(i));
+                init.op(ClassWriter.AALOAD, -1);
+                init.type(ClassWriter.CHECKCAST, "java/lang/invoke/MethodHandle");
+                init.field(ClassWriter.PUTSTATIC, "com/zhsu/lox/JitCode", "L" + i, METHOD_HANDLE);
+            }
+            init.op(ClassWriter.RETURN, 0);
+            init.end();
+            return writer.toByteArray();
+        }
+
+        private void evaluate(Expr expr) {
+            expr.accept(this);
+        }
+
+        private void constant(Object value, String type) {
+            code.field(ClassWriter.GETSTATIC, "com/zhsu/lox/JitCode", "K", "[Ljava/lang/Object;");
+            code.push(constants.size());
+            code.op(ClassWriter.AALOAD, -1);
+            code.type(ClassWriter.CHECKCAST, type);
+            constants.add(value);
+        }
+
+        private void token(Token token) {
+            constant(token, "com/zhsu/lox/Token");
+        }
+
+        private void local(int slot) {
+            if (slot >= slotCount) {
+                throw new Unsupported();
+            }
+            code.aload(firstSlot + slot);
+            if (isCell(slot)) {
+                code.type(ClassWriter.CHECKCAST, CELL);
+                code.field(ClassWriter.GETFIELD, CELL, "value", O);
+            }
+        }
+
+        private boolean isCell(int slot) {
+            return cells != null && slot < cells.length && cells[slot];
+        }
+
+        private void upvalue(int index) {
+            code.aload(UPVALUES_LOCAL);
+            code.push(index);
+            code.op(ClassWriter.AALOAD, -1);
+            code.field(ClassWriter.GETFIELD, CELL, "value", O);
+        }
+
+        private void truthy() {
+            code.invoke(ClassWriter.INVOKESTATIC, INTERPRETER, "isTruthy", "(" + O + ")Z");
+        }
+
+        private void box() {
+            code.invoke(ClassWriter.INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+        }
+
+        // Jumps to ifFalse unless condition holds. Comparisons branch on
+        // their result directly instead of boxing it first.
+        private void branchUnless(Expr condition, ClassWriter.Label ifFalse) {
+            if (condition instanceof Expr.Binary && comparison((Expr.Binary) condition)) {
+                code.jump(ClassWriter.IFEQ, ifFalse);
+                return;
+            }
+            evaluate(condition);
+            truthy();
+            code.jump(ClassWriter.IFEQ, ifFalse);
+        }
+
+        // Leaves the comparison's boolean on the stack, or returns false
+        // without emitting anything if expr is not a comparison.
+        private boolean comparison(Expr.Binary expr) {
+            String method;
+            switch (expr.operator.type) {
+                case GREATER -> method = "greater";
+                case GREATER_EQUAL -> method = "greaterEqual";
+                case LESS -> method = "less";
+                case LESS_EQUAL -> method = "lessEqual";
+                default -> {
+                    return false;
+                }
+            }
+            evaluate(expr.left);
+            evaluate(expr.right);
+            token(expr.operator);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, method, "(" + O + O + TOKEN + ")Z");
+            return true;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            if (stmt.slotCount > 0) {
+                // Only a top-level block owns a frame, so this is a loop
+                // running on the globals: the block gets fresh JVM locals
+                // each time through.
+                if (slotCount > 0) {
+                    throw new Unsupported();
+                }
+                slotCount = stmt.slotCount;
+                for (int slot = 0; slot < slotCount; slot++) {
+                    code.op(ClassWriter.ACONST_NULL, 1);
+                    code.astore(firstSlot + slot);
+                }
+            }
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            if (stmt.slotCount > 0) {
+                slotCount = 0;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            evaluate(stmt.expression);
+            code.op(ClassWriter.POP, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            ClassWriter.Label elseBranch = new ClassWriter.Label();
+            branchUnless(stmt.condition, elseBranch);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch == null) {
+                code.mark(elseBranch);
+                return null;
+            }
+            ClassWriter.Label end = new ClassWriter.Label();
+            code.jump(ClassWriter.GOTO, end);
+            code.mark(elseBranch);
+            stmt.elseBranch.accept(this);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            evaluate(stmt.expression);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "print", "(" + O + ")V");
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                evaluate(stmt.value);
+            } else {
+                code.op(ClassWriter.ACONST_NULL, 1);
+            }
+            if (cells != null) {
+                // A loop completes the way the Interpreter's statements do.
+                code.aload(RUNTIME_LOCAL);
+                code.op(ClassWriter.SWAP, 0);
+                code.field(ClassWriter.PUTFIELD, INTERPRETER, "returnValue", O);
+                code.field(ClassWriter.GETSTATIC, "com/zhsu/lox/Return", "RETURN",
+                        "Lcom/zhsu/lox/Return;");
+            }
+            code.op(ClassWriter.ARETURN, -1);
+            code.unreachable();
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.slot == -1 || stmt.boxed) {
+                throw new Unsupported();
+            }
+            if (stmt.initializer != null) {
+                evaluate(stmt.initializer);
+            } else {
+                code.op(ClassWriter.ACONST_NULL, 1);
+            }
+            code.astore(firstSlot + stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            ClassWriter.Label start = new ClassWriter.Label();
+            ClassWriter.Label exit = new ClassWriter.Label();
+            code.mark(start);
+            branchUnless(stmt.condition, exit);
+            stmt.body.accept(this);
+            code.jump(ClassWriter.GOTO, start);
+            code.mark(exit);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.slot != -1 && isCell(expr.slot)) {
+                code.aload(firstSlot + expr.slot);
+                code.type(ClassWriter.CHECKCAST, CELL);
+                evaluate(expr.value);
+                code.op(ClassWriter.DUP_X1, 1);
+                code.field(ClassWriter.PUTFIELD, CELL, "value", O);
+            } else if (expr.slot != -1) {
+                evaluate(expr.value);
+                code.op(ClassWriter.DUP, 1);
+                code.astore(firstSlot + expr.slot);
+            } else if (expr.upvalue != -1) {
+                code.aload(UPVALUES_LOCAL);
+                code.push(expr.upvalue);
+                code.op(ClassWriter.AALOAD, -1);
+                evaluate(expr.value);
+                code.op(ClassWriter.DUP_X1, 1);
+                code.field(ClassWriter.PUTFIELD, CELL, "value", O);
+            } else {
+                evaluate(expr.value);
+                constant(expr, "com/zhsu/lox/Expr$Assign");
+                code.aload(RUNTIME_LOCAL);
+                code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "assignGlobal",
+                        "(" + O + "Lcom/zhsu/lox/Expr$Assign;" + I + ")" + O);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            if (comparison(expr)) {
+                box();
+                return null;
+            }
+            String method;
+            switch (expr.operator.type) {
+                case PLUS -> method = "add";
+                case MINUS -> method = "subtract";
+                case STAR -> method = "multiply";
+                case SLASH -> method = "divide";
+                case EQUAL_EQUAL, BANG_EQUAL -> {
+                    evaluate(expr.left);
+                    evaluate(expr.right);
+                    code.invoke(ClassWriter.INVOKESTATIC, INTERPRETER, "isEqual",
+                            "(" + O + O + ")Z");
+                    if (expr.operator.type == TokenType.BANG_EQUAL) {
+                        code.push(1);
+                        code.op(ClassWriter.IXOR, -1);
+                    }
+                    box();
+                    return null;
+                }
+                default -> {
+                    // The comma operator.
+                    evaluate(expr.left);
+                    code.op(ClassWriter.POP, -1);
+                    evaluate(expr.right);
+                    code.op(ClassWriter.POP, -1);
+                    code.op(ClassWriter.ACONST_NULL, 1);
+                    return null;
+                }
+            }
+            evaluate(expr.left);
+            evaluate(expr.right);
+            token(expr.operator);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, method, "(" + O + O + TOKEN + ")" + O);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            // The interpreter links a site the first time it runs, which it
+            // may be doing right now; one that has not run yet is compiled
+            // as an ordinary call.
+            CallSiteLink link = expr.link;
+            if (link != null) {
+                code.field(ClassWriter.GETSTATIC, "com/zhsu/lox/JitCode", "L" + links.size(),
+                        METHOD_HANDLE);
+                links.add(constants.size());
+                constants.add(link.invoker);
+            }
+
+            // Leaves the callee and the receiver an unbound callee is
+            // invoked on.
+            if (expr.callee instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get) expr.callee;
+                evaluate(get.object);
+                code.op(ClassWriter.DUP, 1);
+                constant(get, "com/zhsu/lox/Expr$Get");
+                code.aload(RUNTIME_LOCAL);
+                code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "property",
+                        "(" + O + "Lcom/zhsu/lox/Expr$Get;" + I + ")" + O);
+                code.op(ClassWriter.SWAP, 0);
+            } else if (expr.callee instanceof Expr.Super) {
+                Expr.Super superExpr = (Expr.Super) expr.callee;
+                superMethod(superExpr);
+                superReceiver(superExpr);
+            } else {
+                evaluate(expr.callee);
+                code.op(ClassWriter.ACONST_NULL, 1);
+            }
+
+            int count = expr.arguments.size();
+            StringBuilder descriptor = new StringBuilder("(" + O + O);
+            if (link != null) {
+                code.type(ClassWriter.CHECKCAST, "com/zhsu/lox/LoxInstance");
+                code.aload(RUNTIME_LOCAL);
+                descriptor = new StringBuilder("(" + O + "Lcom/zhsu/lox/LoxInstance;" + I);
+            }
+            if (count <= 4) {
+                for (Expr argument : expr.arguments) {
+                    evaluate(argument);
+                    descriptor.append(O);
+                }
+            } else {
+                code.push(count);
+                code.type(ClassWriter.ANEWARRAY, OBJECT);
+                for (int i = 0; i < count; i++) {
+                    code.op(ClassWriter.DUP, 1);
+                    code.push(i);
+                    evaluate(expr.arguments.get(i));
+                    code.op(ClassWriter.AASTORE, -3);
+                }
+                descriptor.append("[Ljava/lang/Object;");
+            }
+            if (link != null) {
+                descriptor.append(")").append(O);
+                code.invoke(ClassWriter.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle",
+                        "invokeExact", descriptor.toString());
+                return null;
+            }
+            descriptor.append(I).append("Lcom/zhsu/lox/Expr$Call;)").append(O);
+            code.aload(RUNTIME_LOCAL);
+            constant(expr, "com/zhsu/lox/Expr$Call");
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, count <= 4 ? "call" + count : "call",
+                    descriptor.toString());
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            evaluate(expr.object);
+            constant(expr, "com/zhsu/lox/Expr$Get");
+            code.aload(RUNTIME_LOCAL);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "get",
+                    "(" + O + "Lcom/zhsu/lox/Expr$Get;" + I + ")" + O);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            evaluate(expr.object);
+            constant(expr, "com/zhsu/lox/Expr$Set");
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "setTarget",
+                    "(" + O + "Lcom/zhsu/lox/Expr$Set;)Lcom/zhsu/lox/LoxInstance;");
+            evaluate(expr.value);
+            constant(expr, "com/zhsu/lox/Expr$Set");
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "set",
+                    "(Lcom/zhsu/lox/LoxInstance;" + O + "Lcom/zhsu/lox/Expr$Set;)" + O);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            superMethod(expr);
+            superReceiver(expr);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "bind",
+                    "(Lcom/zhsu/lox/LoxFunction;" + O + ")" + O);
+            return null;
+        }
+
+        private void superMethod(Expr.Super expr) {
+            constant(expr, "com/zhsu/lox/Expr$Super");
+            code.aload(UPVALUES_LOCAL);
+            code.invoke(ClassWriter.INVOKESTATIC, INTERPRETER, "superMethod",
+                    "(Lcom/zhsu/lox/Expr$Super;[Lcom/zhsu/lox/Cell;)Lcom/zhsu/lox/LoxFunction;");
+        }
+
+        private void superReceiver(Expr.Super expr) {
+            if (expr.thisUpvalue != -1) {
+                upvalue(expr.thisUpvalue);
+            } else {
+                local(expr.thisSlot);
+            }
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            if (expr.slot != -1) {
+                local(expr.slot);
+            } else {
+                upvalue(expr.upvalue);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            evaluate(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            if (value == null) {
+                code.op(ClassWriter.ACONST_NULL, 1);
+            } else if (value instanceof Boolean) {
+                code.field(ClassWriter.GETSTATIC, BOOLEAN, (boolean) value ? "TRUE" : "FALSE",
+                        "Ljava/lang/Boolean;");
+            } else if (value instanceof String) {
+                code.ldc((String) value);
+            } else {
+                constant(value, "java/lang/Double");
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            ClassWriter.Label end = new ClassWriter.Label();
+            evaluate(expr.left);
+            code.op(ClassWriter.DUP, 1);
+            truthy();
+            code.jump(expr.operator.type == TokenType.OR ? ClassWriter.IFNE : ClassWriter.IFEQ,
+                    end);
+            code.op(ClassWriter.POP, -1);
+            evaluate(expr.right);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            evaluate(expr.right);
+            switch (expr.operator.type) {
+                case BANG -> {
+                    truthy();
+                    code.push(1);
+                    code.op(ClassWriter.IXOR, -1);
+                    box();
+                }
+                case MINUS -> {
+                    token(expr.operator);
+                    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "negate",
+                            "(" + O + TOKEN + ")" + O);
+                }
+                default -> {
+                    code.op(ClassWriter.POP, -1);
+                    code.op(ClassWriter.ACONST_NULL, 1);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitConditionalExpr(Expr.Conditional expr) {
+            ClassWriter.Label falseValue = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            branchUnless(expr.condition, falseValue);
+            evaluate(expr.trueValue);
+            code.jump(ClassWriter.GOTO, end);
+            code.mark(falseValue);
+            evaluate(expr.FalseValue);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.slot != -1) {
+                local(expr.slot);
+            } else if (expr.upvalue != -1) {
+                upvalue(expr.upvalue);
+            } else {
+                constant(expr, "com/zhsu/lox/Expr$Variable");
+                code.aload(RUNTIME_LOCAL);
+                code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "global",
+                        "(Lcom/zhsu/lox/Expr$Variable;" + I + ")" + O);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLambdaExpr(Expr.Lambda expr) {
+            throw new Unsupported();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.zhsu.lox;
+
+// The operations code compiled by the Jit calls into. Each one does what
+// the Interpreter's visitor for the same node does, given values the
+// compiled code has already computed.
+final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    static Object global(Expr.Variable expr, Interpreter runtime) {
+        if (expr.global == null) {
+            expr.global = runtime.namespace(expr.module).cell(expr.name);
+        }
+        return expr.global.value;
+    }
+
+    static Object assignGlobal(Object value, Expr.Assign expr, Interpreter runtime) {
+        if (expr.global == null) {
+            expr.global = runtime.namespace(expr.module).cell(expr.name);
+        }
+        expr.global.value = value;
+        return value;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String || right instanceof String) {
+            return Interpreter.stringify(left) + Interpreter.stringify(right);
+        }
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        if ((double) right == 0.0) {
+            throw new RuntimeError(operator, "Deviding zero.");
+        }
+        return (double) left / (double) right;
+    }
+
+    static double divide(double left, double right, Token operator) {
+        if (right == 0.0) {
+            throw new RuntimeError(operator, "Deviding zero.");
+        }
+        return left / right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return;
+        }
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static Object negate(Object operand, Token operator) {
+        if (operand instanceof Double) {
+            return -(double) operand;
+        }
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object get(Object object, Expr.Get expr, Interpreter runtime) {
+        LoxInstance instance = Interpreter.instanceOf(object, expr.name);
+        Object result = PropertyCache.of(expr).get(instance, expr.name);
+        if (Interpreter.isGetter(result)) {
+            return runtime.callGetter((LoxFunction) result, instance);
+        }
+        if (Interpreter.isUnbound(result)) {
+            return ((LoxFunction) result).bind(instance);
+        }
+        return result;
+    }
+
+    // The callee of obj.method(...); an unbound method is left for the
+    // call to invoke on obj.
+    static Object property(Object object, Expr.Get expr, Interpreter runtime) {
+        LoxInstance instance = Interpreter.instanceOf(object, expr.name);
+        Object callee = PropertyCache.of(expr).get(instance, expr.name);
+        if (Interpreter.isGetter(callee)) {
+            return runtime.callGetter((LoxFunction) callee, instance);
+        }
+        return callee;
+    }
+
+    static LoxInstance setTarget(Object object, Expr.Set expr) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name,
+                    "Only instances have fields.");
+        }
+        return (LoxInstance) object;
+    }
+
+    static Object set(LoxInstance instance, Object value, Expr.Set expr) {
+        PropertyCache.of(expr).set(instance, expr.name, value);
+        return value;
+    }
+
+    static Object bind(LoxFunction method, Object receiver) {
+        return method.bind((LoxInstance) receiver);
+    }
+
+    // As in the Interpreter, an unbound callee is a method looked up on
+    // receiver, which is invoked on it directly.
+
+    static Object call0(Object callee, Object receiver, Interpreter runtime, Expr.Call call) {
+        LoxCallable function = Interpreter.callable(call, callee, 0);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke0(runtime, (LoxInstance) receiver);
+        }
+        return function.call0(runtime);
+    }
+
+    static Object call1(Object callee, Object receiver, Object a0, Interpreter runtime,
+            Expr.Call call) {
+        LoxCallable function = Interpreter.callable(call, callee, 1);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke1(runtime, (LoxInstance) receiver, a0);
+        }
+        return function.call1(runtime, a0);
+    }
+
+    static Object call2(Object callee, Object receiver, Object a0, Object a1,
+            Interpreter runtime, Expr.Call call) {
+        LoxCallable function = Interpreter.callable(call, callee, 2);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke2(runtime, (LoxInstance) receiver, a0, a1);
+        }
+        return function.call2(runtime, a0, a1);
+    }
+
+    static Object call3(Object callee, Object receiver, Object a0, Object a1, Object a2,
+            Interpreter runtime, Expr.Call call) {
+        LoxCallable function = Interpreter.callable(call, callee, 3);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke3(runtime, (LoxInstance) receiver,
+                    a0, a1, a2);
+        }
+        return function.call3(runtime, a0, a1, a2);
+    }
+
+    static Object call4(Object callee, Object receiver, Object a0, Object a1, Object a2,
+            Object a3, Interpreter runtime, Expr.Call call) {
+        LoxCallable function = Interpreter.callable(call, callee, 4);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke4(runtime, (LoxInstance) receiver,
+                    a0, a1, a2, a3);
+        }
+        return function.call4(runtime, a0, a1, a2, a3);
+    }
+
+    static Object call(Object callee, Object receiver, Object[] arguments,
+            Interpreter runtime, Expr.Call call) {
+        LoxCallable function = Interpreter.callable(call, callee, arguments.length);
+        if (Interpreter.isUnbound(function)) {
+            return ((LoxFunction) function).invoke(runtime, (LoxInstance) receiver, arguments);
+        }
+        return function.call(runtime, arguments);
+    }
+}
@@ -3,31 +3,111 @@ package com.zhsu.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
 
+    private enum Engine {
+        TREE,
+        CLOSURE,
+        VM,
+        REGISTER
+    }
+
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
+    private static final RegisterVM registerVm = new RegisterVM();
+    private static final ModuleLoader modules = new ModuleLoader();
+    private static Engine engine = Engine.TREE;
+    private static boolean streaming = false;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // The module a thread is loading, for its errors to name; unset for
+    // the main script.
+    static final ThreadLocal<Path> file = new ThreadLocal<>();
+    // Set while a thread is loading a module: the errors it reports go here
+    // instead, for the ModuleLoader to print once every module is loaded.
+    static final ThreadLocal<List<String>> errors = new ThreadLocal<>();
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        List<String> rest = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = parseEngine(arg.substring("--engine=".length()));
+            } else if (arg.equals("--link-calls")) {
+                CallSiteLink.enabled = true;
+            } else if (arg.startsWith("--jit-threshold=")) {
+                Jit.threshold = parseCount(arg.substring("--jit-threshold=".length()));
+            } else if (arg.startsWith("--osr-threshold=")) {
+                Jit.backEdgeThreshold = parseCount(arg.substring("--osr-threshold=".length()));
+            } else if (arg.equals("--trace")) {
+                Tracer.enabled = true;
+            } else if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--profile-opcodes")) {
+                vm.profiling = true;
+            } else {
+                rest.add(arg);
+            }
+        }
+
+        if (rest.size() > 1 || engine == null || Jit.threshold < 0
+                || Jit.backEdgeThreshold < 0) {
+            System.out.println("Usage: jlox [--engine=tree|closure|vm|register] [--jit-threshold=n]"
+                    + " [--osr-threshold=n] [--trace] [--link-calls] [--profile-opcodes]"
+                    + " [--stream] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (rest.size() == 1) {
+            runFile(rest.get(0));
         } else {
             runPrompt();
         }
     }
 
+    private static Engine parseEngine(String name) {
+        for (Engine candidate : Engine.values()) {
+            if (candidate.name().equalsIgnoreCase(name)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // Returns -1 if text is not a count.
+    private static int parseCount(String text) {
+        try {
+            int count = Integer.parseInt(text);
+            return count >= 0 ? count : -1;
+        } catch (NumberFormatException error) {
+            return -1;
+        }
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // Imports are relative to the script's own directory.
+        Path script = Paths.get(path).toAbsolutePath();
+        // The scanner reads the file's bytes where they are mapped, so a
+        // big script is never copied into the heap whole.
+        try (FileChannel channel = FileChannel.open(script)) {
+            if (channel.size() > Scanner.MAX_SOURCE) {
+                error(1, "Script is larger than 2 GB.");
+                System.exit(65);
+            }
+            Scanner scanner = new Scanner(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (streaming) {
+                runStreaming(scanner, script.getParent());
+            } else {
+                run(scanner, script.getParent());
+            }
+        }
+        if (vm.profiling) {
+            vm.dumpProfile(System.err, 30);
+        }
 
         // Indicate an error in the exit code.
         if (hadError) {
@@ -48,14 +128,13 @@ public class Lox {
             if (line == null) {
                 break;
             }
-            run(line);
+            run(new Scanner(line), Paths.get(""));
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static void run(Scanner scanner, Path directory) {
+        TokenBuffer tokens = scanner.scan();
 
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
@@ -63,13 +142,56 @@ public class Lox {
             return;
         }
 
-        Resolver resolver = new Resolver(interpreter);
+        modules.load(statements, directory);
+        if (hadError) {
+            return;
+        }
+
+        execute(statements);
+    }
+
+    // Resolves and runs each top-level declaration as soon as it is
+    // parsed, the way the prompt runs lines: output starts before the rest
+    // of the script is even scanned, and what has run can be collected.
+    // Nothing runs after an error, but later syntax errors are still
+    // reported.
+    private static void runStreaming(Scanner scanner, Path directory) {
+        Parser parser = new Parser(scanner);
+        while (parser.hasNext() && !hadRuntimeError) {
+            Stmt statement = parser.next();
+            if (!hadError) {
+                modules.load(List.of(statement), directory);
+            }
+            if (!hadError) {
+                execute(List.of(statement));
+            }
+        }
+    }
+
+    private static void execute(List<Stmt> statements) {
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
         if (hadError) {
             return;
         }
 
-        interpreter.interpret(statements);
+        if (engine == Engine.VM) {
+            VmFunction script = new Compiler().compile(statements);
+            if (hadError) {
+                return;
+            }
+            vm.interpret(script);
+        } else if (engine == Engine.REGISTER) {
+            RegisterVM.Function script = new RegisterCompiler(registerVm).compile(statements);
+            if (hadError) {
+                return;
+            }
+            registerVm.interpret(script);
+        } else if (engine == Engine.CLOSURE) {
+            interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
     static void error(int line, String message) {
@@ -78,11 +200,26 @@ public class Lox {
 
     private static void report(int line, String where,
             String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
+        Path path = file.get();
+        String error = "[" + (path != null ? path + " " : "") + "line " + line + "] Error"
+                + where + ": " + message;
+        List<String> collected = errors.get();
+        if (collected != null) {
+            collected.add(error);
+            return;
+        }
+        System.err.println(error);
         hadError = true;
     }
 
+    // Prints errors collected while loading modules.
+    static void report(List<String> collected) {
+        for (String error : collected) {
+            System.err.println(error);
+            hadError = true;
+        }
+    }
+
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
@@ -92,8 +229,9 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
+        Path path = error.token != null ? error.token.file : null;
         System.err.println(error.getMessage()
-                + "\n[line " + error.token.line + "]");
+                + "\n[" + (path != null ? path + " " : "") + "line " + error.line + "]");
         hadRuntimeError = true;
     }
 }
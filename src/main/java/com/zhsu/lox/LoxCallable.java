@@ -1,10 +1,31 @@
 package com.zhsu.lox;
 
-import java.util.List;
-
 interface LoxCallable {
 
     int arity();
 
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    // Entry points for the common small arities, so a call does not need
+    // an argument array. The caller has already checked the arity.
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a0) {
+        return call(interpreter, new Object[] { a0 });
+    }
+
+    default Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return call(interpreter, new Object[] { a0, a1 });
+    }
+
+    default Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return call(interpreter, new Object[] { a0, a1, a2 });
+    }
+
+    default Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return call(interpreter, new Object[] { a0, a1, a2, a3 });
+    }
 }
@@ -1,42 +1,47 @@
 package com.zhsu.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass extends LoxInstance implements LoxCallable {
 
     final String name;
     final LoxClass superclass;
-    final Map<String, LoxFunction> methods;
-    final Map<String, LoxFunction> staticMethods;
+    // Both tables already include everything inherited from superclasses,
+    // so a lookup never walks the chain.
+    private final Map<String, LoxFunction> methods;
+    private final Map<String, LoxFunction> staticMethods;
+    private final LoxFunction initializer;
+    // Root of the shape tree shared by this class's instances.
+    final Shape instanceShape = new Shape();
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods,
             Map<String, LoxFunction> staticMethods) {
         super(null);
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
-        this.staticMethods = staticMethods;
+        this.methods = flatten(superclass == null ? null : superclass.methods, methods);
+        this.staticMethods = flatten(superclass == null ? null : superclass.staticMethods,
+                staticMethods);
+        this.initializer = this.methods.get("init");
     }
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
+    private static Map<String, LoxFunction> flatten(Map<String, LoxFunction> inherited,
+            Map<String, LoxFunction> own) {
+        if (inherited == null) {
+            return own;
         }
-        return null;
+        Map<String, LoxFunction> table = new HashMap<>(inherited);
+        table.putAll(own);
+        return table;
+    }
+
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 
     LoxFunction findStaticMethod(String name) {
-        if (staticMethods.containsKey(name)) {
-            return staticMethods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findStaticMethod(name);
-        }
-        return null;
+        return staticMethods.get(name);
     }
 
     @Override
@@ -45,32 +50,58 @@ class LoxClass extends LoxInstance implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-            List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke0(interpreter, instance);
         }
         return instance;
     }
 
+    // A class without an initializer takes no arguments, so from here on
+    // there is always one.
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke1(interpreter, instance, a0);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke2(interpreter, instance, a0, a1);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke3(interpreter, instance, a0, a1, a2);
+        return instance;
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.invoke4(interpreter, instance, a0, a1, a2, a3);
+        return instance;
+    }
+
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null)
             return 0;
         return initializer.arity();
     }
-
-    @Override
-    Object get(Token name) {
-        // First check for static methods
-        LoxFunction staticMethod = findStaticMethod(name.lexeme);
-        if (staticMethod != null) {
-            return staticMethod;
-        }
-        throw new RuntimeError(name,
-                "Undefined property '" + name.lexeme + "'.");
-    }
 }
@@ -6,34 +6,75 @@ class LoxFunction implements LoxCallable {
 
     private final List<Token> params;
     private final List<Stmt> body;
-    private final Environment closure;
+    // The body as built by the ClosureCompiler; null when the tree-walker
+    // runs it.
+    private final ClosureCompiler.Executor code;
+    // Counts calls to the declaration and holds its compiled form.
+    private final Jit.Profile profile;
+    // Size of the call frame: parameters plus the body's own locals.
+    private final int slotCount;
+    // The Cells of the variables the body captures, nothing more.
+    private final Cell[] upvalues;
+    // Slots of parameters (and "this") that closures capture.
+    private final int[] boxedSlots;
     private final Token name;
     private final boolean isInitializer;
     private final boolean isGetter;
+    // Instance methods keep "this" in their frame, in the slot after the
+    // parameters.
+    private final boolean isMethod;
+    // The receiver of a method used as a value; null while unbound.
+    private final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
-        this.name = declaration.name;
-        this.params = declaration.params;
-        this.body = declaration.body;
-        this.closure = closure;
-        this.isInitializer = isInitializer;
-        this.isGetter = declaration.isGetter;
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, false);
+    }
+
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer,
+            boolean isMethod) {
+        this(declaration, upvalues, isInitializer, isMethod, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer,
+            boolean isMethod, ClosureCompiler.Executor code) {
+        this(declaration.name, declaration.params, declaration.body, code,
+                Jit.profile(declaration), declaration.slotCount, upvalues, declaration.boxedSlots, isInitializer,
+                declaration.isGetter, isMethod, null);
+    }
+
+    LoxFunction(Expr.Lambda lambda, Cell[] upvalues) {
+        this(lambda, upvalues, null);
+    }
+
+    LoxFunction(Expr.Lambda lambda, Cell[] upvalues, ClosureCompiler.Executor code) {
+        this(null, lambda.params, lambda.body, code, Jit.profile(lambda), lambda.slotCount, upvalues,
+                lambda.boxedSlots, false, false, false, null);
     }
 
-    LoxFunction(Expr.Lambda lambda, Environment closure) {
-        this.name = null;
-        this.params = lambda.params;
-        this.body = lambda.body;
-        this.closure = closure;
-        this.isInitializer = false;
-        this.isGetter = false;
+    private LoxFunction(Token name, List<Token> params, List<Stmt> body,
+            ClosureCompiler.Executor code, Jit.Profile profile, int slotCount, Cell[] upvalues, int[] boxedSlots,
+            boolean isInitializer, boolean isGetter, boolean isMethod, LoxInstance receiver) {
+        this.name = name;
+        this.params = params;
+        this.body = body;
+        this.code = code;
+        this.profile = profile;
+        this.slotCount = slotCount;
+        this.upvalues = upvalues;
+        this.boxedSlots = boxedSlots;
+        this.isInitializer = isInitializer;
+        this.isGetter = isGetter;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
     }
 
+    // Static methods and plain functions have no receiver to bind.
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(new Stmt.Function(name, params, body, isGetter),
-                environment, isInitializer);
+        if (!isMethod) {
+            return this;
+        }
+        return new LoxFunction(name, params, body, code, profile, slotCount,
+                upvalues, boxedSlots, isInitializer, isGetter, isMethod, instance);
     }
 
     @Override
@@ -42,24 +83,140 @@ class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-            List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < params.size(); i++) {
-            environment.define(params.get(i).lexeme,
-                    arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        return invoke1(interpreter, receiver, a0);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return invoke2(interpreter, receiver, a0, a1);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return invoke3(interpreter, receiver, a0, a1, a2);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return invoke4(interpreter, receiver, a0, a1, a2, a3);
+    }
+
+    // The invoke methods call the function with instance as "this", without
+    // binding it first.
+
+    Object invoke(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+        Jit.Code compiled = profile.code;
+        if (compiled != null) {
+            return completed(compiled.run(interpreter, upvalues, instance, arguments), instance);
+        }
+        Environment environment = frame(instance);
+        for (int i = 0; i < arguments.length; i++) {
+            environment.define(i, arguments[i]);
+        }
+        return run(interpreter, environment, instance);
+    }
+
+    Object invoke0(Interpreter interpreter, LoxInstance instance) {
+        Jit.Code compiled = profile.code;
+        if (compiled != null) {
+            return completed(compiled.run0(interpreter, upvalues, instance), instance);
+        }
+        return run(interpreter, frame(instance), instance);
+    }
+
+    Object invoke1(Interpreter interpreter, LoxInstance instance, Object a0) {
+        Jit.Code compiled = profile.code;
+        if (compiled != null) {
+            return completed(compiled.run1(interpreter, upvalues, instance, a0), instance);
+        }
+        Environment environment = frame(instance);
+        environment.define(0, a0);
+        return run(interpreter, environment, instance);
+    }
+
+    Object invoke2(Interpreter interpreter, LoxInstance instance, Object a0, Object a1) {
+        Jit.Code compiled = profile.code;
+        if (compiled != null) {
+            return completed(compiled.run2(interpreter, upvalues, instance, a0, a1), instance);
+        }
+        Environment environment = frame(instance);
+        environment.define(0, a0);
+        environment.define(1, a1);
+        return run(interpreter, environment, instance);
+    }
+
+    Object invoke3(Interpreter interpreter, LoxInstance instance, Object a0, Object a1,
+            Object a2) {
+        Jit.Code compiled = profile.code;
+        if (compiled != null) {
+            return completed(compiled.run3(interpreter, upvalues, instance, a0, a1, a2),
+                    instance);
+        }
+        Environment environment = frame(instance);
+        environment.define(0, a0);
+        environment.define(1, a1);
+        environment.define(2, a2);
+        return run(interpreter, environment, instance);
+    }
+
+    Object invoke4(Interpreter interpreter, LoxInstance instance, Object a0, Object a1,
+            Object a2, Object a3) {
+        Jit.Code compiled = profile.code;
+        if (compiled != null) {
+            return completed(compiled.run4(interpreter, upvalues, instance, a0, a1, a2, a3),
+                    instance);
+        }
+        Environment environment = frame(instance);
+        environment.define(0, a0);
+        environment.define(1, a1);
+        environment.define(2, a2);
+        environment.define(3, a3);
+        return run(interpreter, environment, instance);
+    }
+
+    private Environment frame(LoxInstance instance) {
+        Environment environment = new Environment(slotCount);
+        if (isMethod) {
+            environment.define(params.size(), instance);
         }
+        return environment;
+    }
 
-        try {
-            interpreter.executeBlock(body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer)
-                return closure.getAt(0, "this");
-            return returnValue.value;
+    private Object run(Interpreter interpreter, Environment environment, LoxInstance instance) {
+        for (int slot : boxedSlots) {
+            environment.box(slot);
+        }
+        // Counting stops at the threshold, so a body left interpreted is
+        // never queued again, and never at all while the threshold is 0.
+        if (profile.invocations < Jit.threshold && ++profile.invocations == Jit.threshold) {
+            Jit.submit(profile, body, params.size(), isMethod, slotCount, boxedSlots);
         }
+        Return completion = code != null
+                ? code.execute(environment, upvalues)
+                : interpreter.executeBody(body, environment, upvalues);
+        return completed(completion == Return.RETURN ? interpreter.returnValue : null, instance);
+    }
+
+    private Object completed(Object result, LoxInstance instance) {
         if (isInitializer)
-            return closure.getAt(0, "this");
-        return null;
+            return initialized(instance);
+        return result;
+    }
+
+    private Object initialized(LoxInstance instance) {
+        // A static "init" captures its class as its first upvalue.
+        return isMethod ? instance : upvalues[0].value;
     }
 
     @Override
@@ -71,4 +228,25 @@ class LoxFunction implements LoxCallable {
         return isGetter;
     }
 
+    boolean isInitializer() {
+        return isInitializer;
+    }
+
+    LoxInstance receiver() {
+        return receiver;
+    }
+
+    Cell[] upvalues() {
+        return upvalues;
+    }
+
+    Jit.Code compiled() {
+        return profile.code;
+    }
+
+    // True for a method fetched from a class that still needs a receiver.
+    boolean isUnbound() {
+        return isMethod && receiver == null;
+    }
+
 }
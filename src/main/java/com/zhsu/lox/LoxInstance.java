@@ -1,16 +1,17 @@
 package com.zhsu.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-
 class LoxInstance {
 
     private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private Shape shape;
+    private Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        // A LoxClass is itself an instance but has no class to share a
+        // shape tree with.
+        this.shape = klass != null ? klass.instanceShape : new Shape();
+        this.fields = shape.newFields();
     }
 
     @Override
@@ -18,21 +19,34 @@ class LoxInstance {
         return klass.name + " instance";
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+    LoxClass klass() {
+        return klass;
+    }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) {
-            return method.bind(this);
-        }
+    Shape shape() {
+        return shape;
+    }
 
-        throw new RuntimeError(name,
-                "Undefined property '" + name.lexeme + "'.");
+    Object field(int slot) {
+        return fields[slot];
+    }
+
+    // Stores into slot, moving to target first if the store adds a field.
+    void store(Shape target, int slot, Object value) {
+        if (shape != target) {
+            shape = target;
+            fields = target.fit(fields);
+        }
+        fields[slot] = value;
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            shape = shape.withField(name.lexeme);
+            fields = shape.fit(fields);
+            slot = shape.size() - 1;
+        }
+        fields[slot] = value;
     }
 }
@@ -0,0 +1,63 @@
+package com.zhsu.lox;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// A script file some import statement names. There is one per file however
+// many import it; its globals get a namespace of their own when it runs,
+// which the Interpreter keeps per Module.
+final class Module {
+
+    final Path path;
+    // Parsed and resolved, with each import's Module filled in; set once
+    // the ModuleLoader is done.
+    List<Stmt> statements;
+    // The names its top-level code declares, which are what an import
+    // defines in the importer; not the ones it imports itself.
+    final List<Token> exports = new ArrayList<>();
+    // What loading it reported; the ModuleLoader prints them once every
+    // module is loaded, from the thread that started it.
+    final List<String> errors = new ArrayList<>();
+
+    Module(Path path) {
+        this.path = path;
+    }
+
+    // Scans, parses and resolves the file; called on a worker thread.
+    void load() throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            if (channel.size() > Scanner.MAX_SOURCE) {
+                Lox.error(1, "Module is larger than 2 GB.");
+                statements = List.of();
+                return;
+            }
+            Scanner scanner = new Scanner(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path);
+            statements = new Parser(scanner.scan()).parse();
+        }
+
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var) {
+                exports.add(((Stmt.Var) statement).name);
+            } else if (statement instanceof Stmt.Function) {
+                exports.add(((Stmt.Function) statement).name);
+            } else if (statement instanceof Stmt.Class) {
+                exports.add(((Stmt.Class) statement).name);
+            }
+        }
+
+        // A statement with a syntax error is left out as null, and resolving
+        // the rest would only report more of the same.
+        if (!statements.contains(null)) {
+            new Resolver(this).resolve(statements);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package com.zhsu.lox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+// Loads the modules a script imports, and the ones those import in turn.
+// Each file is scanned, parsed and resolved by a task of its own on a
+// ForkJoinPool, forked as soon as the file importing it has been parsed, so
+// a program of many files loads on every core at once. Modules are cached
+// by path for the whole run, so a file is loaded once however many import
+// it.
+final class ModuleLoader {
+
+    private final ForkJoinPool pool;
+    private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+    // Modules already checked for import cycles, with all they import.
+    private final Set<Module> linked = new HashSet<>();
+
+    ModuleLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    ModuleLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Loads what statements import, their paths taken relative to
+    // directory, and fills in each import's Module. The errors the tasks
+    // report are kept per task and only printed here, once they are all
+    // done, so Lox's error state is only ever set from this thread.
+    void load(List<Stmt> statements, Path directory) {
+        List<String> errors = new ArrayList<>();
+        pool.invoke(new Load(statements, directory, errors));
+        Lox.report(errors);
+        link(statements, new ArrayList<>());
+    }
+
+    // Loads one module and forks a task for each module it imports that no
+    // other task has taken yet; done once all of those are.
+    private final class Load extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        // Null for the script the loading started from.
+        private final Module module;
+        // The import that asked for module, and the file it is in.
+        private final Stmt.Import stmt;
+        private final Path importer;
+        private List<Stmt> statements;
+        private final Path directory;
+        private final List<String> errors;
+
+        Load(List<Stmt> statements, Path directory, List<String> errors) {
+            super(null);
+            this.module = null;
+            this.stmt = null;
+            this.importer = null;
+            this.statements = statements;
+            this.directory = directory;
+            this.errors = errors;
+        }
+
+        Load(Load parent, Stmt.Import stmt, Module module) {
+            super(parent);
+            this.module = module;
+            this.stmt = stmt;
+            this.importer = parent.module != null ? parent.module.path : null;
+            this.directory = module.path.getParent();
+            this.errors = module.errors;
+        }
+
+        @Override
+        public void compute() {
+            // Errors in a module say which file they are in.
+            Lox.file.set(module != null ? module.path : null);
+            Lox.errors.set(errors);
+            try {
+                if (module != null) {
+                    load();
+                    statements = module.statements;
+                }
+                for (Stmt statement : statements) {
+                    if (statement instanceof Stmt.Import) {
+                        request((Stmt.Import) statement);
+                    }
+                }
+            } finally {
+                Lox.file.remove();
+                Lox.errors.remove();
+            }
+            tryComplete();
+        }
+
+        private void load() {
+            try {
+                module.load();
+            } catch (IOException error) {
+                // Unreadable, or gone since request() found it: reported
+                // at the import, like a file that is not there at all.
+                module.statements = List.of();
+                Lox.file.set(importer);
+                Lox.error(stmt.path, "Can't read module " + stmt.path.lexeme + ".");
+            }
+        }
+
+        private void request(Stmt.Import stmt) {
+            Path path = directory.resolve((String) stmt.path.literal).toAbsolutePath().normalize();
+            if (!Files.isRegularFile(path)) {
+                Lox.error(stmt.path, "Can't find module " + stmt.path.lexeme + ".");
+                return;
+            }
+
+            Module module = new Module(path);
+            Module cached = modules.putIfAbsent(path, module);
+            if (cached != null) {
+                stmt.module = cached;
+                return;
+            }
+            stmt.module = module;
+            addToPendingCount(1);
+            new Load(this, stmt, module).fork();
+        }
+    }
+
+    // Goes through the modules statements import, depth first: prints what
+    // loading each one reported, and reports each import of a module that
+    // is being imported already further up the chain, since one of them
+    // would have to run before the other could.
+    private void link(List<Stmt> statements, List<Module> importing) {
+        for (Stmt statement : statements) {
+            if (!(statement instanceof Stmt.Import)) {
+                continue;
+            }
+            Stmt.Import stmt = (Stmt.Import) statement;
+            Module module = stmt.module;
+            if (module == null || linked.contains(module)) {
+                continue;
+            }
+
+            if (importing.contains(module)) {
+                Lox.file.set(importing.get(importing.size() - 1).path);
+                try {
+                    Lox.error(stmt.path, "Import cycle through " + stmt.path.lexeme + ".");
+                } finally {
+                    Lox.file.remove();
+                }
+                continue;
+            }
+            Lox.report(module.errors);
+            importing.add(module);
+            link(module.statements, importing);
+            importing.remove(importing.size() - 1);
+            linked.add(module);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.zhsu.lox;
+
+// Lox values as the RegisterVM keeps them: NaN-boxed into a long. A number
+// is its own IEEE 754 bits, every NaN folded into the single one
+// Double.doubleToLongBits() gives, so no number ever has the top fourteen
+// bits set. The rest of that space holds nil, the booleans and OBJECT. An
+// OBJECT is a string, function, class or instance; the reference itself is
+// kept beside the box, in the Object[] paired with every long[] the VM
+// stores values in.
+final class NanBox {
+
+    private static final long TAGGED = 0xfffc000000000000L;
+
+    // nil and false differ only in the lowest bit, so isFalsey() is one
+    // comparison.
+    static final long NIL = TAGGED | 2;
+    static final long FALSE = TAGGED | 3;
+    static final long TRUE = TAGGED | 4;
+    static final long OBJECT = TAGGED | 5;
+    // A global declared by name but not defined yet. Never in a register.
+    static final long UNDEFINED = TAGGED | 6;
+
+    private NanBox() {
+    }
+
+    static long number(double value) {
+        return Double.doubleToLongBits(value);
+    }
+
+    static double asNumber(long box) {
+        return Double.longBitsToDouble(box);
+    }
+
+    static boolean isNumber(long box) {
+        return (box & TAGGED) != TAGGED;
+    }
+
+    static long bool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    static boolean isFalsey(long box) {
+        return (box | 1) == FALSE;
+    }
+
+    static boolean isString(long box, Object ref) {
+        return box == OBJECT && ref instanceof String;
+    }
+
+    // Like Interpreter.isEqual(): numbers are equal when Double.equals()
+    // says so, which is when their boxes are.
+    static boolean isEqual(long a, Object refA, long b, Object refB) {
+        if (a != b) {
+            return false;
+        }
+        return a != OBJECT || refA.equals(refB);
+    }
+
+    // The value as the tree-walker would hold it.
+    static Object toObject(long box, Object ref) {
+        if (isNumber(box)) {
+            return asNumber(box);
+        } else if (box == OBJECT) {
+            return ref;
+        } else if (box == NIL) {
+            return null;
+        }
+        return box == TRUE;
+    }
+
+    // The box for a value as the tree-walker would hold it; an OBJECT
+    // keeps value as its reference.
+    static long box(Object value) {
+        if (value instanceof Double) {
+            return number((double) value);
+        } else if (value instanceof Boolean) {
+            return bool((boolean) value);
+        }
+        return value == null ? NIL : OBJECT;
+    }
+
+    static String stringify(long box, Object ref) {
+        if (box == OBJECT) {
+            return ref.toString();
+        }
+        return Interpreter.stringify(toObject(box, ref));
+    }
+}
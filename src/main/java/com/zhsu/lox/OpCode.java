@@ -0,0 +1,99 @@
+package com.zhsu.lox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+final class OpCode {
+
+    // Operands: u8 = one byte, u16 = two bytes big-endian.
+    static final byte CONSTANT = 0; // u16 constant
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5; // u8 slot
+    static final byte SET_LOCAL = 6; // u8 slot
+    static final byte GET_GLOBAL = 7; // u16 name
+    static final byte DEFINE_GLOBAL = 8; // u16 name
+    static final byte SET_GLOBAL = 9; // u16 name
+    static final byte GET_UPVALUE = 10; // u8 index
+    static final byte SET_UPVALUE = 11; // u8 index
+    static final byte GET_PROPERTY = 12; // u16 name
+    static final byte SET_PROPERTY = 13; // u16 name
+    static final byte GET_SUPER = 14; // u16 name
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte NOT = 25;
+    static final byte NEGATE = 26;
+    static final byte PRINT = 27;
+    static final byte JUMP = 28; // u16 forward offset
+    static final byte JUMP_IF_FALSE = 29; // u16 forward offset
+    static final byte LOOP = 30; // u16 backward offset
+    static final byte CALL = 31; // u8 argument count
+    static final byte GET_METHOD = 32; // u16 name
+    static final byte GET_SUPER_METHOD = 33; // u16 name
+    static final byte CALL_METHOD = 34; // u8 argument count
+    static final byte CLOSURE = 35; // u16 function, then (u8 isLocal, u8 index) per upvalue
+    static final byte CLOSE_UPVALUE = 36;
+    static final byte RETURN = 37;
+    static final byte CLASS = 38; // u16 name
+    static final byte INHERIT = 39;
+    static final byte METHOD = 40; // u16 name
+    static final byte STATIC_METHOD = 41; // u16 name
+
+    // Superinstructions, for the sequences that --profile-opcodes shows
+    // running most.
+    static final byte GET_LOCAL_CONSTANT = 42; // u8 slot, u16 constant
+    // u8 slot, u16 number: local = local + number as a statement, so
+    // nothing is pushed
+    static final byte ADD_LOCAL_CONSTANT = 43;
+    static final byte POP_JUMP_IF_FALSE = 44; // u16 forward offset
+    // Pop two numbers and jump unless the comparison holds.
+    static final byte JUMP_IF_NOT_LESS = 45; // u16 forward offset
+    static final byte JUMP_IF_NOT_LESS_EQUAL = 46; // u16 forward offset
+    static final byte JUMP_IF_NOT_GREATER = 47; // u16 forward offset
+    static final byte JUMP_IF_NOT_GREATER_EQUAL = 48; // u16 forward offset
+
+    // Quickened forms: the VM rewrites a GET_PROPERTY or ADD into one of
+    // these once it has seen what it works on, and into the generic form
+    // for good when that stops holding. GET_FIELD_SLOT_n reads field slot n
+    // of a receiver whose shape is the one cached for the instruction in
+    // Chunk.shapes.
+    static final byte GET_FIELD_SLOT_0 = 49; // u16 name
+    static final byte GET_FIELD_SLOT_1 = 50; // u16 name
+    static final byte GET_FIELD_SLOT_2 = 51; // u16 name
+    static final byte GET_FIELD_SLOT_3 = 52; // u16 name
+    static final byte ADD_NUM = 53;
+    // An ADD that is never quickened again, once ADD_NUM has missed.
+    static final byte ADD_GENERIC = 54;
+
+    private static final String[] NAMES = new String[256];
+
+    static {
+        for (Field field : OpCode.class.getDeclaredFields()) {
+            if (field.getType() == byte.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    NAMES[field.getByte(null) & 0xff] = field.getName();
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+    }
+
+    private OpCode() {
+    }
+
+    static String name(int op) {
+        String name = NAMES[op & 0xff];
+        return name != null ? name : "OP_" + (op & 0xff);
+    }
+}
@@ -3,8 +3,6 @@ package com.zhsu.lox;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
-import java.util.function.Supplier;
 
 import static com.zhsu.lox.TokenType.AND;
 import static com.zhsu.lox.TokenType.BANG;
@@ -24,6 +22,7 @@ import static com.zhsu.lox.TokenType.GREATER;
 import static com.zhsu.lox.TokenType.GREATER_EQUAL;
 import static com.zhsu.lox.TokenType.IDENTIFIER;
 import static com.zhsu.lox.TokenType.IF;
+import static com.zhsu.lox.TokenType.IMPORT;
 import static com.zhsu.lox.TokenType.LEFT_BRACE;
 import static com.zhsu.lox.TokenType.LEFT_PAREN;
 import static com.zhsu.lox.TokenType.LESS;
@@ -53,11 +52,111 @@ class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
+    // From loosest to tightest.
+    private enum Precedence {
+        NONE,
+        COMMA, // ,
+        ASSIGNMENT, // =
+        CONDITIONAL, // ?:
+        OR, // or
+        AND, // and
+        EQUALITY, // == !=
+        COMPARISON, // < > <= >=
+        TERM, // + -
+        FACTOR, // * /
+        UNARY, // ! -
+        CALL, // . ()
+        PRIMARY;
+
+        private static final Precedence[] LEVELS = values();
+
+        // The next tighter level, which is what the right operand of a
+        // left-associative operator is parsed at.
+        Precedence next() {
+            return LEVELS[ordinal() + 1];
+        }
+    }
+
+    private interface PrefixRule {
+        Expr parse(Parser parser);
+    }
+
+    private interface InfixRule {
+        Expr parse(Parser parser, Expr left);
+    }
+
+    // How a token type starts an expression and how, at what precedence, it
+    // continues one; nulls where it can't.
+    private static final class Rule {
+        final PrefixRule prefix;
+        final InfixRule infix;
+        final Precedence precedence;
+
+        Rule(PrefixRule prefix, InfixRule infix, Precedence precedence) {
+            this.prefix = prefix;
+            this.infix = infix;
+            this.precedence = precedence;
+        }
+    }
+
+    private static final Rule[] RULES = new Rule[TokenType.values().length];
+
+    static {
+        Arrays.fill(RULES, new Rule(null, null, Precedence.NONE));
+        rule(LEFT_PAREN, Parser::grouping, Parser::finishCall, Precedence.CALL);
+        rule(DOT, null, Parser::dot, Precedence.CALL);
+        rule(MINUS, Parser::unary, Parser::binary, Precedence.TERM);
+        rule(PLUS, null, Parser::binary, Precedence.TERM);
+        rule(SLASH, null, Parser::binary, Precedence.FACTOR);
+        rule(STAR, null, Parser::binary, Precedence.FACTOR);
+        rule(BANG, Parser::unary, null, Precedence.NONE);
+        rule(BANG_EQUAL, null, Parser::binary, Precedence.EQUALITY);
+        rule(EQUAL_EQUAL, null, Parser::binary, Precedence.EQUALITY);
+        rule(GREATER, null, Parser::binary, Precedence.COMPARISON);
+        rule(GREATER_EQUAL, null, Parser::binary, Precedence.COMPARISON);
+        rule(LESS, null, Parser::binary, Precedence.COMPARISON);
+        rule(LESS_EQUAL, null, Parser::binary, Precedence.COMPARISON);
+        rule(AND, null, Parser::logical, Precedence.AND);
+        rule(OR, null, Parser::logical, Precedence.OR);
+        rule(QUESTION, null, Parser::conditional, Precedence.CONDITIONAL);
+        rule(COLON, null, Parser::colon, Precedence.CONDITIONAL);
+        rule(EQUAL, null, Parser::assignment, Precedence.ASSIGNMENT);
+        rule(COMMA, null, Parser::binary, Precedence.COMMA);
+        rule(IDENTIFIER, Parser::variable, null, Precedence.NONE);
+        rule(NUMBER, Parser::literal, null, Precedence.NONE);
+        rule(STRING, Parser::literal, null, Precedence.NONE);
+        rule(FALSE, Parser::literal, null, Precedence.NONE);
+        rule(TRUE, Parser::literal, null, Precedence.NONE);
+        rule(NIL, Parser::literal, null, Precedence.NONE);
+        rule(THIS, Parser::thisExpression, null, Precedence.NONE);
+        rule(SUPER, Parser::superExpression, null, Precedence.NONE);
+        rule(FUN, Parser::lambda, null, Precedence.NONE);
+    }
+
+    private static void rule(TokenType type, PrefixRule prefix, InfixRule infix,
+            Precedence precedence) {
+        RULES[type.ordinal()] = new Rule(prefix, infix, precedence);
+    }
+
+    private final TokenBuffer tokens;
+    // Asked for each token as the parser gets to it, if there is one;
+    // otherwise tokens holds every token already.
+    private final Scanner scanner;
     private int current = 0;
 
     Parser(List<Token> tokens) {
+        this(TokenBuffer.of(tokens));
+    }
+
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
+        this.scanner = null;
+    }
+
+    Parser(Scanner scanner) {
+        this.tokens = scanner.tokens();
+        this.scanner = scanner;
+        scanner.next();
     }
 
     List<Stmt> parse() {
@@ -69,6 +168,21 @@ class Parser {
         return statements;
     }
 
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // Parses just the next top-level declaration, null if it has a syntax
+    // error. Pulling tokens from a scanner, the ones before it are dropped
+    // first, so the buffer never holds more than one declaration's.
+    Stmt next() {
+        if (scanner != null) {
+            tokens.drop(current);
+            current = 0;
+        }
+        return declaration();
+    }
+
     private Stmt statement() {
         if (match(FOR)) {
             return forStatement();
@@ -93,7 +207,7 @@ class Parser {
     }
 
     private Stmt forStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'for'.");
+        expect(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
         if (match(SEMICOLON)) {
@@ -108,13 +222,13 @@ class Parser {
         if (!check(SEMICOLON)) {
             condition = expression();
         }
-        consume(SEMICOLON, "Expect ';' after loop condition.");
+        expect(SEMICOLON, "Expect ';' after loop condition.");
 
         Expr increment = null;
         if (!check(RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+        expect(RIGHT_PAREN, "Expect ')' after for clauses.");
         Stmt body = statement();
 
         if (increment != null) {
@@ -147,6 +261,9 @@ class Parser {
             if (match(FUN)) {
                 return function("function");
             }
+            if (match(IMPORT)) {
+                return importDeclaration();
+            }
 
             return statement();
         } catch (ParseError error) {
@@ -160,11 +277,11 @@ class Parser {
 
         Expr.Variable superclass = null;
         if (match(LESS)) {
-            consume(IDENTIFIER, "Expect superclass name.");
+            expect(IDENTIFIER, "Expect superclass name.");
             superclass = new Expr.Variable(previous());
         }
 
-        consume(LEFT_BRACE, "Expect '{' before class body.");
+        expect(LEFT_BRACE, "Expect '{' before class body.");
 
         List<Stmt.Function> methods = new ArrayList<>();
         List<Stmt.Function> staticMethods = new ArrayList<>();
@@ -176,11 +293,18 @@ class Parser {
             }
         }
 
-        consume(RIGHT_BRACE, "Expect '}' after class body.");
+        expect(RIGHT_BRACE, "Expect '}' after class body.");
 
         return new Stmt.Class(name, superclass, methods, staticMethods);
     }
 
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+        expect(SEMICOLON, "Expect ';' after module path.");
+        return new Stmt.Import(keyword, path);
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
 
@@ -189,23 +313,23 @@ class Parser {
             initializer = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after variable declaration.");
+        expect(SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Var(name, initializer);
     }
 
     private Stmt whileStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'while'.");
+        expect(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after condition.");
+        expect(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
         return new Stmt.While(condition, body);
     }
 
     private Stmt ifStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'if'.");
+        expect(LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after if condition.");
+        expect(RIGHT_PAREN, "Expect ')' after if condition.");
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -219,7 +343,7 @@ class Parser {
     private Stmt printStatement() {
 
         Expr value = expression();
-        consume(SEMICOLON, "Expect ';' after value. for print stmt");
+        expect(SEMICOLON, "Expect ';' after value. for print stmt");
         return new Stmt.Print(value);
     }
 
@@ -230,7 +354,7 @@ class Parser {
             value = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after return value.");
+        expect(SEMICOLON, "Expect ';' after return value.");
         return new Stmt.Return(keyword, value);
     }
 
@@ -250,12 +374,12 @@ class Parser {
         boolean isGetter = false;
         if (!check(LEFT_PAREN)) {
             isGetter = true;
-            consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+            expect(LEFT_BRACE, "Expect '{' before " + kind + " body.");
             List<Stmt> body = block();
             return new Stmt.Function(name, new ArrayList<>(), body, isGetter);
         }
 
-        consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+        expect(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
             do {
@@ -267,11 +391,11 @@ class Parser {
                         consume(IDENTIFIER, "Expect parameter name."));
             } while (match(COMMA));
         }
-        consume(RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(RIGHT_PAREN, "Expect ')' after parameters.");
 
         // Consuming LEFT_BRACE here lets us report a more precise error message if the
         // LEFT_BRACE isn’t found
-        consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        expect(LEFT_BRACE, "Expect '{' before " + kind + " body.");
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body, isGetter);
     }
@@ -283,151 +407,92 @@ class Parser {
             statements.add(declaration());
         }
 
-        consume(RIGHT_BRACE, "Expect '}' after block.");
+        expect(RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
     private Expr expression() {
-        return commaed();
+        return parsePrecedence(Precedence.COMMA);
     }
 
-    private Expr parseLeftAssociativeBinary(Supplier<Expr> operandParser, TokenType... operators) {
-        Expr expr = operandParser.get();
-
-        while (match(operators)) {
-            Token operator = previous();
-            Expr right = operandParser.get();
-            expr = new Expr.Binary(expr, operator, right);
+    // Parses an expression whose operators all bind at least as tightly as
+    // precedence: a prefix rule for its first token, then the infix rule of
+    // each operator after it that is tight enough.
+    private Expr parsePrecedence(Precedence precedence) {
+        Rule prefix = RULES[tokens.type(current).ordinal()];
+        if (prefix.prefix == null) {
+            throw error(peek(), "Expect expression.");
         }
+        advance();
+        Expr expr = prefix.prefix.parse(this);
 
-        return expr;
-    }
-
-    private Expr commaed() {
-        return parseLeftAssociativeBinary(this::assignment, COMMA);
-    }
-
-    private Expr assignment() {
-        Expr expr = conditional();
-
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment(); // assignment is right-associative
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(get.object, get.name, value);
+        for (;;) {
+            Rule infix = RULES[tokens.type(current).ordinal()];
+            if (infix.precedence.ordinal() < precedence.ordinal()) {
+                return expr;
             }
-
-            // we don’t throw it because the parser isn’t in a confused state where we need
-            // to go into panic mode and synchronize.
-            error(equals, "Invalid assignment target.");
+            advance();
+            expr = infix.infix.parse(this, expr);
         }
-
-        return expr;
     }
 
-    private Expr conditional() {
-        Expr expr = or();
-
-        Stack<Expr> exprsStack = new Stack<>();
-        exprsStack.push(expr);
-        Stack<Token> tokenStack = new Stack<>(); // just for tracking error token
-        while (match(QUESTION, COLON)) {
-            Token token = previous();
-            expr = or();
-
-            if (token.type == QUESTION) {
-                exprsStack.push(expr);
-                tokenStack.push(token);
-            } else {
-                if (!tokenStack.empty()) {
-                    Expr trueValue = exprsStack.pop();
-                    tokenStack.pop();
-                    Expr conditon = exprsStack.pop();
-                    Expr conditonal = new Expr.Conditional(conditon, trueValue, expr);
-                    exprsStack.push(conditonal);
-                } else {
-                    throw error(token, "can not find corresponding '?' for ':'");
-                }
-            }
-        }
+    // The infix rules, each called with the operator just consumed.
 
-        if (!tokenStack.empty()) {
-            throw error(tokenStack.pop(), "can not find corresponding ':' for '?'");
-        }
-        return exprsStack.pop();
+    private Expr binary(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(RULES[operator.type.ordinal()].precedence.next());
+        return new Expr.Binary(left, operator, right);
     }
 
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
+    private Expr logical(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(RULES[operator.type.ordinal()].precedence.next());
+        return new Expr.Logical(left, operator, right);
     }
 
-    private Expr and() {
-        Expr expr = equality();
+    private Expr assignment(Expr target) {
+        int equals = current - 1;
+        Expr value = parsePrecedence(Precedence.ASSIGNMENT); // assignment is right-associative
 
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) target).name;
+            return new Expr.Assign(name, value);
+        } else if (target instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) target;
+            return new Expr.Set(get.object, get.name, value);
         }
 
-        return expr;
-    }
-
-    private Expr equality() {
-        return parseLeftAssociativeBinary(this::comparison, BANG_EQUAL, EQUAL_EQUAL);
-    }
-
-    private Expr comparison() {
-        return parseLeftAssociativeBinary(this::term, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
-    }
-
-    private Expr term() {
-        return parseLeftAssociativeBinary(this::factor, PLUS, MINUS);
-    }
-
-    private Expr factor() {
-        return parseLeftAssociativeBinary(this::unary, STAR, SLASH);
+        // we don’t throw it because the parser isn’t in a confused state where we need
+        // to go into panic mode and synchronize.
+        error(tokens.token(equals), "Invalid assignment target.");
+        return target;
     }
 
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    // The branches are or-expressions, so "a ? b : c ? d : e" groups to the
+    // left; the true branch may hold conditionals of its own, which end at
+    // the first ':' they can't use.
+    private Expr conditional(Expr condition) {
+        int question = current - 1;
+        Expr thenBranch = parsePrecedence(Precedence.OR);
+        while (match(QUESTION)) {
+            thenBranch = conditional(thenBranch);
         }
-
-        return call();
+        if (!match(COLON)) {
+            throw error(tokens.token(question), "can not find corresponding ':' for '?'");
+        }
+        Expr elseBranch = parsePrecedence(Precedence.OR);
+        return new Expr.Conditional(condition, thenBranch, elseBranch);
     }
 
-    private Expr call() {
-        Expr expr = primary();
-
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER,
-                        "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
-        }
+    // A ':' that no '?' took.
+    private Expr colon(Expr left) {
+        throw error(previous(), "can not find corresponding '?' for ':'");
+    }
 
-        return expr;
+    private Expr dot(Expr object) {
+        Token name = consume(IDENTIFIER,
+                "Expect property name after '.'.");
+        return new Expr.Get(object, name);
     }
 
     private Expr finishCall(Expr callee) {
@@ -437,7 +502,7 @@ class Parser {
                 if (arguments.size() >= 255) {
                     error(peek(), "Can't have more than 255 arguments.");
                 }
-                arguments.add(assignment()); // skip parsing commaed
+                arguments.add(parsePrecedence(Precedence.ASSIGNMENT)); // skip parsing commaed
             } while (match(COMMA));
         }
         Token paren = consume(RIGHT_PAREN,
@@ -446,51 +511,48 @@ class Parser {
         return new Expr.Call(callee, paren, arguments);
     }
 
-    private Expr primary() {
-        if (match(FALSE)) {
-            return new Expr.Literal(false);
-        }
-        if (match(TRUE)) {
-            return new Expr.Literal(true);
-        }
-        if (match(NIL)) {
-            return new Expr.Literal(null);
-        }
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
+    // The prefix rules, each called with the expression's first token just
+    // consumed.
 
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENTIFIER,
-                    "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
-        }
+    private Expr literal() {
+        return switch (tokens.type(current - 1)) {
+            case FALSE -> new Expr.Literal(false);
+            case TRUE -> new Expr.Literal(true);
+            case NIL -> new Expr.Literal(null);
+            default -> new Expr.Literal(tokens.literal(current - 1));
+        };
+    }
 
-        if (match(THIS))
-            return new Expr.This(previous());
+    private Expr superExpression() {
+        Token keyword = previous();
+        expect(DOT, "Expect '.' after 'super'.");
+        Token method = consume(IDENTIFIER,
+                "Expect superclass method name.");
+        return new Expr.Super(keyword, method);
+    }
 
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
+    private Expr thisExpression() {
+        return new Expr.This(previous());
+    }
 
-        if (match(FUN)) {
-            return lambda();
-        }
+    private Expr variable() {
+        return new Expr.Variable(previous());
+    }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
+    private Expr grouping() {
+        Expr expr = expression();
+        expect(RIGHT_PAREN, "Expect ')' after expression.");
+        return new Expr.Grouping(expr);
+    }
 
-        throw error(peek(), "Expect expression.");
+    private Expr unary() {
+        Token operator = previous();
+        Expr right = parsePrecedence(Precedence.UNARY);
+        return new Expr.Unary(operator, right);
     }
 
     private Expr lambda() {
-        consume(LEFT_PAREN, "Expect '(' after 'fun'.");
+        expect(LEFT_PAREN, "Expect '(' after 'fun'.");
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
             do {
@@ -500,56 +562,62 @@ class Parser {
                 parameters.add(consume(IDENTIFIER, "Expect parameter name."));
             } while (match(COMMA));
         }
-        consume(RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(LEFT_BRACE, "Expect '{' before function body.");
+        expect(RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(LEFT_BRACE, "Expect '{' before function body.");
         List<Stmt> body = block();
 
         return new Expr.Lambda(parameters, body);
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) {
-            return advance();
-        }
+        expect(type, message);
+        return previous();
+    }
 
-        throw error(peek(), message);
+    // consume() for a token no node keeps.
+    private void expect(TokenType type, String message) {
+        if (!check(type)) {
+            throw error(peek(), message);
+        }
+        advance();
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) {
             return false;
         }
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current++;
+            if (scanner != null && current == tokens.size()) {
+                scanner.next();
+            }
         }
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
+    // The next token, made for a node or an error message.
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private ParseError error(Token token, String message) {
@@ -561,12 +629,12 @@ class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) {
+            if (tokens.type(current - 1) == SEMICOLON) {
                 return;
             }
 
-            switch (peek().type) {
-                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN -> {
+            switch (tokens.type(current)) {
+                case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN, IMPORT -> {
                     return;
                 }
                 default -> {
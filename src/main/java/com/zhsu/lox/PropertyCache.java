@@ -0,0 +1,127 @@
+package com.zhsu.lox;
+
+import java.util.Arrays;
+
+// Inline cache attached to one Expr.Get or Expr.Set site. Entries are keyed
+// on the receiver's Shape; since every class has its own shape tree, the
+// shape also pins down where a method lookup ends up. Adding a field moves
+// an instance to a new shape, so stale entries simply stop matching.
+final class PropertyCache {
+
+    private static final int MAX_ENTRIES = 4;
+
+    private static final class Entry {
+
+        final Shape shape;
+        // Field slot, or -1 when the property resolves to a method.
+        final int slot;
+        // For gets: the method found on a miss in the fields.
+        final LoxFunction method;
+        // For sets: the shape the instance has after the store.
+        final Shape target;
+
+        Entry(Shape shape, int slot, LoxFunction method, Shape target) {
+            this.shape = shape;
+            this.slot = slot;
+            this.method = method;
+            this.target = target;
+        }
+    }
+
+    private final Entry[] entries = new Entry[MAX_ENTRIES];
+    private int count = 0;
+    // Set once a site has seen more shapes than it can hold; from then on
+    // it does the full lookup every time.
+    private boolean megamorphic = false;
+
+    // The cache of a site, made the first time the site runs: only the
+    // tree-walking engines use one, and a site that never runs needs none.
+    static PropertyCache of(Expr.Get expr) {
+        if (expr.cache == null) {
+            expr.cache = new PropertyCache();
+        }
+        return expr.cache;
+    }
+
+    static PropertyCache of(Expr.Set expr) {
+        if (expr.cache == null) {
+            expr.cache = new PropertyCache();
+        }
+        return expr.cache;
+    }
+
+    // Returns the field's value, or the method name refers to. Methods come
+    // back unbound: the caller either invokes one on instance directly or
+    // binds it when it is used as a value.
+    Object get(LoxInstance instance, Token name) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            if (entry.shape == shape) {
+                return read(instance, entry);
+            }
+        }
+
+        Entry entry;
+        // Fields stored on a class are never visible through a get.
+        int slot = instance instanceof LoxClass ? -1 : shape.slotOf(name.lexeme);
+        if (slot != -1) {
+            entry = new Entry(shape, slot, null, null);
+        } else {
+            LoxFunction method = instance instanceof LoxClass
+                    ? ((LoxClass) instance).findStaticMethod(name.lexeme)
+                    : instance.klass().findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name,
+                        "Undefined property '" + name.lexeme + "'.");
+            }
+            entry = new Entry(shape, -1, method, null);
+        }
+        if (!megamorphic) {
+            add(entry);
+        }
+        return read(instance, entry);
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            if (entry.shape == shape) {
+                instance.store(entry.target, entry.slot, value);
+                return;
+            }
+        }
+
+        if (megamorphic) {
+            instance.set(name, value);
+            return;
+        }
+
+        Shape target = shape;
+        int slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            target = shape.withField(name.lexeme);
+            slot = target.size() - 1;
+        }
+        add(new Entry(shape, slot, null, target));
+        instance.store(target, slot, value);
+    }
+
+    private Object read(LoxInstance instance, Entry entry) {
+        if (entry.slot != -1) {
+            return instance.field(entry.slot);
+        }
+        return entry.method;
+    }
+
+    private void add(Entry entry) {
+        if (count == MAX_ENTRIES) {
+            megamorphic = true;
+            count = 0;
+            Arrays.fill(entries, null);
+            return;
+        }
+        entries[count++] = entry;
+    }
+}
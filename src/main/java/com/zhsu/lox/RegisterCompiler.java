@@ -0,0 +1,819 @@
+package com.zhsu.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Lowers the resolved Stmt/Expr tree to three-address code for the
+// RegisterVM. The Resolver has already laid every frame out, so each local
+// simply is the register of its slot, and expression temporaries go in the
+// registers above the locals, freed again once the statement or operand
+// that needed them is done. An operand that is a local is used in place,
+// and a value is computed straight into the register it ends up in, so
+// i = i + 1 is a single ADD_CONSTANT.
+class RegisterCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER,
+        STATIC_INITIALIZER
+    }
+
+    private static class FunctionState {
+
+        final FunctionState enclosing;
+        final RegisterVM.Function function;
+        final FunctionType type;
+        // Which slots hold a cell for the variable now using them.
+        final boolean[] boxed;
+        // The next free register.
+        int top;
+
+        FunctionState(FunctionState enclosing, RegisterVM.Function function, FunctionType type,
+                int slotCount) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            this.boxed = new boolean[slotCount];
+            this.top = slotCount;
+            function.registerCount = slotCount;
+        }
+    }
+
+    private static final int MAX_REGISTERS = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_GLOBALS = 65536;
+    private static final int MAX_JUMP = (1 << 23) - 1;
+    // As a target: the value is not needed.
+    private static final int NONE = -1;
+
+    private final RegisterVM vm;
+    private FunctionState current;
+    // Where the expression being compiled puts its value.
+    private int target = NONE;
+    private int line = 1;
+
+    RegisterCompiler(RegisterVM vm) {
+        this.vm = vm;
+    }
+
+    RegisterVM.Function compile(List<Stmt> statements) {
+        RegisterVM.Function script = new RegisterVM.Function("script", 0, false, false, false);
+        current = new FunctionState(null, script, FunctionType.SCRIPT, frameSize(statements));
+        for (Stmt statement : statements) {
+            statement(statement);
+        }
+        emit(RegisterOpCode.RETURN_NIL, 0, 0, 0);
+        return script;
+    }
+
+    // The registers the top-level blocks and classes need, which all start
+    // at register zero of the script.
+    private static int frameSize(List<Stmt> statements) {
+        int size = 0;
+        for (Stmt statement : statements) {
+            size = Math.max(size, frameSize(statement));
+        }
+        return size;
+    }
+
+    private static int frameSize(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            return Math.max(((Stmt.Block) stmt).slotCount,
+                    frameSize(((Stmt.Block) stmt).statements));
+        } else if (stmt instanceof Stmt.Class) {
+            return ((Stmt.Class) stmt).slotCount;
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return Math.max(frameSize(ifStmt.thenBranch),
+                    ifStmt.elseBranch == null ? 0 : frameSize(ifStmt.elseBranch));
+        } else if (stmt instanceof Stmt.While) {
+            return frameSize(((Stmt.While) stmt).body);
+        }
+        return 0;
+    }
+
+    private void statement(Stmt stmt) {
+        int mark = current.top;
+        stmt.accept(this);
+        current.top = mark;
+    }
+
+    // Compiles expr into register, or for nothing if register is NONE.
+    private void into(Expr expr, int register) {
+        int enclosing = target;
+        target = register;
+        expr.accept(this);
+        target = enclosing;
+    }
+
+    // Returns a register holding expr's value: a local's own register, or
+    // a temporary the caller frees.
+    private int operand(Expr expr) {
+        int local = localRegister(expr);
+        if (local != NONE) {
+            return local;
+        }
+        int register = temp();
+        into(expr, register);
+        return register;
+    }
+
+    private int localRegister(Expr expr) {
+        if (expr instanceof Expr.Grouping) {
+            return localRegister(((Expr.Grouping) expr).expression);
+        }
+        int slot = NONE;
+        if (expr instanceof Expr.Variable) {
+            slot = ((Expr.Variable) expr).slot;
+        } else if (expr instanceof Expr.This) {
+            slot = ((Expr.This) expr).slot;
+        }
+        return slot != NONE && !current.boxed[slot] ? slot : NONE;
+    }
+
+    // Compiles expr for its effects only.
+    private void effect(Expr expr) {
+        int mark = current.top;
+        if (expr instanceof Expr.Call || expr instanceof Expr.Assign || expr instanceof Expr.Set) {
+            into(expr, NONE);
+        } else {
+            operand(expr);
+        }
+        current.top = mark;
+    }
+
+    private int temp() {
+        int register = current.top++;
+        if (register == MAX_REGISTERS) {
+            Lox.error(line, "Too many registers in function.");
+        }
+        if (current.top > current.function.registerCount) {
+            current.function.registerCount = current.top;
+        }
+        return register;
+    }
+
+    // Statements.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int superclass = NONE;
+        if (stmt.superclass != null) {
+            superclass = operand(stmt.superclass);
+        }
+        declare(stmt.slot, stmt.boxed);
+
+        // The hidden "super" and static "this" only exist to be captured
+        // by the methods, so they always live in cells.
+        if (stmt.superSlot != -1) {
+            emit(RegisterOpCode.NEW_CELL, stmt.superSlot, 0, 0);
+            emit(RegisterOpCode.SET_CELL, stmt.superSlot, superclass, 0);
+            current.boxed[stmt.superSlot] = true;
+        }
+        emit(RegisterOpCode.NEW_CELL, stmt.thisSlot, 0, 0);
+        current.boxed[stmt.thisSlot] = true;
+
+        int klass = temp();
+        line = stmt.name.line;
+        emitBx(RegisterOpCode.CLASS, klass, constant(NanBox.OBJECT, stmt.name.lexeme));
+        if (superclass != NONE) {
+            line = stmt.superclass.name.line;
+            emit(RegisterOpCode.INHERIT, klass, superclass, 0);
+        }
+        int method = temp();
+        for (Stmt.Function declaration : stmt.methods) {
+            function(declaration, declaration.name.lexeme.equals("init")
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD, method);
+            emit(RegisterOpCode.METHOD, klass, method, 0);
+        }
+        for (Stmt.Function declaration : stmt.staticMethods) {
+            // A static "init" returns its receiver, the class, like any
+            // initializer.
+            function(declaration, declaration.name.lexeme.equals("init")
+                    ? FunctionType.STATIC_INITIALIZER : FunctionType.FUNCTION, method);
+            emit(RegisterOpCode.STATIC_METHOD, klass, method, 0);
+        }
+        emit(RegisterOpCode.SET_CELL, stmt.thisSlot, klass, 0);
+        define(stmt.slot, stmt.boxed, stmt.name, klass);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        effect(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // Declared before the body so the function can refer to itself.
+        declare(stmt.slot, stmt.boxed);
+        int register = stmt.slot != -1 && !stmt.boxed ? stmt.slot : temp();
+        function(stmt, FunctionType.FUNCTION, register);
+        define(stmt.slot, stmt.boxed, stmt.name, register);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        List<Integer> elseJumps = new ArrayList<>();
+        jumpIfFalse(stmt.condition, elseJumps);
+        statement(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patch(elseJumps);
+            return null;
+        }
+        int endJump = jump();
+        patch(elseJumps);
+        statement(stmt.elseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    // Modules each need a namespace of their own, which only the
+    // Interpreter has.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        Lox.error(stmt.keyword, "Can only import with the tree or closure engine.");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        int value = operand(stmt.expression);
+        emit(RegisterOpCode.PRINT, value, 0, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER
+                || current.type == FunctionType.STATIC_INITIALIZER) {
+            if (stmt.value != null) {
+                // Only a static "init" may return a value; it is run and
+                // dropped.
+                effect(stmt.value);
+            }
+            emitReturn();
+        } else if (stmt.value != null) {
+            emit(RegisterOpCode.RETURN, operand(stmt.value), 0, 0);
+        } else {
+            emit(RegisterOpCode.RETURN_NIL, 0, 0, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        // Like the Resolver, let closures in the initializer see the new
+        // local.
+        declare(stmt.slot, stmt.boxed);
+        if (stmt.slot != -1 && !stmt.boxed) {
+            if (stmt.initializer != null) {
+                into(stmt.initializer, stmt.slot);
+            } else {
+                emit(RegisterOpCode.LOAD_NIL, stmt.slot, 0, 0);
+            }
+            return null;
+        }
+
+        if (stmt.initializer == null && stmt.slot != -1) {
+            // The new cell holds nil already.
+            return null;
+        }
+        int value;
+        if (stmt.initializer != null) {
+            value = operand(stmt.initializer);
+        } else {
+            value = temp();
+            emit(RegisterOpCode.LOAD_NIL, value, 0, 0);
+        }
+        define(stmt.slot, stmt.boxed, stmt.name, value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.count;
+        List<Integer> exitJumps = new ArrayList<>();
+        jumpIfFalse(stmt.condition, exitJumps);
+        statement(stmt.body);
+        jumpBack(loopStart);
+        patch(exitJumps);
+        return null;
+    }
+
+    // A captured local gets its cell before its value is computed, so that
+    // closures created meanwhile (a recursive function, say) share it.
+    private void declare(int slot, boolean boxed) {
+        if (slot == -1) {
+            return;
+        }
+        current.boxed[slot] = boxed;
+        if (boxed) {
+            emit(RegisterOpCode.NEW_CELL, slot, 0, 0);
+        }
+    }
+
+    private void define(int slot, boolean boxed, Token name, int value) {
+        if (slot == -1) {
+            emitBx(RegisterOpCode.DEFINE_GLOBAL, value, global(name));
+        } else if (boxed) {
+            emit(RegisterOpCode.SET_CELL, slot, value, 0);
+        } else if (value != slot) {
+            emit(RegisterOpCode.MOVE, slot, value, 0);
+        }
+    }
+
+    private int global(Token name) {
+        int index = vm.global(name.lexeme);
+        if (index >= MAX_GLOBALS) {
+            Lox.error(name, "Too many global variables.");
+            return 0;
+        }
+        return index;
+    }
+
+    // Initializers return their receiver; a static one finds its class as
+    // its first upvalue.
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            int slot = current.function.arity;
+            if (current.boxed[slot]) {
+                int receiver = temp();
+                emit(RegisterOpCode.GET_CELL, receiver, slot, 0);
+                emit(RegisterOpCode.RETURN, receiver, 0, 0);
+            } else {
+                emit(RegisterOpCode.RETURN, slot, 0, 0);
+            }
+        } else if (current.type == FunctionType.STATIC_INITIALIZER) {
+            int klass = temp();
+            emit(RegisterOpCode.GET_UPVALUE, klass, 0, 0);
+            emit(RegisterOpCode.RETURN, klass, 0, 0);
+        } else {
+            emit(RegisterOpCode.RETURN_NIL, 0, 0, 0);
+        }
+    }
+
+    // Conditions.
+
+    // Jumps to one of the jumps added to exits, patched later, unless
+    // condition is true. Comparisons and "and" need no value in between.
+    private void jumpIfFalse(Expr condition, List<Integer> exits) {
+        if (condition instanceof Expr.Grouping) {
+            jumpIfFalse(((Expr.Grouping) condition).expression, exits);
+            return;
+        }
+        if (condition instanceof Expr.Logical
+                && ((Expr.Logical) condition).operator.type == TokenType.AND) {
+            jumpIfFalse(((Expr.Logical) condition).left, exits);
+            jumpIfFalse(((Expr.Logical) condition).right, exits);
+            return;
+        }
+        // A truthy literal, like the missing condition of a for loop, never
+        // jumps.
+        if (condition instanceof Expr.Literal
+                && !NanBox.isFalsey(NanBox.box(((Expr.Literal) condition).value))) {
+            return;
+        }
+
+        int mark = current.top;
+        byte op = -1;
+        if (condition instanceof Expr.Binary) {
+            op = switch (((Expr.Binary) condition).operator.type) {
+                case EQUAL_EQUAL -> RegisterOpCode.JUMP_IF_NOT_EQUAL;
+                case BANG_EQUAL -> RegisterOpCode.JUMP_IF_EQUAL;
+                case GREATER -> RegisterOpCode.JUMP_IF_NOT_GREATER;
+                case GREATER_EQUAL -> RegisterOpCode.JUMP_IF_NOT_GREATER_EQUAL;
+                case LESS -> RegisterOpCode.JUMP_IF_NOT_LESS;
+                case LESS_EQUAL -> RegisterOpCode.JUMP_IF_NOT_LESS_EQUAL;
+                default -> -1;
+            };
+        }
+        if (op == -1) {
+            int value = operand(condition);
+            exits.add(jumpIf(RegisterOpCode.JUMP_IF_FALSE, value, 0, 0));
+        } else {
+            Expr.Binary binary = (Expr.Binary) condition;
+            int left = operand(binary.left);
+            int constant = smallConstant(binary.right);
+            line = binary.operator.line;
+            if (constant != NONE) {
+                exits.add(jumpIf(op, left, constant, 1));
+            } else {
+                int right = operand(binary.right);
+                line = binary.operator.line;
+                exits.add(jumpIf(op, left, right, 0));
+            }
+        }
+        current.top = mark;
+    }
+
+    // The constant index of a number or string literal, if it fits in an
+    // operand byte; NONE otherwise.
+    private int smallConstant(Expr expr) {
+        if (!(expr instanceof Expr.Literal)) {
+            return NONE;
+        }
+        Object value = ((Expr.Literal) expr).value;
+        if (!(value instanceof Double) && !(value instanceof String)) {
+            return NONE;
+        }
+        int index = constant(NanBox.box(value), value);
+        return index < 256 ? index : NONE;
+    }
+
+    // Expressions.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        int result = target;
+        if (expr.slot != -1 && !current.boxed[expr.slot]) {
+            if (writesLast(expr.value)) {
+                into(expr.value, expr.slot);
+            } else {
+                // "and", "or" and ?: put each branch's value in their
+                // target as they go, where the other branch could still
+                // read the old one.
+                int value = temp();
+                into(expr.value, value);
+                emit(RegisterOpCode.MOVE, expr.slot, value, 0);
+            }
+            if (result != NONE && result != expr.slot) {
+                emit(RegisterOpCode.MOVE, result, expr.slot, 0);
+            }
+            return null;
+        }
+
+        int value = operand(expr.value);
+        line = expr.name.line;
+        if (expr.slot != -1) {
+            emit(RegisterOpCode.SET_CELL, expr.slot, value, 0);
+        } else if (expr.upvalue != -1) {
+            emit(RegisterOpCode.SET_UPVALUE, expr.upvalue, value, 0);
+        } else {
+            emitBx(RegisterOpCode.SET_GLOBAL, value, global(expr.name));
+        }
+        if (result != NONE && result != value) {
+            emit(RegisterOpCode.MOVE, result, value, 0);
+        }
+        return null;
+    }
+
+    private static boolean writesLast(Expr expr) {
+        if (expr instanceof Expr.Grouping) {
+            return writesLast(((Expr.Grouping) expr).expression);
+        }
+        return !(expr instanceof Expr.Logical) && !(expr instanceof Expr.Conditional);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        int result = target;
+        if (expr.operator.type == TokenType.COMMA) {
+            // Both operands are evaluated for their effects; the tree-walker
+            // yields nil for the comma operator.
+            effect(expr.left);
+            effect(expr.right);
+            emit(RegisterOpCode.LOAD_NIL, result, 0, 0);
+            return null;
+        }
+
+        int mark = current.top;
+        int left = operand(expr.left);
+        TokenType type = expr.operator.type;
+        if (type == TokenType.PLUS || type == TokenType.MINUS) {
+            int constant = numberConstant(expr.right);
+            if (constant != NONE) {
+                line = expr.operator.line;
+                emit(type == TokenType.PLUS
+                        ? RegisterOpCode.ADD_CONSTANT : RegisterOpCode.SUBTRACT_CONSTANT,
+                        result, left, constant);
+                current.top = mark;
+                return null;
+            }
+        }
+        int right = operand(expr.right);
+        line = expr.operator.line;
+        byte op = switch (type) {
+            case BANG_EQUAL -> RegisterOpCode.NOT_EQUAL;
+            case EQUAL_EQUAL -> RegisterOpCode.EQUAL;
+            case GREATER -> RegisterOpCode.GREATER;
+            case GREATER_EQUAL -> RegisterOpCode.GREATER_EQUAL;
+            case LESS -> RegisterOpCode.LESS;
+            case LESS_EQUAL -> RegisterOpCode.LESS_EQUAL;
+            case PLUS -> RegisterOpCode.ADD;
+            case MINUS -> RegisterOpCode.SUBTRACT;
+            case STAR -> RegisterOpCode.MULTIPLY;
+            default -> RegisterOpCode.DIVIDE;
+        };
+        emit(op, result, left, right);
+        current.top = mark;
+        return null;
+    }
+
+    private int numberConstant(Expr expr) {
+        if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+            return smallConstant(expr);
+        }
+        return NONE;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int result = target;
+        int argCount = argumentCount(expr);
+        // The callee, its arguments and the receiver of a method, in a row.
+        int callee = current.top;
+        for (int i = 0; i < argCount + 2; i++) {
+            temp();
+        }
+        int receiver = callee + argCount + 1;
+
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(args) looks the method up without binding it.
+            Expr.Get get = (Expr.Get) expr.callee;
+            into(get.object, receiver);
+            line = get.name.line;
+            emit(RegisterOpCode.GET_METHOD, callee, receiver, 0);
+            emit(constant(NanBox.OBJECT, get.name.lexeme));
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            thisInto(superExpr, receiver);
+            int superclass = temp();
+            emit(RegisterOpCode.GET_UPVALUE, superclass, superExpr.upvalue, 0);
+            line = superExpr.method.line;
+            emit(RegisterOpCode.GET_SUPER_METHOD, callee, superclass, 0);
+            emit(constant(NanBox.OBJECT, superExpr.method.lexeme));
+            current.top = receiver + 1;
+        } else {
+            into(expr.callee, callee);
+        }
+        for (int i = 0; i < argCount; i++) {
+            into(expr.arguments.get(i), callee + 1 + i);
+        }
+        line = expr.paren.line;
+        emit(RegisterOpCode.CALL, callee, argCount, 0);
+        if (result != NONE && result != callee) {
+            emit(RegisterOpCode.MOVE, result, callee, 0);
+        }
+        current.top = callee;
+        return null;
+    }
+
+    private int argumentCount(Expr.Call expr) {
+        if (expr.arguments.size() > 255) {
+            Lox.error(expr.paren, "Can't have more than 255 arguments.");
+        }
+        return expr.arguments.size();
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        int result = target;
+        int mark = current.top;
+        int object = operand(expr.object);
+        line = expr.name.line;
+        emit(RegisterOpCode.GET_PROPERTY, result, object, 0);
+        emit(constant(NanBox.OBJECT, expr.name.lexeme));
+        current.top = mark;
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        int result = target;
+        int mark = current.top;
+        int object = operand(expr.object);
+        int value = operand(expr.value);
+        line = expr.name.line;
+        emit(RegisterOpCode.SET_PROPERTY, object, value, 0);
+        emit(constant(NanBox.OBJECT, expr.name.lexeme));
+        if (result != NONE && result != value) {
+            emit(RegisterOpCode.MOVE, result, value, 0);
+        }
+        current.top = mark;
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        int result = target;
+        int mark = current.top;
+        int superclass = temp();
+        emit(RegisterOpCode.GET_UPVALUE, superclass, expr.upvalue, 0);
+        int receiver = temp();
+        thisInto(expr, receiver);
+        line = expr.method.line;
+        emit(RegisterOpCode.GET_SUPER, result, superclass, receiver);
+        emit(constant(NanBox.OBJECT, expr.method.lexeme));
+        current.top = mark;
+        return null;
+    }
+
+    private void thisInto(Expr.Super expr, int register) {
+        if (expr.thisUpvalue != -1) {
+            emit(RegisterOpCode.GET_UPVALUE, register, expr.thisUpvalue, 0);
+        } else {
+            local(expr.thisSlot, register);
+        }
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if (expr.slot != -1) {
+            local(expr.slot, target);
+        } else {
+            emit(RegisterOpCode.GET_UPVALUE, target, expr.upvalue, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        into(expr.expression, target);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(RegisterOpCode.LOAD_NIL, target, 0, 0);
+        } else if (expr.value instanceof Boolean) {
+            emit((Boolean) expr.value ? RegisterOpCode.LOAD_TRUE : RegisterOpCode.LOAD_FALSE,
+                    target, 0, 0);
+        } else {
+            emitBx(RegisterOpCode.LOAD_CONSTANT, target,
+                    constant(NanBox.box(expr.value), expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        int result = target;
+        into(expr.left, result);
+        int endJump = jumpIf(expr.operator.type == TokenType.OR
+                ? RegisterOpCode.JUMP_IF_TRUE : RegisterOpCode.JUMP_IF_FALSE, result, 0, 0);
+        into(expr.right, result);
+        patch(List.of(endJump));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        int result = target;
+        int mark = current.top;
+        int operand = operand(expr.right);
+        line = expr.operator.line;
+        emit(expr.operator.type == TokenType.BANG ? RegisterOpCode.NOT : RegisterOpCode.NEGATE,
+                result, operand, 0);
+        current.top = mark;
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        int result = target;
+        List<Integer> elseJumps = new ArrayList<>();
+        jumpIfFalse(expr.condition, elseJumps);
+        into(expr.trueValue, result);
+        int endJump = jump();
+        patch(elseJumps);
+        into(expr.FalseValue, result);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        if (expr.slot != -1) {
+            local(expr.slot, target);
+        } else if (expr.upvalue != -1) {
+            emit(RegisterOpCode.GET_UPVALUE, target, expr.upvalue, 0);
+        } else {
+            emitBx(RegisterOpCode.GET_GLOBAL, target, global(expr.name));
+        }
+        return null;
+    }
+
+    private void local(int slot, int register) {
+        if (current.boxed[slot]) {
+            emit(RegisterOpCode.GET_CELL, register, slot, 0);
+        } else if (register != slot) {
+            emit(RegisterOpCode.MOVE, register, slot, 0);
+        }
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        RegisterVM.Function function = new RegisterVM.Function(null, expr.params.size(), false,
+                false, false);
+        functionBody(function, FunctionType.FUNCTION, expr.slotCount, expr.boxedSlots,
+                expr.captures, expr.body, target);
+        return null;
+    }
+
+    private void function(Stmt.Function declaration, FunctionType type, int register) {
+        RegisterVM.Function function = new RegisterVM.Function(declaration.name.lexeme,
+                declaration.params.size(), declaration.isGetter,
+                type == FunctionType.METHOD || type == FunctionType.INITIALIZER,
+                type == FunctionType.INITIALIZER || type == FunctionType.STATIC_INITIALIZER);
+        functionBody(function, type, declaration.slotCount, declaration.boxedSlots,
+                declaration.captures, declaration.body, register);
+        line = declaration.name.line;
+    }
+
+    private void functionBody(RegisterVM.Function function, FunctionType type, int slotCount,
+            int[] boxedSlots, int[] captures, List<Stmt> body, int register) {
+        int enclosingLine = line;
+        current = new FunctionState(current, function, type, slotCount);
+        for (int slot : boxedSlots) {
+            emit(RegisterOpCode.BOX, slot, 0, 0);
+            current.boxed[slot] = true;
+        }
+        for (Stmt statement : body) {
+            statement(statement);
+        }
+        emitReturn();
+        function.captures = captures;
+        current = current.enclosing;
+        line = enclosingLine;
+
+        emitBx(RegisterOpCode.CLOSURE, register, constant(NanBox.OBJECT, function));
+    }
+
+    // Emitting.
+
+    private int constant(long box, Object ref) {
+        int constant = current.function.addConstant(box, ref);
+        if (constant >= MAX_CONSTANTS) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private void emit(int word) {
+        current.function.write(word, line);
+    }
+
+    private void emit(byte op, int a, int b, int c) {
+        emit(RegisterOpCode.encode(op, a, b, c));
+    }
+
+    private void emitBx(byte op, int a, int bx) {
+        emit(RegisterOpCode.encode(op, a, bx));
+    }
+
+    // Emits a conditional jump and returns where its offset goes.
+    private int jumpIf(byte op, int a, int b, int c) {
+        emit(op, a, b, c);
+        emit(0);
+        return current.function.count - 1;
+    }
+
+    private void patch(List<Integer> offsets) {
+        RegisterVM.Function function = current.function;
+        for (int offset : offsets) {
+            function.code[offset] = function.count - offset - 1;
+        }
+    }
+
+    private int jump() {
+        emit(RegisterOpCode.JUMP, 0, 0, 0);
+        return current.function.count - 1;
+    }
+
+    private void patchJump(int jump) {
+        RegisterVM.Function function = current.function;
+        int offset = function.count - jump - 1;
+        if (offset > MAX_JUMP) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        function.code[jump] = RegisterOpCode.JUMP | offset << 8;
+    }
+
+    private void jumpBack(int loopStart) {
+        int offset = loopStart - current.function.count - 1;
+        if (-offset > MAX_JUMP) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emit(RegisterOpCode.JUMP | offset << 8);
+    }
+}
@@ -0,0 +1,80 @@
+package com.zhsu.lox;
+
+// Instructions of the RegisterVM. Each is one int: the opcode in the low
+// byte, then operands A, B and C a byte each, or A and a u16 Bx. R(x) is
+// register x of the frame, K(x) constant x, G(x) global x and U(x) upvalue
+// x. Some instructions take a second int, "word", after themselves;
+// jump offsets are relative to the instruction after the jump.
+final class RegisterOpCode {
+
+    static final byte MOVE = 0; // R(A) = R(B)
+    static final byte LOAD_CONSTANT = 1; // R(A) = K(Bx)
+    static final byte LOAD_NIL = 2; // R(A) = nil
+    static final byte LOAD_TRUE = 3; // R(A) = true
+    static final byte LOAD_FALSE = 4; // R(A) = false
+    static final byte GET_GLOBAL = 5; // R(A) = G(Bx)
+    static final byte SET_GLOBAL = 6; // G(Bx) = R(A), which must be defined
+    static final byte DEFINE_GLOBAL = 7; // G(Bx) = R(A)
+    static final byte NEW_CELL = 8; // R(A) = a new cell holding nil
+    static final byte BOX = 9; // R(A) = a new cell holding R(A)
+    static final byte GET_CELL = 10; // R(A) = the value in cell R(B)
+    static final byte SET_CELL = 11; // the value in cell R(A) = R(B)
+    static final byte GET_UPVALUE = 12; // R(A) = U(B)
+    static final byte SET_UPVALUE = 13; // U(A) = R(B)
+    static final byte GET_PROPERTY = 14; // R(A) = R(B).K(word)
+    static final byte SET_PROPERTY = 15; // R(A).K(word) = R(B)
+    // R(A) = superclass R(B)'s method K(word) bound to R(C)
+    static final byte GET_SUPER = 16;
+    // R(A) = method K(word) of R(B), left unbound with R(B) as the
+    // receiver of the CALL at A; a field's value or a getter's result
+    // otherwise
+    static final byte GET_METHOD = 17;
+    static final byte GET_SUPER_METHOD = 18; // R(A) = superclass R(B)'s method K(word)
+    static final byte EQUAL = 19; // R(A) = R(B) == R(C)
+    static final byte NOT_EQUAL = 20;
+    static final byte GREATER = 21;
+    static final byte GREATER_EQUAL = 22;
+    static final byte LESS = 23;
+    static final byte LESS_EQUAL = 24;
+    static final byte ADD = 25; // R(A) = R(B) + R(C)
+    static final byte SUBTRACT = 26;
+    static final byte MULTIPLY = 27;
+    static final byte DIVIDE = 28;
+    static final byte ADD_CONSTANT = 29; // R(A) = R(B) + K(C), a number
+    static final byte SUBTRACT_CONSTANT = 30; // R(A) = R(B) - K(C), a number
+    static final byte NOT = 31; // R(A) = !R(B)
+    static final byte NEGATE = 32; // R(A) = -R(B)
+    static final byte PRINT = 33; // print R(A)
+    static final byte JUMP = 34; // jump by the signed 24 bits above the opcode
+    static final byte JUMP_IF_FALSE = 35; // if R(A) is falsey, jump by word
+    static final byte JUMP_IF_TRUE = 36; // if R(A) is truthy, jump by word
+    // Compare R(A) with R(B), or with K(B) if C is 1, and jump by word
+    // unless the comparison holds.
+    static final byte JUMP_IF_NOT_EQUAL = 37;
+    static final byte JUMP_IF_EQUAL = 38;
+    static final byte JUMP_IF_NOT_GREATER = 39;
+    static final byte JUMP_IF_NOT_GREATER_EQUAL = 40;
+    static final byte JUMP_IF_NOT_LESS = 41;
+    static final byte JUMP_IF_NOT_LESS_EQUAL = 42;
+    // Call R(A) with the B arguments in R(A + 1)...; R(A + B + 1) holds the
+    // receiver of an unbound method. The result goes to R(A).
+    static final byte CALL = 43;
+    static final byte CLOSURE = 44; // R(A) = a closure of function K(Bx)
+    static final byte RETURN = 45; // return R(A)
+    static final byte RETURN_NIL = 46;
+    static final byte CLASS = 47; // R(A) = a new class named K(Bx)
+    static final byte INHERIT = 48; // class R(A) inherits from R(B)
+    static final byte METHOD = 49; // class R(A) gets method R(B)
+    static final byte STATIC_METHOD = 50; // class R(A) gets static method R(B)
+
+    private RegisterOpCode() {
+    }
+
+    static int encode(byte op, int a, int b, int c) {
+        return (op & 0xff) | a << 8 | b << 16 | c << 24;
+    }
+
+    static int encode(byte op, int a, int bx) {
+        return (op & 0xff) | a << 8 | bx << 16;
+    }
+}
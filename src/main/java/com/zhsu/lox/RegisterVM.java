@@ -0,0 +1,779 @@
+package com.zhsu.lox;
+
+import static com.zhsu.lox.NanBox.FALSE;
+import static com.zhsu.lox.NanBox.NIL;
+import static com.zhsu.lox.NanBox.OBJECT;
+import static com.zhsu.lox.NanBox.TRUE;
+import static com.zhsu.lox.NanBox.UNDEFINED;
+import static com.zhsu.lox.NanBox.asNumber;
+import static com.zhsu.lox.NanBox.bool;
+import static com.zhsu.lox.NanBox.isFalsey;
+import static com.zhsu.lox.NanBox.isNumber;
+import static com.zhsu.lox.NanBox.number;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Runs what the RegisterCompiler makes of the resolved AST. Every frame is
+// a window of registers: a call's arguments are left by the caller right
+// where the callee's first slots are, and a method's receiver in the slot
+// after them. Registers hold NaN boxes in values[], with the reference of
+// each OBJECT in the same index of refs[], so numbers, booleans and nil
+// are never allocated.
+class RegisterVM {
+
+    static final class Function {
+
+        // Null for a lambda.
+        final String name;
+        final int arity;
+        final boolean isGetter;
+        // An instance method, which finds its receiver in the register
+        // after its parameters.
+        final boolean isMethod;
+        final boolean isInitializer;
+        int[] code = new int[64];
+        int[] lines = new int[64];
+        int count = 0;
+        long[] constants = new long[16];
+        Object[] constantRefs = new Object[16];
+        int constantCount = 0;
+        private final Map<Object, Integer> constantIndex = new HashMap<>();
+        int registerCount = 0;
+        // Where each upvalue of a new closure comes from: a register of
+        // the frame making it, or -1 - i for that frame's own upvalue i.
+        int[] captures = new int[0];
+
+        Function(String name, int arity, boolean isGetter, boolean isMethod,
+                boolean isInitializer) {
+            this.name = name;
+            this.arity = arity;
+            this.isGetter = isGetter;
+            this.isMethod = isMethod;
+            this.isInitializer = isInitializer;
+        }
+
+        void write(int word, int line) {
+            if (count == code.length) {
+                code = Arrays.copyOf(code, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+            }
+            code[count] = word;
+            lines[count] = line;
+            count++;
+        }
+
+        // Numbers and strings are interned like in a Chunk.
+        int addConstant(long box, Object ref) {
+            Object key = box == OBJECT ? ref : (Long) box;
+            boolean internable = !(ref instanceof Function);
+            if (internable) {
+                Integer index = constantIndex.get(key);
+                if (index != null) {
+                    return index;
+                }
+            }
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+                constantRefs = Arrays.copyOf(constantRefs, constantCount * 2);
+            }
+            constants[constantCount] = box;
+            constantRefs[constantCount] = ref;
+            if (internable) {
+                constantIndex.put(key, constantCount);
+            }
+            return constantCount++;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null) {
+                return "<anonymous fn>";
+            }
+            return "<fn " + name + ">";
+        }
+    }
+
+    // A captured variable, which lives in one of these from its
+    // declaration on.
+    static final class Upvalue {
+
+        long value;
+        Object ref;
+
+        Upvalue(long value, Object ref) {
+            this.value = value;
+            this.ref = ref;
+        }
+    }
+
+    static final class Closure {
+
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function, Upvalue[] upvalues) {
+            this.function = function;
+            this.upvalues = upvalues;
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class Instance {
+
+        final Class klass;
+        Shape shape;
+        long[] fields;
+        Object[] fieldRefs;
+
+        Instance(Class klass) {
+            this.klass = klass;
+            // A Class is itself an instance but has no class to share a
+            // shape tree with.
+            this.shape = klass != null ? klass.instanceShape : new Shape();
+            this.fieldRefs = shape.newFields();
+            this.fields = new long[fieldRefs.length];
+        }
+
+        void set(String name, long value, Object ref) {
+            int slot = shape.slotOf(name);
+            if (slot == -1) {
+                shape = shape.withField(name);
+                fieldRefs = shape.fit(fieldRefs);
+                if (fields.length < fieldRefs.length) {
+                    fields = Arrays.copyOf(fields, fieldRefs.length);
+                }
+                slot = shape.size() - 1;
+            }
+            fields[slot] = value;
+            fieldRefs[slot] = ref;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static final class Class extends Instance {
+
+        final String name;
+        // Inherited methods are copied down by INHERIT, so each lookup is a
+        // single probe.
+        final Map<String, Closure> methods = new HashMap<>();
+        final Map<String, Closure> staticMethods = new HashMap<>();
+        final Shape instanceShape = new Shape();
+        Closure initializer = null;
+
+        Class(String name) {
+            super(null);
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static final class BoundMethod {
+
+        final Instance receiver;
+        final Closure method;
+
+        BoundMethod(Instance receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+    abstract static class Native {
+
+        final int arity;
+
+        Native(int arity) {
+            this.arity = arity;
+        }
+
+        abstract Object call(Object[] arguments);
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    private static final class Frame {
+
+        Closure closure;
+        int ip;
+        // Absolute index of register zero.
+        int base;
+        // Absolute register the result goes to.
+        int result;
+    }
+
+    private static final int FRAMES_MAX = 1 << 16;
+
+    private long[] values = new long[1024];
+    private Object[] refs = new Object[1024];
+    private Frame[] frames = new Frame[64];
+    private int frameCount = 0;
+
+    // Globals are numbered when first compiled, so a use is an array
+    // access; a number whose value is UNDEFINED is not defined yet.
+    private final Map<String, Integer> globalIndex = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private long[] globals = new long[64];
+    private Object[] globalRefs = new Object[64];
+
+    // Counts instructions run while set, for the Benchmark.
+    boolean countInstructions = false;
+    long instructionCount = 0;
+
+    RegisterVM() {
+        Native clock = new Native(0) {
+            @Override
+            Object call(Object[] arguments) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        };
+        int index = global("clock");
+        globals[index] = OBJECT;
+        globalRefs[index] = clock;
+    }
+
+    int global(String name) {
+        Integer index = globalIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+        int next = globalIndex.size();
+        if (next == globals.length) {
+            globalNames = Arrays.copyOf(globalNames, next * 2);
+            globals = Arrays.copyOf(globals, next * 2);
+            globalRefs = Arrays.copyOf(globalRefs, next * 2);
+        }
+        globalNames[next] = name;
+        globals[next] = UNDEFINED;
+        globalIndex.put(name, next);
+        return next;
+    }
+
+    void interpret(Function script) {
+        try {
+            frameCount = 0;
+            pushFrame(new Closure(script, new Upvalue[0]), 0, -1);
+            run();
+        } catch (RuntimeError error) {
+            frameCount = 0;
+            Lox.runtimeError(error);
+        }
+    }
+
+    private void run() {
+        frames:
+        for (;;) {
+            Frame frame = frames[frameCount - 1];
+            Closure closure = frame.closure;
+            int[] code = closure.function.code;
+            long[] constants = closure.function.constants;
+            Object[] constantRefs = closure.function.constantRefs;
+            long[] v = values;
+            Object[] r = refs;
+            int base = frame.base;
+            int ip = frame.ip;
+            boolean counting = countInstructions;
+
+            for (;;) {
+                if (counting) {
+                    instructionCount++;
+                }
+                int word = code[ip++];
+                int a = base + ((word >>> 8) & 0xff);
+                int b = base + ((word >>> 16) & 0xff);
+                switch ((byte) word) {
+                    case RegisterOpCode.MOVE -> {
+                        v[a] = v[b];
+                        r[a] = r[b];
+                    }
+                    case RegisterOpCode.LOAD_CONSTANT -> {
+                        v[a] = constants[word >>> 16];
+                        r[a] = constantRefs[word >>> 16];
+                    }
+                    case RegisterOpCode.LOAD_NIL ->
+                        v[a] = NIL;
+                    case RegisterOpCode.LOAD_TRUE ->
+                        v[a] = TRUE;
+                    case RegisterOpCode.LOAD_FALSE ->
+                        v[a] = FALSE;
+                    case RegisterOpCode.GET_GLOBAL -> {
+                        int index = word >>> 16;
+                        long value = globals[index];
+                        if (value == UNDEFINED) {
+                            frame.ip = ip;
+                            throw error("Undefined variable '" + globalNames[index] + "'.");
+                        }
+                        v[a] = value;
+                        r[a] = globalRefs[index];
+                    }
+                    case RegisterOpCode.SET_GLOBAL -> {
+                        int index = word >>> 16;
+                        if (globals[index] == UNDEFINED) {
+                            frame.ip = ip;
+                            throw error("Undefined variable '" + globalNames[index] + "'.");
+                        }
+                        globals[index] = v[a];
+                        globalRefs[index] = r[a];
+                    }
+                    case RegisterOpCode.DEFINE_GLOBAL -> {
+                        globals[word >>> 16] = v[a];
+                        globalRefs[word >>> 16] = r[a];
+                    }
+                    case RegisterOpCode.NEW_CELL -> {
+                        v[a] = OBJECT;
+                        r[a] = new Upvalue(NIL, null);
+                    }
+                    case RegisterOpCode.BOX -> {
+                        r[a] = new Upvalue(v[a], r[a]);
+                        v[a] = OBJECT;
+                    }
+                    case RegisterOpCode.GET_CELL -> {
+                        Upvalue cell = (Upvalue) r[b];
+                        v[a] = cell.value;
+                        r[a] = cell.ref;
+                    }
+                    case RegisterOpCode.SET_CELL -> {
+                        Upvalue cell = (Upvalue) r[a];
+                        cell.value = v[b];
+                        cell.ref = r[b];
+                    }
+                    case RegisterOpCode.GET_UPVALUE -> {
+                        Upvalue upvalue = closure.upvalues[b - base];
+                        v[a] = upvalue.value;
+                        r[a] = upvalue.ref;
+                    }
+                    case RegisterOpCode.SET_UPVALUE -> {
+                        Upvalue upvalue = closure.upvalues[a - base];
+                        upvalue.value = v[b];
+                        upvalue.ref = r[b];
+                    }
+                    case RegisterOpCode.GET_PROPERTY -> {
+                        String name = (String) constantRefs[code[ip++]];
+                        frame.ip = ip;
+                        if (getProperty(a, b, name, false)) {
+                            continue frames;
+                        }
+                    }
+                    case RegisterOpCode.GET_METHOD -> {
+                        String name = (String) constantRefs[code[ip++]];
+                        frame.ip = ip;
+                        if (getProperty(a, b, name, true)) {
+                            continue frames;
+                        }
+                    }
+                    case RegisterOpCode.SET_PROPERTY -> {
+                        String name = (String) constantRefs[code[ip++]];
+                        Object target = v[a] == OBJECT ? r[a] : null;
+                        if (!(target instanceof Instance)) {
+                            frame.ip = ip;
+                            throw error("Only instances have fields.");
+                        }
+                        ((Instance) target).set(name, v[b], r[b]);
+                    }
+                    case RegisterOpCode.GET_SUPER -> {
+                        String name = (String) constantRefs[code[ip++]];
+                        frame.ip = ip;
+                        Closure method = superMethod((Class) r[b], name);
+                        r[a] = new BoundMethod((Instance) r[base + (word >>> 24)], method);
+                        v[a] = OBJECT;
+                    }
+                    case RegisterOpCode.GET_SUPER_METHOD -> {
+                        String name = (String) constantRefs[code[ip++]];
+                        frame.ip = ip;
+                        r[a] = superMethod((Class) r[b], name);
+                        v[a] = OBJECT;
+                    }
+                    case RegisterOpCode.EQUAL -> {
+                        int c = base + (word >>> 24);
+                        v[a] = bool(NanBox.isEqual(v[b], r[b], v[c], r[c]));
+                    }
+                    case RegisterOpCode.NOT_EQUAL -> {
+                        int c = base + (word >>> 24);
+                        v[a] = bool(!NanBox.isEqual(v[b], r[b], v[c], r[c]));
+                    }
+                    case RegisterOpCode.GREATER -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = bool(asNumber(x) > asNumber(y));
+                    }
+                    case RegisterOpCode.GREATER_EQUAL -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = bool(asNumber(x) >= asNumber(y));
+                    }
+                    case RegisterOpCode.LESS -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = bool(asNumber(x) < asNumber(y));
+                    }
+                    case RegisterOpCode.LESS_EQUAL -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = bool(asNumber(x) <= asNumber(y));
+                    }
+                    case RegisterOpCode.ADD -> {
+                        int c = base + (word >>> 24);
+                        long x = v[b];
+                        long y = v[c];
+                        if (isNumber(x) && isNumber(y)) {
+                            v[a] = number(asNumber(x) + asNumber(y));
+                        } else {
+                            frame.ip = ip;
+                            r[a] = concatenate(x, r[b], y, r[c]);
+                            v[a] = OBJECT;
+                        }
+                    }
+                    case RegisterOpCode.SUBTRACT -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = number(asNumber(x) - asNumber(y));
+                    }
+                    case RegisterOpCode.MULTIPLY -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = number(asNumber(x) * asNumber(y));
+                    }
+                    case RegisterOpCode.DIVIDE -> {
+                        long x = v[b];
+                        long y = v[base + (word >>> 24)];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        if (asNumber(y) == 0.0) {
+                            frame.ip = ip;
+                            throw error("Deviding zero.");
+                        }
+                        v[a] = number(asNumber(x) / asNumber(y));
+                    }
+                    case RegisterOpCode.ADD_CONSTANT -> {
+                        int c = word >>> 24;
+                        long x = v[b];
+                        if (isNumber(x)) {
+                            v[a] = number(asNumber(x) + asNumber(constants[c]));
+                        } else {
+                            frame.ip = ip;
+                            r[a] = concatenate(x, r[b], constants[c], null);
+                            v[a] = OBJECT;
+                        }
+                    }
+                    case RegisterOpCode.SUBTRACT_CONSTANT -> {
+                        long x = v[b];
+                        if (!isNumber(x)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        v[a] = number(asNumber(x) - asNumber(constants[word >>> 24]));
+                    }
+                    case RegisterOpCode.NOT ->
+                        v[a] = bool(isFalsey(v[b]));
+                    case RegisterOpCode.NEGATE -> {
+                        long x = v[b];
+                        if (!isNumber(x)) {
+                            frame.ip = ip;
+                            throw error("Operand must be a number.");
+                        }
+                        v[a] = number(-asNumber(x));
+                    }
+                    case RegisterOpCode.PRINT ->
+                        System.out.println(NanBox.stringify(v[a], r[a]));
+                    case RegisterOpCode.JUMP ->
+                        ip += word >> 8;
+                    case RegisterOpCode.JUMP_IF_FALSE -> {
+                        int offset = code[ip++];
+                        if (isFalsey(v[a])) {
+                            ip += offset;
+                        }
+                    }
+                    case RegisterOpCode.JUMP_IF_TRUE -> {
+                        int offset = code[ip++];
+                        if (!isFalsey(v[a])) {
+                            ip += offset;
+                        }
+                    }
+                    case RegisterOpCode.JUMP_IF_NOT_EQUAL,
+                            RegisterOpCode.JUMP_IF_EQUAL -> {
+                        int offset = code[ip++];
+                        boolean equal;
+                        if ((word >>> 24) != 0) {
+                            int k = (word >>> 16) & 0xff;
+                            equal = NanBox.isEqual(v[a], r[a], constants[k], constantRefs[k]);
+                        } else {
+                            equal = NanBox.isEqual(v[a], r[a], v[b], r[b]);
+                        }
+                        if (equal != ((byte) word == RegisterOpCode.JUMP_IF_NOT_EQUAL)) {
+                            ip += offset;
+                        }
+                    }
+                    case RegisterOpCode.JUMP_IF_NOT_GREATER,
+                            RegisterOpCode.JUMP_IF_NOT_GREATER_EQUAL,
+                            RegisterOpCode.JUMP_IF_NOT_LESS,
+                            RegisterOpCode.JUMP_IF_NOT_LESS_EQUAL -> {
+                        int offset = code[ip++];
+                        long x = v[a];
+                        long y = (word >>> 24) != 0 ? constants[(word >>> 16) & 0xff] : v[b];
+                        if (!isNumber(x) || !isNumber(y)) {
+                            frame.ip = ip;
+                            throw error("Operands must be numbers.");
+                        }
+                        double left = asNumber(x);
+                        double right = asNumber(y);
+                        boolean holds = switch ((byte) word) {
+                            case RegisterOpCode.JUMP_IF_NOT_GREATER -> left > right;
+                            case RegisterOpCode.JUMP_IF_NOT_GREATER_EQUAL -> left >= right;
+                            case RegisterOpCode.JUMP_IF_NOT_LESS -> left < right;
+                            default -> left <= right;
+                        };
+                        if (!holds) {
+                            ip += offset;
+                        }
+                    }
+                    case RegisterOpCode.CALL -> {
+                        frame.ip = ip;
+                        if (call(a, (word >>> 16) & 0xff)) {
+                            continue frames;
+                        }
+                    }
+                    case RegisterOpCode.CLOSURE -> {
+                        Function function = (Function) constantRefs[word >>> 16];
+                        int[] captures = function.captures;
+                        Upvalue[] upvalues = new Upvalue[captures.length];
+                        for (int i = 0; i < captures.length; i++) {
+                            int source = captures[i];
+                            upvalues[i] = source >= 0
+                                    ? (Upvalue) r[base + source]
+                                    : closure.upvalues[-1 - source];
+                        }
+                        r[a] = new Closure(function, upvalues);
+                        v[a] = OBJECT;
+                    }
+                    case RegisterOpCode.RETURN, RegisterOpCode.RETURN_NIL -> {
+                        long value = (byte) word == RegisterOpCode.RETURN ? v[a] : NIL;
+                        Object ref = r[a];
+                        frameCount--;
+                        if (frameCount == 0) {
+                            return;
+                        }
+                        values[frame.result] = value;
+                        refs[frame.result] = ref;
+                        continue frames;
+                    }
+                    case RegisterOpCode.CLASS -> {
+                        r[a] = new Class((String) constantRefs[word >>> 16]);
+                        v[a] = OBJECT;
+                    }
+                    case RegisterOpCode.INHERIT -> {
+                        Object superclass = v[b] == OBJECT ? r[b] : null;
+                        if (!(superclass instanceof Class)) {
+                            frame.ip = ip;
+                            throw error("Superclass must be a class.");
+                        }
+                        Class subclass = (Class) r[a];
+                        subclass.methods.putAll(((Class) superclass).methods);
+                        subclass.staticMethods.putAll(((Class) superclass).staticMethods);
+                        subclass.initializer = ((Class) superclass).initializer;
+                    }
+                    case RegisterOpCode.METHOD -> {
+                        Class klass = (Class) r[a];
+                        Closure method = (Closure) r[b];
+                        klass.methods.put(method.function.name, method);
+                        if (method.function.isInitializer) {
+                            klass.initializer = method;
+                        }
+                    }
+                    case RegisterOpCode.STATIC_METHOD -> {
+                        Closure method = (Closure) r[b];
+                        ((Class) r[a]).staticMethods.put(method.function.name, method);
+                    }
+                    default ->
+                        throw new IllegalStateException("Unknown opcode " + (byte) word);
+                }
+            }
+        }
+    }
+
+    private Object concatenate(long x, Object xRef, long y, Object yRef) {
+        if (NanBox.isString(x, xRef) || NanBox.isString(y, yRef)) {
+            return NanBox.stringify(x, xRef) + NanBox.stringify(y, yRef);
+        }
+        throw error("Operands must be two numbers or two strings.");
+    }
+
+    private Closure superMethod(Class superclass, String name) {
+        Closure method = superclass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        return method;
+    }
+
+    // Puts property name of register object in register result. A method
+    // is bound to the object, or for GET_METHOD left unbound for the CALL
+    // that follows. Returns true if a getter's frame was pushed instead.
+    private boolean getProperty(int result, int object, String name, boolean forCall) {
+        Object receiver = values[object] == OBJECT ? refs[object] : null;
+        Closure method;
+        if (receiver instanceof Class) {
+            // Fields stored on a class are never visible through a get.
+            method = ((Class) receiver).staticMethods.get(name);
+        } else if (receiver instanceof Instance) {
+            Instance instance = (Instance) receiver;
+            int slot = instance.shape.slotOf(name);
+            if (slot != -1) {
+                values[result] = instance.fields[slot];
+                refs[result] = instance.fieldRefs[slot];
+                return false;
+            }
+            method = instance.klass.methods.get(name);
+        } else {
+            throw error("Only instances have properties.");
+        }
+
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        if (method.function.isGetter) {
+            // The getter's frame goes above every register of this one.
+            Frame frame = frames[frameCount - 1];
+            int base = frame.base + frame.closure.function.registerCount;
+            pushFrame(method, base, result);
+            values[base] = OBJECT;
+            refs[base] = receiver;
+            return true;
+        }
+        values[result] = OBJECT;
+        refs[result] = forCall || !method.function.isMethod
+                ? method : new BoundMethod((Instance) receiver, method);
+        return false;
+    }
+
+    // Calls register callee with the argCount arguments after it. Returns
+    // true if a frame was pushed.
+    private boolean call(int callee, int argCount) {
+        Object function = values[callee] == OBJECT ? refs[callee] : null;
+        int receiver = callee + argCount + 1;
+        if (function instanceof Closure) {
+            Closure closure = (Closure) function;
+            checkArity(closure.function.arity, argCount);
+            pushFrame(closure, callee + 1, callee);
+            return true;
+        } else if (function instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) function;
+            checkArity(bound.method.function.arity, argCount);
+            values[receiver] = OBJECT;
+            refs[receiver] = bound.receiver;
+            pushFrame(bound.method, callee + 1, callee);
+            return true;
+        } else if (function instanceof Class) {
+            Class klass = (Class) function;
+            Instance instance = new Instance(klass);
+            if (klass.initializer == null) {
+                checkArity(0, argCount);
+                refs[callee] = instance;
+                return false;
+            }
+            checkArity(klass.initializer.function.arity, argCount);
+            values[receiver] = OBJECT;
+            refs[receiver] = instance;
+            pushFrame(klass.initializer, callee + 1, callee);
+            return true;
+        } else if (function instanceof Native) {
+            Native nativeFunction = (Native) function;
+            checkArity(nativeFunction.arity, argCount);
+            Object[] arguments = new Object[argCount];
+            for (int i = 0; i < argCount; i++) {
+                arguments[i] = NanBox.toObject(values[callee + 1 + i], refs[callee + 1 + i]);
+            }
+            Object result = nativeFunction.call(arguments);
+            values[callee] = NanBox.box(result);
+            refs[callee] = result;
+            return false;
+        }
+        throw error("Can only call functions and classes.");
+    }
+
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw error("Expected " + arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    private void pushFrame(Closure closure, int base, int result) {
+        if (frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        int needed = base + closure.function.registerCount;
+        if (needed > values.length) {
+            int size = Math.max(needed, values.length * 2);
+            values = Arrays.copyOf(values, size);
+            refs = Arrays.copyOf(refs, size);
+        }
+
+        Frame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new Frame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        frame.result = result;
+        frameCount++;
+    }
+
+    // Reports against the line of the instruction the current frame last
+    // read, so callers must store their ip into the frame first.
+    private RuntimeError error(String message) {
+        Frame frame = frames[frameCount - 1];
+        int line = frame.closure.function.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+}
@@ -1,5 +1,6 @@
 package com.zhsu.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,18 +11,56 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private static class VariableDeclaration {
 
         final Token token;
+        final Frame frame;
+        // Index of the variable in its frame.
+        final int slot;
+        // The statement declaring it, which is told when the variable
+        // needs a Cell. Null for parameters and "this".
+        final Stmt statement;
         boolean isDefined;
         boolean isUsed;
+        boolean isCaptured;
 
-        VariableDeclaration(Token token) {
+        VariableDeclaration(Token token, Frame frame, int slot, Stmt statement) {
             this.token = token;
+            this.frame = frame;
+            this.slot = slot;
+            this.statement = statement;
             this.isDefined = false;
             this.isUsed = false;
+            this.isCaptured = false;
+        }
+    }
+
+    // The locals of one function body, or of a top-level block or class
+    // that needs somewhere to keep its own. Nested blocks share their
+    // function's frame and reuse the slots of scopes that have ended.
+    private static class Frame {
+
+        final Frame enclosing;
+        int size = 0;
+        int maxSize = 0;
+        // What the function captures, in upvalue order: the declarations,
+        // and where to copy each Cell from when the closure is created; a
+        // slot in the enclosing frame, or -1 - i for its upvalue i.
+        final List<VariableDeclaration> captured = new ArrayList<>();
+        final List<Integer> captures = new ArrayList<>();
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        int[] captures() {
+            int[] result = new int[captures.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = captures.get(i);
+            }
+            return result;
         }
     }
 
-    private final Interpreter interpreter;
     private final Stack<Map<String, VariableDeclaration>> scopes = new Stack<>();
+    private Frame currentFrame = null;
     private FunctionType currentFunction = FunctionType.NONE;
 
     private enum FunctionType {
@@ -40,8 +79,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private ClassType currentClass = ClassType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // The module being resolved, whose namespace its globals are looked up
+    // in; null for the main script.
+    private final Module module;
+
+    Resolver() {
+        this(null);
+    }
+
+    Resolver(Module module) {
+        this.module = module;
     }
 
     void resolve(List<Stmt> statements) {
@@ -62,16 +109,41 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        beginFrame();
         beginScope();
         for (Token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // An instance method gets its receiver in its own frame, right
+            // after the parameters, so calling it needs no bound copy.
+            declareHidden(TokenType.THIS, "this");
+        }
+        if (type == FunctionType.STATIC && function.name.lexeme.equals("init")) {
+            // A static "init" returns its class, which it finds as its
+            // first upvalue.
+            captureVariable(resolveLocal(new Token(TokenType.THIS, "this", null, 0)));
+        }
         resolve(function.body);
+        function.boxedSlots = boxedSlots(scopes.peek());
         endScope();
+        function.captures = currentFrame.captures();
+        function.slotCount = endFrame();
         currentFunction = enclosingFunction;
     }
 
+    private void beginFrame() {
+        currentFrame = new Frame(currentFrame);
+    }
+
+    // Returns the number of slots the frame needs.
+    private int endFrame() {
+        int size = currentFrame.maxSize;
+        currentFrame = currentFrame.enclosing;
+        return size;
+    }
+
     private void beginScope() {
         scopes.push(new HashMap<String, VariableDeclaration>());
     }
@@ -83,12 +155,45 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 Lox.error(decl.token,
                         "Local variable '" + decl.token.lexeme + "' is declared but never used.");
             }
+            if (decl.isCaptured) {
+                markBoxed(decl.statement);
+            }
+        }
+        // The scope's slots are free for whatever is declared next.
+        currentFrame.size -= scope.size();
+    }
+
+    private static void markBoxed(Stmt statement) {
+        if (statement instanceof Stmt.Var) {
+            ((Stmt.Var) statement).boxed = true;
+        } else if (statement instanceof Stmt.Function) {
+            ((Stmt.Function) statement).boxed = true;
+        } else if (statement instanceof Stmt.Class) {
+            ((Stmt.Class) statement).boxed = true;
+        }
+    }
+
+    // Slots of captured parameters (and "this"), which a call boxes before
+    // running the body.
+    private static int[] boxedSlots(Map<String, VariableDeclaration> scope) {
+        return scope.values().stream()
+                .filter(decl -> decl.isCaptured && decl.statement == null)
+                .mapToInt(decl -> decl.slot)
+                .toArray();
+    }
+
+    private int nextSlot() {
+        int slot = currentFrame.size++;
+        if (currentFrame.size > currentFrame.maxSize) {
+            currentFrame.maxSize = currentFrame.size;
         }
+        return slot;
     }
 
-    private void declare(Token name) {
+    // Returns the slot given to the variable, or -1 for a global.
+    private int declare(Token name, Stmt statement) {
         if (scopes.isEmpty()) {
-            return;
+            return -1;
         }
 
         Map<String, VariableDeclaration> scope = scopes.peek();
@@ -96,7 +201,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(name,
                     "Already a variable with this name in this scope.");
         }
-        scope.put(name.lexeme, new VariableDeclaration(name));
+        int slot = nextSlot();
+        scope.put(name.lexeme, new VariableDeclaration(name, currentFrame, slot, statement));
+        return slot;
+    }
+
+    // Declares "this" or "super", which are defined from the start.
+    private int declareHidden(TokenType type, String name) {
+        VariableDeclaration decl = new VariableDeclaration(
+                new Token(type, name, null, 0), currentFrame, nextSlot(), null);
+        decl.isDefined = true;
+        scopes.peek().put(name, decl);
+        return decl.slot;
     }
 
     private void define(Token name) {
@@ -107,23 +223,56 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         decl.isDefined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Marks the innermost local called name as used and returns it, or
+    // returns null if name must be a global.
+    private VariableDeclaration resolveLocal(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            Map<String, VariableDeclaration> scope = scopes.get(i);
-            if (scope.containsKey(name.lexeme)) {
-                VariableDeclaration decl = scope.get(name.lexeme);
+            VariableDeclaration decl = scopes.get(i).get(name.lexeme);
+            if (decl != null) {
                 decl.isUsed = true;
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return decl;
             }
         }
+        return null;
+    }
+
+    // Returns the index of decl among the current function's upvalues, or -1
+    // if it lives in the current frame.
+    private int captureVariable(VariableDeclaration decl) {
+        if (decl.frame == currentFrame) {
+            return -1;
+        }
+        decl.isCaptured = true;
+        return upvalueIndex(currentFrame, decl);
+    }
+
+    private static int upvalueIndex(Frame frame, VariableDeclaration decl) {
+        int index = frame.captured.indexOf(decl);
+        if (index != -1) {
+            return index;
+        }
+        int source = frame.enclosing == decl.frame
+                ? decl.slot
+                : -1 - upvalueIndex(frame.enclosing, decl);
+        frame.captured.add(decl);
+        frame.captures.add(source);
+        return frame.captured.size() - 1;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // Outside any function a block needs a frame of its own; inside
+        // one, its locals go in the function's frame.
+        boolean ownsFrame = currentFrame == null;
+        if (ownsFrame) {
+            beginFrame();
+        }
         beginScope();
         resolve(stmt.statements);
         endScope();
+        if (ownsFrame) {
+            stmt.slotCount = endFrame();
+        }
         return null;
     }
 
@@ -132,7 +281,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         if (stmt.superclass != null &&
@@ -146,21 +295,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.superclass);
         }
 
+        // "super" and the class seen by static methods are hidden locals,
+        // which at the top level need a frame of their own.
+        boolean ownsFrame = currentFrame == null;
+        if (ownsFrame) {
+            beginFrame();
+        }
+
         if (stmt.superclass != null) {
             beginScope();
-            VariableDeclaration decl = new VariableDeclaration(
-                    new Token(TokenType.SUPER, "super", null, 0));
-            decl.isDefined = true;
-            scopes.peek().put("super", decl);
+            stmt.superSlot = declareHidden(TokenType.SUPER, "super");
         }
 
-        beginScope();
-
-        VariableDeclaration decl = new VariableDeclaration(
-                new Token(TokenType.THIS, "this", null, 0));
-        decl.isDefined = true;
-        scopes.peek().put("this", decl);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -168,15 +314,22 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             }
             resolveFunction(method, declaration);
         }
+
+        // Static methods see the class itself as "this".
+        beginScope();
+        stmt.thisSlot = declareHidden(TokenType.THIS, "this");
         for (Stmt.Function method : stmt.staticMethods) {
             resolveFunction(method, FunctionType.STATIC);
         }
-
         endScope();
 
         if (stmt.superclass != null)
             endScope();
 
+        if (ownsFrame) {
+            stmt.slotCount = endFrame();
+        }
+
         currentClass = enclosingClass;
         return null;
     }
@@ -189,7 +342,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -199,7 +352,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -216,6 +369,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        if (!scopes.isEmpty()) {
+            Lox.error(stmt.keyword, "Can only import at the top level.");
+        }
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         resolve(stmt.expression);
@@ -255,14 +416,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        VariableDeclaration decl = resolveLocal(expr.name);
+        if (decl != null) {
+            expr.upvalue = captureVariable(decl);
+            if (expr.upvalue == -1) {
+                expr.slot = decl.slot;
+            }
+        } else {
+            expr.module = module;
+        }
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        VariableDeclaration decl = resolveLocal(expr.name);
+        if (decl != null) {
+            expr.upvalue = captureVariable(decl);
+            if (expr.upvalue == -1) {
+                expr.slot = decl.slot;
+            }
+        } else {
+            expr.module = module;
+        }
         return null;
     }
 
@@ -307,7 +484,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                     "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        // "super" always belongs to the scope around the methods, so a
+        // method reaches it as an upvalue.
+        VariableDeclaration decl = resolveLocal(expr.keyword);
+        if (decl != null) {
+            expr.upvalue = captureVariable(decl);
+        }
+        VariableDeclaration receiver = resolveLocal(
+                new Token(TokenType.THIS, "this", null, expr.keyword.line));
+        if (receiver != null) {
+            expr.thisUpvalue = captureVariable(receiver);
+            if (expr.thisUpvalue == -1) {
+                expr.thisSlot = receiver.slot;
+            }
+        }
         return null;
     }
 
@@ -319,7 +509,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        VariableDeclaration decl = resolveLocal(expr.keyword);
+        if (decl != null) {
+            expr.upvalue = captureVariable(decl);
+            if (expr.upvalue == -1) {
+                expr.slot = decl.slot;
+            }
+        }
         return null;
     }
 
@@ -349,13 +545,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLambdaExpr(Expr.Lambda expr) {
+        beginFrame();
         beginScope();
         for (Token param : expr.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(expr.body);
+        expr.boxedSlots = boxedSlots(scopes.peek());
         endScope();
+        expr.captures = currentFrame.captures();
+        expr.slotCount = endFrame();
         return null;
     }
 
@@ -1,11 +1,9 @@
 package com.zhsu.lox;
 
-class Return extends RuntimeException {
-
-    final Object value;
-
-    Return(Object value) {
-        super(null, null, false, false);
-        this.value = value;
-    }
+// How a statement completes when it ran a return: executing a statement
+// yields RETURN, or null if control just falls through to the next one.
+// The returned value itself is left in Interpreter.returnValue, so returning
+// is an ordinary method return all the way up to the call.
+enum Return {
+    RETURN
 }
@@ -3,10 +3,18 @@ package com.zhsu.lox;
 public class RuntimeError extends RuntimeException {
 
     final Token token;
+    final int line;
 
     public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 
 }
@@ -1,9 +1,9 @@
 package com.zhsu.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
 
 import static com.zhsu.lox.TokenType.AND;
 import static com.zhsu.lox.TokenType.BANG;
@@ -23,6 +23,7 @@ import static com.zhsu.lox.TokenType.GREATER;
 import static com.zhsu.lox.TokenType.GREATER_EQUAL;
 import static com.zhsu.lox.TokenType.IDENTIFIER;
 import static com.zhsu.lox.TokenType.IF;
+import static com.zhsu.lox.TokenType.IMPORT;
 import static com.zhsu.lox.TokenType.LEFT_BRACE;
 import static com.zhsu.lox.TokenType.LEFT_PAREN;
 import static com.zhsu.lox.TokenType.LESS;
@@ -47,51 +48,78 @@ import static com.zhsu.lox.TokenType.TRUE;
 import static com.zhsu.lox.TokenType.VAR;
 import static com.zhsu.lox.TokenType.WHILE;
 
+// Scans UTF-8 bytes, such as a script file mapped into memory. Everything
+// but string literals is ASCII, so the bytes are only decoded when the
+// parser asks the TokenBuffer for a lexeme.
 class Scanner {
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
+    // The largest source there can be: offsets into it are ints.
+    static final long MAX_SOURCE = Integer.MAX_VALUE;
+    // The most tokens scan() makes room for up front; a bigger source
+    // grows the buffer as it goes instead of reserving four ints a byte.
+    private static final int MAX_RESERVE = 1 << 16;
 
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final int length;
+    private final TokenBuffer tokens;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     Scanner(String source) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    Scanner(ByteBuffer source) {
+        this(source, null);
+    }
+
+    // A module's source; its tokens say which file they are from.
+    Scanner(ByteBuffer source, Path file) {
         this.source = source;
+        this.length = source.limit();
+        this.tokens = new TokenBuffer(source, file);
     }
 
     List<Token> scanTokens() {
+        return scan().toList();
+    }
+
+    TokenBuffer scan() {
+        // Code runs to a token every three or four characters, so most
+        // sources fill this without the arrays growing more than once.
+        tokens.reserve(Math.min(length / 4, MAX_RESERVE));
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        start = current;
+        addToken(EOF);
+        return tokens;
+    }
+
+    // The buffer next() adds to.
+    TokenBuffer tokens() {
         return tokens;
     }
 
+    // Scans just far enough to add one more token, EOF once the source is
+    // used up.
+    void next() {
+        int count = tokens.size();
+        while (tokens.size() == count) {
+            if (isAtEnd()) {
+                start = current;
+                addToken(EOF);
+                return;
+            }
+            start = current;
+            scanToken();
+        }
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -149,6 +177,10 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
+                    // One error for a whole multi-byte character.
+                    while (isContinuation(peek())) {
+                        advance();
+                    }
                     Lox.error(line, "Unexpected character");
                 }
             }
@@ -170,8 +202,7 @@ class Scanner {
             }
         }
 
-        addToken(NUMBER,
-                Double.valueOf(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private void string() {
@@ -189,10 +220,7 @@ class Scanner {
 
         // The closing ".
         advance();
-
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
 
     private void identifier() {
@@ -200,19 +228,65 @@ class Scanner {
             advance();
         }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            type = IDENTIFIER;
+        addToken(identifierType());
+    }
+
+    // Tells keywords apart without cutting the lexeme out of the source.
+    private TokenType identifierType() {
+        return switch (charAt(start)) {
+            case 'a' -> keyword(1, "nd", AND);
+            case 'c' -> keyword(1, "lass", CLASS);
+            case 'e' -> keyword(1, "lse", ELSE);
+            case 'f' -> switch (current - start > 1 ? charAt(start + 1) : '\0') {
+                case 'a' -> keyword(2, "lse", FALSE);
+                case 'o' -> keyword(2, "r", FOR);
+                case 'u' -> keyword(2, "n", FUN);
+                default -> IDENTIFIER;
+            };
+            case 'i' -> switch (current - start > 1 ? charAt(start + 1) : '\0') {
+                case 'f' -> keyword(2, "", IF);
+                case 'm' -> keyword(2, "port", IMPORT);
+                default -> IDENTIFIER;
+            };
+            case 'n' -> keyword(1, "il", NIL);
+            case 'o' -> keyword(1, "r", OR);
+            case 'p' -> keyword(1, "rint", PRINT);
+            case 'r' -> keyword(1, "eturn", RETURN);
+            case 's' -> keyword(1, "uper", SUPER);
+            case 't' -> switch (current - start > 1 ? charAt(start + 1) : '\0') {
+                case 'h' -> keyword(2, "is", THIS);
+                case 'r' -> keyword(2, "ue", TRUE);
+                default -> IDENTIFIER;
+            };
+            case 'v' -> keyword(1, "ar", VAR);
+            case 'w' -> keyword(1, "hile", WHILE);
+            default -> IDENTIFIER;
+        };
+    }
+
+    // type if the lexeme continues with rest from offset on and ends there.
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length()
+                && matches(start + offset, rest)) {
+            return type;
+        }
+        return IDENTIFIER;
+    }
+
+    private boolean matches(int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (charAt(offset + i) != text.charAt(i)) {
+                return false;
+            }
         }
-        addToken(type);
+        return true;
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) {
             return false;
         }
-        if (source.charAt(current) != expected) {
+        if (charAt(current) != expected) {
             return false;
         }
 
@@ -221,25 +295,30 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
+    }
+
+    // A byte of the source, as a char between 0 and 255.
+    private char charAt(int index) {
+        return (char) (source.get(index) & 0xff);
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return charAt(current++);
     }
 
     private char peek() {
         if (isAtEnd()) {
             return '\0';
         }
-        return source.charAt(current);
+        return charAt(current);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) {
+        if (current + 1 >= length) {
             return '\0';
         }
-        return source.charAt(current + 1);
+        return charAt(current + 1);
     }
 
     private boolean isDigit(char c) {
@@ -256,12 +335,12 @@ class Scanner {
         return isAlpha(c) || isDigit(c);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    // A byte after the first of a multi-byte UTF-8 character.
+    private boolean isContinuation(char c) {
+        return (c & 0xc0) == 0x80;
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private void addToken(TokenType type) {
+        tokens.add(type, start, current - start, line);
     }
 }
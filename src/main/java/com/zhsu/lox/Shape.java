@@ -0,0 +1,84 @@
+package com.zhsu.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which slot of its Object[] holds
+// which field. Shapes are immutable and form a transition tree, so objects
+// that gain the same fields in the same order end up sharing one Shape.
+final class Shape {
+
+    private static final Object[] NO_FIELDS = new Object[0];
+    // The least a field array grows to, so the first few fields an
+    // instance gets do not each copy it.
+    private static final int MIN_CAPACITY = 4;
+
+    // Field names to slots, shared along a chain of shapes: a shape made
+    // from the last one to add to the map adds its field to the same map,
+    // so n fields added one after another cost one map of n entries. The
+    // entries from size on belong to shapes further down the chain.
+    private final Map<String, Integer> slots;
+    private final int size;
+    private Map<String, Shape> transitions = null;
+
+    Shape() {
+        this.slots = new HashMap<>();
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        if (parent.slots.size() == parent.size) {
+            this.slots = parent.slots;
+        } else {
+            // parent already has a child on its map; this one branches off
+            // with a copy of parent's part of it.
+            this.slots = new HashMap<>();
+            for (Map.Entry<String, Integer> entry : parent.slots.entrySet()) {
+                if (entry.getValue() < parent.size) {
+                    this.slots.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        this.size = parent.size + 1;
+        this.slots.put(name, parent.size);
+    }
+
+    // Returns the slot holding name, or -1 if this shape has no such field.
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null || slot >= size ? -1 : slot;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // The shape reached by adding name as the next field.
+    Shape withField(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+
+    // Storage for a new instance starting out with this shape.
+    Object[] newFields() {
+        return size == 0 ? NO_FIELDS : new Object[size];
+    }
+
+    // Makes sure fields can hold every slot of this shape, doubling it
+    // when it is full so an instance gaining fields one at a time copies
+    // each of them only a few times.
+    Object[] fit(Object[] fields) {
+        if (fields.length >= size) {
+            return fields;
+        }
+        return Arrays.copyOf(fields, Math.max(size, Math.max(MIN_CAPACITY, fields.length * 2)));
+    }
+}
@@ -0,0 +1,14 @@
+package com.zhsu.lox;
+
+// What an Expr.Binary node has specialized itself to, from the operands it
+// has seen. A node starts UNINITIALIZED, settles on NUMBERS or STRINGS the
+// first time it runs, and falls back to GENERIC for good once one of those
+// guards fails.
+enum Specialization {
+    UNINITIALIZED,
+    // Arithmetic or a comparison on two numbers, done on primitive doubles.
+    NUMBERS,
+    // + on two strings.
+    STRINGS,
+    GENERIC
+}
@@ -16,6 +16,8 @@ abstract class Stmt {
 
     R visitIfStmt(If stmt);
 
+    R visitImportStmt(Import stmt);
+
     R visitPrintStmt(Print stmt);
 
     R visitReturnStmt(Return stmt);
@@ -36,6 +38,9 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    // Filled in after parsing.
+    int slotCount;
   }
 
   static class Class extends Stmt {
@@ -55,6 +60,13 @@ abstract class Stmt {
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
     final List<Stmt.Function> staticMethods;
+
+    // Filled in after parsing.
+    int slot = -1;
+    boolean boxed;
+    int slotCount;
+    int superSlot = -1;
+    int thisSlot;
   }
 
   static class Expression extends Stmt {
@@ -87,6 +99,14 @@ abstract class Stmt {
     final List<Token> params;
     final List<Stmt> body;
     final boolean isGetter;
+
+    // Filled in after parsing.
+    int slot = -1;
+    boolean boxed;
+    int slotCount;
+    int[] captures;
+    int[] boxedSlots;
+    Jit.Profile profile;
   }
 
   static class If extends Stmt {
@@ -106,6 +126,24 @@ abstract class Stmt {
     final Stmt elseBranch;
   }
 
+  static class Import extends Stmt {
+    Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+
+    // Filled in after parsing.
+    Module module;
+  }
+
   static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
@@ -147,6 +185,10 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    // Filled in after parsing.
+    int slot = -1;
+    boolean boxed;
   }
 
   static class While extends Stmt {
@@ -162,6 +204,9 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    // Filled in after parsing.
+    Jit.LoopProfile profile;
   }
 
 }
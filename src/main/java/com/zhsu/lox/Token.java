@@ -1,17 +1,27 @@
 package com.zhsu.lox;
 
+import java.nio.file.Path;
+
 class Token {
 
     final TokenType type;
     final String lexeme;
     final Object literal;
     final int line;
+    // The module it is from, for runtime errors to name; null for the main
+    // script.
+    final Path file;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, Path file) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.file = file;
     }
 
     @Override
@@ -0,0 +1,133 @@
+package com.zhsu.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The tokens of a source as parallel arrays, so scanning allocates nothing
+// per token. Offsets are into the source's UTF-8 bytes; a lexeme is decoded
+// only when asked for, and a Token only made for the parser to keep in a
+// node.
+final class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final ByteBuffer source;
+    // The module the source is, null for the main script.
+    private final Path file;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int count = 0;
+
+    TokenBuffer(ByteBuffer source) {
+        this(source, null);
+    }
+
+    TokenBuffer(ByteBuffer source, Path file) {
+        this.source = source;
+        this.file = file;
+        types = new int[256];
+        starts = new int[256];
+        lengths = new int[256];
+        lines = new int[256];
+    }
+
+    // A buffer over tokens scanned before, whose source is their lexemes
+    // run together.
+    static TokenBuffer of(List<Token> tokens) {
+        StringBuilder source = new StringBuilder();
+        for (Token token : tokens) {
+            source.append(token.lexeme);
+        }
+        TokenBuffer buffer = new TokenBuffer(
+                ByteBuffer.wrap(source.toString().getBytes(StandardCharsets.UTF_8)));
+        int start = 0;
+        for (Token token : tokens) {
+            int length = token.lexeme.getBytes(StandardCharsets.UTF_8).length;
+            buffer.add(token.type, start, length, token.line);
+            start += length;
+        }
+        return buffer;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) {
+            // By half, as a reserve() is usually most of the way.
+            reserve(count + (count >> 1));
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    // Makes room for capacity tokens in all.
+    void reserve(int capacity) {
+        if (capacity > types.length) {
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+    }
+
+    // Forgets the first n tokens; the others move down to index zero.
+    void drop(int n) {
+        System.arraycopy(types, n, types, 0, count - n);
+        System.arraycopy(starts, n, starts, 0, count - n);
+        System.arraycopy(lengths, n, lengths, 0, count - n);
+        System.arraycopy(lines, n, lines, 0, count - n);
+        count -= n;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        return text(starts[index], lengths[index]);
+    }
+
+    // The value of a NUMBER or STRING token, null for any other.
+    Object literal(int index) {
+        if (types[index] == TokenType.NUMBER.ordinal()) {
+            return Double.valueOf(lexeme(index));
+        } else if (types[index] == TokenType.STRING.ordinal()) {
+            // Trim the surrounding quotes.
+            return text(starts[index] + 1, lengths[index] - 2);
+        }
+        return null;
+    }
+
+    private String text(int start, int length) {
+        byte[] bytes = new byte[length];
+        source.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), lines[index], file);
+    }
+
+    List<Token> toList() {
+        List<Token> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(token(i));
+        }
+        return tokens;
+    }
+}
@@ -13,7 +13,7 @@ enum TokenType {
     // Literals.
     IDENTIFIER, STRING, NUMBER,
     // Keywords.
-    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
+    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, IMPORT, NIL, OR,
     PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
     EOF
 }
@@ -0,0 +1,1286 @@
+package com.zhsu.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A tier for hot while loops of its own (--trace). Once a loop is hot the
+// Interpreter records one trip round it: which way each if statement went
+// and what each call called. The Tracer compiles just that path into
+// straight-line code, guarded wherever the recording was a guess.
+// Variables that only ever hold numbers on the path live in unboxed
+// doubles, and so do globals as long as the path calls nothing that could
+// look at them. When a guarded if goes the other way, the trace side-exits:
+// it hands its variables back, and the Interpreter finishes that trip round
+// the loop before entering the trace again.
+final class Tracer {
+
+    static boolean enabled = false;
+
+    // What Trace.run returns besides the index of the side exit it took.
+    static final int LOOP_DONE = -1;
+    static final int RETURNED = -2;
+    static final int NOT_ENTERED = -3;
+
+    // Exits a trace may take before the loop is recorded again, and
+    // recordings before the loop is left to the Jit.
+    private static final int MAX_EXITS = 1000;
+    static final int MAX_RECORDINGS = 3;
+
+    private Tracer() {
+    }
+
+    // Watches the Interpreter go round loop once.
+    static final class Recorder {
+        final Stmt.While loop;
+        private final Map<Stmt.If, Boolean> branches = new HashMap<>();
+        // A site seen calling more than one callee maps to null.
+        private final Map<Expr.Call, Object> targets = new HashMap<>();
+
+        Recorder(Stmt.While loop) {
+            this.loop = loop;
+        }
+
+        void branch(Stmt.If stmt, boolean taken) {
+            branches.putIfAbsent(stmt, taken);
+        }
+
+        void call(Expr.Call call, Object callee) {
+            if (!targets.containsKey(call)) {
+                targets.put(call, callee);
+            } else if (targets.get(call) != callee) {
+                targets.put(call, null);
+            }
+        }
+    }
+
+    // Where a side exit leaves off: the branch of the if that the trace did
+    // not take, then the rest of the loop body.
+    static final class Exit {
+        final Stmt.If branch;
+        final List<Stmt> statements;
+        int taken = 0;
+
+        Exit(Stmt.If branch, List<Stmt> statements) {
+            this.branch = branch;
+            this.statements = statements;
+        }
+    }
+
+    abstract static class Trace {
+        // The size of the body's own frame, for a loop on the globals whose
+        // body is a top-level block; 0 otherwise.
+        int blockSize;
+        Exit[] exits;
+        private int exitCount = 0;
+
+        // Runs the loop from its condition on the frame's slots. On a side
+        // exit, the slots of the body's own frame are left in block.
+        abstract int run(Interpreter runtime, Cell[] upvalues, Object[] slots, Object[] block);
+    }
+
+    // Compiles the path recorder saw. Returns null if it holds something
+    // traces do not handle.
+    static Trace compile(Jit.LoopProfile profile, Recorder recorder, Interpreter runtime,
+            Object[] slots, Cell[] upvalues) {
+        profile.recordings++;
+        try {
+            Generator generator = new Generator(recorder, profile.unstable, runtime, slots,
+                    upvalues);
+            byte[] bytes = generator.generate();
+            Trace trace = (Trace) Jit.load(bytes, generator.constants.toArray());
+            trace.blockSize = generator.blockSize;
+            trace.exits = generator.exits.toArray(new Exit[0]);
+            return trace;
+        } catch (Jit.Unsupported | ClassWriter.TooLarge | RuntimeError error) {
+            return null;
+        }
+    }
+
+    // Counts a side exit or failed entry of profile's trace. A trace that
+    // keeps leaving is dropped for a new recording, which compiles the ifs
+    // it kept leaving at both ways.
+    static void exited(Jit.LoopProfile profile, int exit) {
+        Trace trace = profile.trace;
+        if (exit >= 0) {
+            trace.exits[exit].taken++;
+        }
+        if (++trace.exitCount < MAX_EXITS) {
+            return;
+        }
+        if (profile.unstable == null) {
+            profile.unstable = new HashSet<>();
+        }
+        for (Exit each : trace.exits) {
+            if (each.taken * 100 >= MAX_EXITS) {
+                profile.unstable.add(each.branch);
+            }
+        }
+        profile.trace = null;
+        profile.backEdges = Jit.backEdgeThreshold - 1;
+    }
+
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String CELL = "com/zhsu/lox/Cell";
+    private static final String INTERPRETER = "com/zhsu/lox/Interpreter";
+    private static final String RUNTIME = "com/zhsu/lox/JitRuntime";
+    private static final String THIS_CLASS = "com/zhsu/lox/JitTrace";
+    private static final String TOKEN = "Lcom/zhsu/lox/Token;";
+    private static final String O = "Ljava/lang/Object;";
+    private static final String I = "Lcom/zhsu/lox/Interpreter;";
+
+    // What trace code holds a value as.
+    private enum Kind {
+        // An unboxed double.
+        NUMBER,
+        // An int, 0 or 1.
+        BOOLEAN,
+        OBJECT
+    }
+
+    // A variable the trace uses: a slot of the frame (or of the body's own
+    // frame), an upvalue or a global.
+    private static final class Home {
+        int slot = -1;
+        int upvalue = -1;
+        Cell global = null;
+        // Declared by a var statement in the loop.
+        boolean declared = false;
+        boolean assigned = false;
+        // Lives in a Cell, which the trace loads on entry.
+        boolean inCell;
+        // Kept in a JVM local for the whole trace rather than read through
+        // its Cell each time.
+        boolean promoted;
+        Kind kind;
+        int local;
+        int cellLocal;
+    }
+
+    private static final class Generator implements Expr.Visitor<Kind>, Stmt.Visitor<Void> {
+
+        private static final int RUNTIME_LOCAL = 1;
+        private static final int UPVALUES_LOCAL = 2;
+        private static final int SLOTS_LOCAL = 3;
+        private static final int BLOCK_LOCAL = 4;
+        private static final int EXIT_LOCAL = 5;
+
+        private final Recorder recorder;
+        private final Set<Stmt.If> unstable;
+        private final Interpreter runtime;
+        private final Stmt.While loop;
+        // The frame and upvalues as the recording left them.
+        private final Object[] frame;
+        private final Cell[] upvalues;
+        // Whether the loop runs on the globals with a body block owning a
+        // frame, whose slots are the ones the trace sees.
+        private final boolean ownFrame;
+        final int blockSize;
+
+        private final Home[] slotHomes;
+        private final Home[] upvalueHomes;
+        private final Map<Cell, Home> globalHomes = new IdentityHashMap<>();
+        private final List<Home> homes = new ArrayList<>();
+        // Every value stored to a home on the path; null for nil.
+        private final List<Home> stored = new ArrayList<>();
+        private final List<Expr> storedValues = new ArrayList<>();
+        // Whether the path calls anything, which could see globals and
+        // upvalues.
+        private boolean calls = false;
+
+        final List<Object> constants = new ArrayList<>();
+        final List<Exit> exits = new ArrayList<>();
+        private final List<ClassWriter.Label> exitLabels = new ArrayList<>();
+        private final ClassWriter writer = new ClassWriter(THIS_CLASS,
+                "com/zhsu/lox/Tracer$Trace");
+        private ClassWriter.Code code;
+        private final ClassWriter.Label leave = new ClassWriter.Label();
+        private final ClassWriter.Label notEntered = new ClassWriter.Label();
+        private int nextLocal = EXIT_LOCAL + 1;
+        // The statements after the one being compiled, to the end of the
+        // loop body.
+        private List<Stmt> rest = List.of();
+
+        Generator(Recorder recorder, Set<Stmt.If> unstable, Interpreter runtime,
+                Object[] frame, Cell[] upvalues) {
+            this.recorder = recorder;
+            this.unstable = unstable;
+            this.runtime = runtime;
+            this.loop = recorder.loop;
+            this.frame = frame;
+            this.upvalues = upvalues;
+            int frameSize = frame == null ? 0 : frame.length;
+            this.ownFrame = frameSize == 0 && loop.body instanceof Stmt.Block
+                    && ((Stmt.Block) loop.body).slotCount > 0;
+            this.blockSize = ownFrame ? ((Stmt.Block) loop.body).slotCount : 0;
+            this.slotHomes = new Home[ownFrame ? blockSize : frameSize];
+            this.upvalueHomes = new Home[upvalues == null ? 0 : upvalues.length];
+        }
+
+        byte[] generate() {
+            scan(loop.condition);
+            scan(loop.body);
+            assignKinds();
+            for (Home home : homes) {
+                if (home.inCell) {
+                    home.cellLocal = nextLocal++;
+                }
+                if (home.promoted) {
+                    home.local = nextLocal;
+                    nextLocal += home.kind == Kind.NUMBER ? 2 : 1;
+                }
+            }
+
+            code = writer.method(0, "run",
+                    "(" + I + "[Lcom/zhsu/lox/Cell;[Ljava/lang/Object;[Ljava/lang/Object;)I");
+            enter();
+
+            ClassWriter.Label start = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            ClassWriter.Label done = new ClassWriter.Label();
+            code.mark(start);
+            branch(loop.condition, false, done);
+            loop.body.accept(this);
+            code.jump(ClassWriter.GOTO, start);
+            code.mark(done);
+            code.push(LOOP_DONE);
+            code.istore(EXIT_LOCAL);
+            code.jump(ClassWriter.GOTO, leave);
+            for (int i = 0; i < exitLabels.size(); i++) {
+                code.mark(exitLabels.get(i));
+                code.push(i);
+                code.istore(EXIT_LOCAL);
+                code.jump(ClassWriter.GOTO, leave);
+            }
+            code.mark(end);
+
+            code.mark(leave);
+            writeBack();
+            code.iload(EXIT_LOCAL);
+            code.op(ClassWriter.IRETURN, -1);
+            code.unreachable();
+
+            // Whatever the loop throws, the globals it promoted get the
+            // values it had given them.
+            ClassWriter.Label handler = new ClassWriter.Label();
+            code.handler(start, end, handler);
+            code.mark(handler);
+            int thrown = nextLocal++;
+            code.astore(thrown);
+            writeBack();
+            code.aload(thrown);
+            code.op(ClassWriter.ATHROW, -1);
+            code.unreachable();
+
+            code.mark(notEntered);
+            code.push(NOT_ENTERED);
+            code.op(ClassWriter.IRETURN, -1);
+            code.end();
+            return finish();
+        }
+
+        private byte[] finish() {
+            writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC | ClassWriter.ACC_FINAL,
+                    "K", "[Ljava/lang/Object;");
+
+            ClassWriter.Code constructor = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "()V");
+            constructor.aload(0);
+            constructor.invoke(ClassWriter.INVOKESPECIAL, "com/zhsu/lox/Tracer$Trace", "<init>",
+                    "()V");
+            constructor.op(ClassWriter.RETURN, 0);
+            constructor.end();
+
+            ClassWriter.Code init = writer.method(ClassWriter.ACC_STATIC, "<clinit>", "()V");
+            init.invoke(ClassWriter.INVOKESTATIC, "com/zhsu/lox/Jit", "constants",
+                    "()[Ljava/lang/Object;");
+            init.field(ClassWriter.PUTSTATIC, THIS_CLASS, "K", "[Ljava/lang/Object;");
+            init.op(ClassWriter.RETURN, 0);
+            init.end();
+            return writer.toByteArray();
+        }
+
+        // The path: the loop's condition and body, going only the recorded
+        // way through guarded ifs.
+
+        private Boolean direction(Stmt.If stmt) {
+            if (unstable != null && unstable.contains(stmt)) {
+                return null;
+            }
+            return recorder.branches.get(stmt);
+        }
+
+        private Object target(Expr.Call call) {
+            Object target = recorder.targets.get(call);
+            return target instanceof LoxCallable && call.arguments.size() <= 4 ? target : null;
+        }
+
+        private void scan(Stmt stmt) {
+            if (stmt instanceof Stmt.Expression) {
+                scan(((Stmt.Expression) stmt).expression);
+            } else if (stmt instanceof Stmt.Print) {
+                scan(((Stmt.Print) stmt).expression);
+            } else if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var) stmt;
+                if (var.slot == -1 || var.boxed) {
+                    throw new Jit.Unsupported();
+                }
+                Home home = slot(var.slot);
+                home.declared = true;
+                stored(home, var.initializer);
+                if (var.initializer != null) {
+                    scan(var.initializer);
+                }
+            } else if (stmt instanceof Stmt.Block) {
+                Stmt.Block block = (Stmt.Block) stmt;
+                if (block.slotCount > 0 && !(ownFrame && block == loop.body)) {
+                    throw new Jit.Unsupported();
+                }
+                for (Stmt statement : block.statements) {
+                    scan(statement);
+                }
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                scan(ifStmt.condition);
+                Boolean taken = direction(ifStmt);
+                if (taken == null || taken) {
+                    scan(ifStmt.thenBranch);
+                }
+                if ((taken == null || !taken) && ifStmt.elseBranch != null) {
+                    scan(ifStmt.elseBranch);
+                }
+            } else if (stmt instanceof Stmt.Return) {
+                Expr value = ((Stmt.Return) stmt).value;
+                if (value != null) {
+                    scan(value);
+                }
+            } else {
+                // Loops are traced innermost first; functions and classes
+                // are left to the Interpreter.
+                throw new Jit.Unsupported();
+            }
+        }
+
+        private void scan(Expr expr) {
+            if (expr instanceof Expr.Grouping) {
+                scan(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Variable) {
+                home((Expr.Variable) expr);
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign) expr;
+                stored(home(assign), assign.value);
+                scan(assign.value);
+            } else if (expr instanceof Expr.Binary) {
+                scan(((Expr.Binary) expr).left);
+                scan(((Expr.Binary) expr).right);
+            } else if (expr instanceof Expr.Logical) {
+                scan(((Expr.Logical) expr).left);
+                scan(((Expr.Logical) expr).right);
+            } else if (expr instanceof Expr.Unary) {
+                scan(((Expr.Unary) expr).right);
+            } else if (expr instanceof Expr.Conditional) {
+                Expr.Conditional conditional = (Expr.Conditional) expr;
+                scan(conditional.condition);
+                scan(conditional.trueValue);
+                scan(conditional.FalseValue);
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                calls = true;
+                if (call.callee instanceof Expr.Get) {
+                    scan(((Expr.Get) call.callee).object);
+                } else {
+                    scan(call.callee);
+                }
+                for (Expr argument : call.arguments) {
+                    scan(argument);
+                }
+            } else if (expr instanceof Expr.Get) {
+                calls = true;
+                scan(((Expr.Get) expr).object);
+            } else if (expr instanceof Expr.Set) {
+                scan(((Expr.Set) expr).object);
+                scan(((Expr.Set) expr).value);
+            } else if (expr instanceof Expr.This) {
+                home((Expr.This) expr);
+            } else if (expr instanceof Expr.Super) {
+                calls = true;
+                home((Expr.Super) expr);
+            } else if (!(expr instanceof Expr.Literal)) {
+                throw new Jit.Unsupported();
+            }
+        }
+
+        private void stored(Home home, Expr value) {
+            home.assigned = true;
+            stored.add(home);
+            storedValues.add(value);
+        }
+
+        private Home slot(int slot) {
+            if (slot >= slotHomes.length) {
+                throw new Jit.Unsupported();
+            }
+            if (slotHomes[slot] == null) {
+                slotHomes[slot] = added(new Home());
+                slotHomes[slot].slot = slot;
+            }
+            return slotHomes[slot];
+        }
+
+        private Home upvalue(int index) {
+            if (upvalueHomes[index] == null) {
+                upvalueHomes[index] = added(new Home());
+                upvalueHomes[index].upvalue = index;
+            }
+            return upvalueHomes[index];
+        }
+
+        private Home global(Token name, Module module, Cell cached) {
+            // A global's Cell never changes, so looking it up here is as
+            // good as at the use.
+            Cell cell = cached != null ? cached : runtime.namespace(module).cell(name);
+            Home home = globalHomes.get(cell);
+            if (home == null) {
+                home = added(new Home());
+                home.global = cell;
+                globalHomes.put(cell, home);
+            }
+            return home;
+        }
+
+        private Home added(Home home) {
+            homes.add(home);
+            return home;
+        }
+
+        private Home home(Expr.Variable expr) {
+            if (expr.slot != -1) {
+                return slot(expr.slot);
+            } else if (expr.upvalue != -1) {
+                return upvalue(expr.upvalue);
+            }
+            return global(expr.name, expr.module, expr.global);
+        }
+
+        private Home home(Expr.Assign expr) {
+            if (expr.slot != -1) {
+                return slot(expr.slot);
+            } else if (expr.upvalue != -1) {
+                return upvalue(expr.upvalue);
+            }
+            return global(expr.name, expr.module, expr.global);
+        }
+
+        private Home home(Expr.This expr) {
+            return expr.slot != -1 ? slot(expr.slot) : upvalue(expr.upvalue);
+        }
+
+        private Home home(Expr.Super expr) {
+            return expr.thisUpvalue != -1 ? upvalue(expr.thisUpvalue) : slot(expr.thisSlot);
+        }
+
+        // A home is a number if it held one when recorded, or is declared
+        // in the loop, and everything stored to it on the path is one too.
+        private void assignKinds() {
+            for (Home home : homes) {
+                Object value;
+                boolean fresh = false;
+                if (home.slot != -1) {
+                    fresh = ownFrame || home.declared;
+                    value = fresh ? null : frame[home.slot];
+                    home.inCell = value instanceof Cell;
+                } else if (home.upvalue != -1) {
+                    value = upvalues[home.upvalue];
+                    home.inCell = true;
+                } else {
+                    value = home.global;
+                    home.inCell = true;
+                }
+                if (home.inCell) {
+                    value = ((Cell) value).value;
+                }
+                home.promoted = !home.inCell || !calls;
+                home.kind = home.promoted && (fresh || value instanceof Double)
+                        ? Kind.NUMBER : Kind.OBJECT;
+            }
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = 0; i < stored.size(); i++) {
+                    Home home = stored.get(i);
+                    Expr value = storedValues.get(i);
+                    if (home.kind == Kind.NUMBER
+                            && (value == null || kindOf(value) != Kind.NUMBER)) {
+                        home.kind = Kind.OBJECT;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // What the code for expr leaves on the stack.
+        private Kind kindOf(Expr expr) {
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (value instanceof Double) {
+                    return Kind.NUMBER;
+                }
+                return value instanceof Boolean ? Kind.BOOLEAN : Kind.OBJECT;
+            } else if (expr instanceof Expr.Grouping) {
+                return kindOf(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Variable) {
+                return home((Expr.Variable) expr).kind;
+            } else if (expr instanceof Expr.Assign) {
+                return home((Expr.Assign) expr).kind;
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                switch (binary.operator.type) {
+                    case PLUS -> {
+                        return numbers(binary) ? Kind.NUMBER : Kind.OBJECT;
+                    }
+                    case MINUS, STAR, SLASH -> {
+                        return Kind.NUMBER;
+                    }
+                    case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> {
+                        return Kind.BOOLEAN;
+                    }
+                    default -> {
+                        return Kind.OBJECT;
+                    }
+                }
+            } else if (expr instanceof Expr.Unary) {
+                return ((Expr.Unary) expr).operator.type == TokenType.MINUS
+                        ? Kind.NUMBER : Kind.BOOLEAN;
+            } else if (expr instanceof Expr.Logical) {
+                Kind left = kindOf(((Expr.Logical) expr).left);
+                return left == kindOf(((Expr.Logical) expr).right) ? left : Kind.OBJECT;
+            } else if (expr instanceof Expr.Conditional) {
+                Kind trueValue = kindOf(((Expr.Conditional) expr).trueValue);
+                return trueValue == kindOf(((Expr.Conditional) expr).FalseValue)
+                        ? trueValue : Kind.OBJECT;
+            } else if (expr instanceof Expr.This) {
+                return home((Expr.This) expr).kind;
+            }
+            return Kind.OBJECT;
+        }
+
+        private boolean numbers(Expr.Binary expr) {
+            return kindOf(expr.left) == Kind.NUMBER && kindOf(expr.right) == Kind.NUMBER;
+        }
+
+        // Entering and leaving.
+
+        // Loads every home, and returns NOT_ENTERED before the loop has
+        // done anything if one is not what the trace was compiled for.
+        private void enter() {
+            ClassWriter.Label notEnteredPop = new ClassWriter.Label();
+            boolean guarded = false;
+            if (!ownFrame && slotHomes.length > 0) {
+                code.aload(SLOTS_LOCAL);
+                code.op(ClassWriter.ARRAYLENGTH, 0);
+                code.push(slotHomes.length);
+                code.jump(ClassWriter.IF_ICMPNE, notEntered);
+            }
+            for (Home home : homes) {
+                if (home.slot != -1 && (ownFrame || home.declared)) {
+                    if (home.kind == Kind.NUMBER) {
+                        code.ldc(0.0);
+                        code.dstore(home.local);
+                    } else {
+                        code.op(ClassWriter.ACONST_NULL, 1);
+                        code.astore(home.local);
+                    }
+                    continue;
+                }
+
+                if (home.slot != -1) {
+                    code.aload(SLOTS_LOCAL);
+                    code.push(home.slot);
+                    code.op(ClassWriter.AALOAD, -1);
+                    code.op(ClassWriter.DUP, 1);
+                    code.type(ClassWriter.INSTANCEOF, CELL);
+                    code.jump(home.inCell ? ClassWriter.IFEQ : ClassWriter.IFNE, notEnteredPop);
+                    guarded = true;
+                } else if (home.upvalue != -1) {
+                    code.aload(UPVALUES_LOCAL);
+                    code.push(home.upvalue);
+                    code.op(ClassWriter.AALOAD, -1);
+                } else {
+                    constant(home.global, CELL);
+                }
+                if (home.inCell) {
+                    code.type(ClassWriter.CHECKCAST, CELL);
+                    code.astore(home.cellLocal);
+                    if (!home.promoted) {
+                        continue;
+                    }
+                    code.aload(home.cellLocal);
+                    code.field(ClassWriter.GETFIELD, CELL, "value", O);
+                }
+                if (home.kind == Kind.NUMBER) {
+                    code.op(ClassWriter.DUP, 1);
+                    code.type(ClassWriter.INSTANCEOF, DOUBLE);
+                    code.jump(ClassWriter.IFEQ, notEnteredPop);
+                    guarded = true;
+                    unbox();
+                    code.dstore(home.local);
+                } else {
+                    code.astore(home.local);
+                }
+            }
+            if (guarded) {
+                ClassWriter.Label entered = new ClassWriter.Label();
+                code.jump(ClassWriter.GOTO, entered);
+                code.mark(notEnteredPop);
+                code.op(ClassWriter.POP, -1);
+                code.jump(ClassWriter.GOTO, notEntered);
+                code.mark(entered);
+            }
+        }
+
+        // Stores the homes the trace assigned back where they live.
+        private void writeBack() {
+            for (Home home : homes) {
+                if (!home.assigned || !home.promoted) {
+                    continue;
+                }
+                if (home.inCell) {
+                    code.aload(home.cellLocal);
+                    load(home);
+                    box(home.kind);
+                    code.field(ClassWriter.PUTFIELD, CELL, "value", O);
+                } else {
+                    code.aload(ownFrame ? BLOCK_LOCAL : SLOTS_LOCAL);
+                    code.push(home.slot);
+                    load(home);
+                    box(home.kind);
+                    code.op(ClassWriter.AASTORE, -3);
+                }
+            }
+        }
+
+        // Emitting.
+
+        private void constant(Object value, String type) {
+            code.field(ClassWriter.GETSTATIC, THIS_CLASS, "K", "[Ljava/lang/Object;");
+            code.push(constants.size());
+            code.op(ClassWriter.AALOAD, -1);
+            code.type(ClassWriter.CHECKCAST, type);
+            constants.add(value);
+        }
+
+        private void token(Token token) {
+            constant(token, "com/zhsu/lox/Token");
+        }
+
+        private Kind emit(Expr expr) {
+            return expr.accept(this);
+        }
+
+        private void emit(Expr expr, Kind kind) {
+            Kind actual = emit(expr);
+            if (actual != kind) {
+                box(actual);
+            }
+        }
+
+        private void box(Kind kind) {
+            switch (kind) {
+                case NUMBER -> code.invoke(ClassWriter.INVOKESTATIC, DOUBLE, "valueOf",
+                        "(D)Ljava/lang/Double;");
+                case BOOLEAN -> code.invoke(ClassWriter.INVOKESTATIC, "java/lang/Boolean",
+                        "valueOf", "(Z)Ljava/lang/Boolean;");
+                case OBJECT -> {}
+            }
+        }
+
+        private void unbox() {
+            code.type(ClassWriter.CHECKCAST, DOUBLE);
+            code.invoke(ClassWriter.INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        }
+
+        private void pop(Kind kind) {
+            if (kind == Kind.NUMBER) {
+                code.op(ClassWriter.POP2, -2);
+            } else {
+                code.op(ClassWriter.POP, -1);
+            }
+        }
+
+        private void load(Home home) {
+            if (!home.promoted) {
+                code.aload(home.cellLocal);
+                code.field(ClassWriter.GETFIELD, CELL, "value", O);
+            } else if (home.kind == Kind.NUMBER) {
+                code.dload(home.local);
+            } else {
+                code.aload(home.local);
+            }
+        }
+
+        // Stores the value on the stack, of home's kind.
+        private void store(Home home) {
+            if (!home.promoted) {
+                code.aload(home.cellLocal);
+                code.op(ClassWriter.SWAP, 0);
+                code.field(ClassWriter.PUTFIELD, CELL, "value", O);
+            } else if (home.kind == Kind.NUMBER) {
+                code.dstore(home.local);
+            } else {
+                code.astore(home.local);
+            }
+        }
+
+        private void truthy() {
+            code.invoke(ClassWriter.INVOKESTATIC, INTERPRETER, "isTruthy", "(" + O + ")Z");
+        }
+
+        private void operands(Expr.Binary expr) {
+            emit(expr.left, Kind.OBJECT);
+            emit(expr.right, Kind.OBJECT);
+        }
+
+        // Jumps to target if expr's truthiness is when. Comparisons and
+        // logical operators branch directly instead of making a value.
+        private void branch(Expr expr, boolean when, ClassWriter.Label target) {
+            if (expr instanceof Expr.Grouping) {
+                branch(((Expr.Grouping) expr).expression, when, target);
+                return;
+            }
+            if (expr instanceof Expr.Unary
+                    && ((Expr.Unary) expr).operator.type == TokenType.BANG) {
+                branch(((Expr.Unary) expr).right, !when, target);
+                return;
+            }
+            if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical) expr;
+                boolean and = logical.operator.type == TokenType.AND;
+                if (and != when) {
+                    // Either side alone can decide.
+                    branch(logical.left, when, target);
+                    branch(logical.right, when, target);
+                } else {
+                    ClassWriter.Label skip = new ClassWriter.Label();
+                    branch(logical.left, !when, skip);
+                    branch(logical.right, when, target);
+                    code.mark(skip);
+                }
+                return;
+            }
+            if (expr instanceof Expr.Binary && comparison((Expr.Binary) expr, when, target)) {
+                return;
+            }
+            switch (emit(expr)) {
+                case NUMBER -> {
+                    code.op(ClassWriter.POP2, -2);
+                    if (when) {
+                        code.jump(ClassWriter.GOTO, target);
+                    }
+                }
+                case BOOLEAN -> code.jump(when ? ClassWriter.IFNE : ClassWriter.IFEQ, target);
+                case OBJECT -> {
+                    truthy();
+                    code.jump(when ? ClassWriter.IFNE : ClassWriter.IFEQ, target);
+                }
+            }
+        }
+
+        // Emits a comparison as a jump, or returns false without emitting
+        // anything if expr is not one.
+        private boolean comparison(Expr.Binary expr, boolean when, ClassWriter.Label target) {
+            TokenType type = expr.operator.type;
+            switch (type) {
+                case EQUAL_EQUAL, BANG_EQUAL -> {
+                    boolean ifEqual = (type == TokenType.EQUAL_EQUAL) == when;
+                    if (numbers(expr)) {
+                        // Double.compare() agrees with Double.equals(),
+                        // which isEqual() uses.
+                        emit(expr.left);
+                        emit(expr.right);
+                        code.invoke(ClassWriter.INVOKESTATIC, DOUBLE, "compare", "(DD)I");
+                        code.jump(ifEqual ? ClassWriter.IFEQ : ClassWriter.IFNE, target);
+                    } else {
+                        operands(expr);
+                        code.invoke(ClassWriter.INVOKESTATIC, INTERPRETER, "isEqual",
+                                "(" + O + O + ")Z");
+                        code.jump(ifEqual ? ClassWriter.IFNE : ClassWriter.IFEQ, target);
+                    }
+                    return true;
+                }
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                }
+                default -> {
+                    return false;
+                }
+            }
+            if (!numbers(expr)) {
+                String method = switch (type) {
+                    case GREATER -> "greater";
+                    case GREATER_EQUAL -> "greaterEqual";
+                    case LESS -> "less";
+                    default -> "lessEqual";
+                };
+                operands(expr);
+                token(expr.operator);
+                code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, method, "(" + O + O + TOKEN + ")Z");
+                code.jump(when ? ClassWriter.IFNE : ClassWriter.IFEQ, target);
+                return true;
+            }
+            // NaN compares false every way, so dcmpg makes it greater for
+            // < and <=, and dcmpl less for > and >=.
+            emit(expr.left);
+            emit(expr.right);
+            switch (type) {
+                case LESS -> {
+                    code.op(ClassWriter.DCMPG, -3);
+                    code.jump(when ? ClassWriter.IFLT : ClassWriter.IFGE, target);
+                }
+                case LESS_EQUAL -> {
+                    code.op(ClassWriter.DCMPG, -3);
+                    code.jump(when ? ClassWriter.IFLE : ClassWriter.IFGT, target);
+                }
+                case GREATER -> {
+                    code.op(ClassWriter.DCMPL, -3);
+                    code.jump(when ? ClassWriter.IFGT : ClassWriter.IFLE, target);
+                }
+                default -> {
+                    code.op(ClassWriter.DCMPL, -3);
+                    code.jump(when ? ClassWriter.IFGE : ClassWriter.IFLT, target);
+                }
+            }
+            return true;
+        }
+
+        // Leaves expr's truthiness as a BOOLEAN.
+        private Kind materialize(Expr expr) {
+            ClassWriter.Label isFalse = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            branch(expr, false, isFalse);
+            code.push(1);
+            code.jump(ClassWriter.GOTO, end);
+            code.mark(isFalse);
+            code.push(0);
+            code.mark(end);
+            return Kind.BOOLEAN;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            List<Stmt> after = rest;
+            List<Stmt> statements = stmt.statements;
+            for (int i = 0; i < statements.size(); i++) {
+                rest = new ArrayList<>(statements.subList(i + 1, statements.size()));
+                rest.addAll(after);
+                statements.get(i).accept(this);
+            }
+            rest = after;
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            throw new Jit.Unsupported();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            pop(emit(stmt.expression));
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Jit.Unsupported();
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            Boolean taken = direction(stmt);
+            if (taken == null) {
+                ClassWriter.Label elseBranch = new ClassWriter.Label();
+                branch(stmt.condition, false, elseBranch);
+                stmt.thenBranch.accept(this);
+                if (stmt.elseBranch == null) {
+                    code.mark(elseBranch);
+                    return null;
+                }
+                ClassWriter.Label end = new ClassWriter.Label();
+                code.jump(ClassWriter.GOTO, end);
+                code.mark(elseBranch);
+                stmt.elseBranch.accept(this);
+                code.mark(end);
+                return null;
+            }
+
+            Stmt expected = taken ? stmt.thenBranch : stmt.elseBranch;
+            Stmt other = taken ? stmt.elseBranch : stmt.thenBranch;
+            List<Stmt> statements = new ArrayList<>();
+            if (other != null) {
+                statements.add(other);
+            }
+            statements.addAll(rest);
+            ClassWriter.Label exit = new ClassWriter.Label();
+            exits.add(new Exit(stmt, statements));
+            exitLabels.add(exit);
+            branch(stmt.condition, !taken, exit);
+            if (expected != null) {
+                expected.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            throw new Jit.Unsupported();
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            emit(stmt.expression, Kind.OBJECT);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "print", "(" + O + ")V");
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                emit(stmt.value, Kind.OBJECT);
+            } else {
+                code.op(ClassWriter.ACONST_NULL, 1);
+            }
+            code.aload(RUNTIME_LOCAL);
+            code.op(ClassWriter.SWAP, 0);
+            code.field(ClassWriter.PUTFIELD, INTERPRETER, "returnValue", O);
+            code.push(RETURNED);
+            code.istore(EXIT_LOCAL);
+            code.jump(ClassWriter.GOTO, leave);
+            code.unreachable();
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            Home home = slot(stmt.slot);
+            if (stmt.initializer != null) {
+                emit(stmt.initializer, home.kind);
+            } else {
+                code.op(ClassWriter.ACONST_NULL, 1);
+            }
+            store(home);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            throw new Jit.Unsupported();
+        }
+
+        @Override
+        public Kind visitAssignExpr(Expr.Assign expr) {
+            Home home = home(expr);
+            emit(expr.value, home.kind);
+            code.op(home.kind == Kind.NUMBER ? ClassWriter.DUP2 : ClassWriter.DUP,
+                    home.kind == Kind.NUMBER ? 2 : 1);
+            store(home);
+            return home.kind;
+        }
+
+        @Override
+        public Kind visitBinaryExpr(Expr.Binary expr) {
+            switch (expr.operator.type) {
+                case PLUS -> {
+                    if (numbers(expr)) {
+                        emit(expr.left);
+                        emit(expr.right);
+                        code.op(ClassWriter.DADD, -2);
+                        return Kind.NUMBER;
+                    }
+                    operands(expr);
+                    token(expr.operator);
+                    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "add",
+                            "(" + O + O + TOKEN + ")" + O);
+                    return Kind.OBJECT;
+                }
+                case MINUS, STAR, SLASH -> {
+                    TokenType type = expr.operator.type;
+                    if (numbers(expr)) {
+                        emit(expr.left);
+                        emit(expr.right);
+                        if (type == TokenType.SLASH) {
+                            token(expr.operator);
+                            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "divide",
+                                    "(DD" + TOKEN + ")D");
+                        } else {
+                            code.op(type == TokenType.MINUS ? ClassWriter.DSUB : ClassWriter.DMUL,
+                                    -2);
+                        }
+                        return Kind.NUMBER;
+                    }
+                    String method = type == TokenType.MINUS ? "subtract"
+                            : type == TokenType.STAR ? "multiply" : "divide";
+                    operands(expr);
+                    token(expr.operator);
+                    code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, method,
+                            "(" + O + O + TOKEN + ")" + O);
+                    unbox();
+                    return Kind.NUMBER;
+                }
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> {
+                    return materialize(expr);
+                }
+                default -> {
+                    // The comma operator.
+                    pop(emit(expr.left));
+                    pop(emit(expr.right));
+                    code.op(ClassWriter.ACONST_NULL, 1);
+                    return Kind.OBJECT;
+                }
+            }
+        }
+
+        @Override
+        public Kind visitCallExpr(Expr.Call expr) {
+            // Leaves the callee and the receiver an unbound callee is
+            // invoked on.
+            if (expr.callee instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get) expr.callee;
+                emit(get.object, Kind.OBJECT);
+                code.op(ClassWriter.DUP, 1);
+                constant(get, "com/zhsu/lox/Expr$Get");
+                code.aload(RUNTIME_LOCAL);
+                code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "property",
+                        "(" + O + "Lcom/zhsu/lox/Expr$Get;" + I + ")" + O);
+                code.op(ClassWriter.SWAP, 0);
+            } else if (expr.callee instanceof Expr.Super) {
+                Expr.Super superExpr = (Expr.Super) expr.callee;
+                superMethod(superExpr);
+                load(home(superExpr));
+            } else {
+                emit(expr.callee, Kind.OBJECT);
+                code.op(ClassWriter.ACONST_NULL, 1);
+            }
+
+            int count = expr.arguments.size();
+            Object target = target(expr);
+            if (target == null) {
+                StringBuilder descriptor = new StringBuilder("(" + O + O);
+                if (count <= 4) {
+                    for (Expr argument : expr.arguments) {
+                        emit(argument, Kind.OBJECT);
+                        descriptor.append(O);
+                    }
+                } else {
+                    code.push(count);
+                    code.type(ClassWriter.ANEWARRAY, "java/lang/Object");
+                    for (int i = 0; i < count; i++) {
+                        code.op(ClassWriter.DUP, 1);
+                        code.push(i);
+                        emit(expr.arguments.get(i), Kind.OBJECT);
+                        code.op(ClassWriter.AASTORE, -3);
+                    }
+                    descriptor.append("[Ljava/lang/Object;");
+                }
+                descriptor.append(I).append("Lcom/zhsu/lox/Expr$Call;)").append(O);
+                code.aload(RUNTIME_LOCAL);
+                constant(expr, "com/zhsu/lox/Expr$Call");
+                code.invoke(ClassWriter.INVOKESTATIC, RUNTIME,
+                        count <= 4 ? "call" + count : "call", descriptor.toString());
+                return Kind.OBJECT;
+            }
+
+            // The recorded callee is called directly, skipping the checks
+            // it has already passed; any other goes the usual way.
+            int receiver = nextLocal++;
+            int callee = nextLocal++;
+            int arguments = nextLocal;
+            nextLocal += count;
+            code.astore(receiver);
+            code.astore(callee);
+            for (int i = 0; i < count; i++) {
+                emit(expr.arguments.get(i), Kind.OBJECT);
+                code.astore(arguments + i);
+            }
+            ClassWriter.Label other = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            code.aload(callee);
+            constant(target, "java/lang/Object");
+            code.jump(ClassWriter.IF_ACMPNE, other);
+            String objects = O.repeat(count);
+            if (Interpreter.isUnbound(target)) {
+                constant(target, "com/zhsu/lox/LoxFunction");
+                code.aload(RUNTIME_LOCAL);
+                code.aload(receiver);
+                code.type(ClassWriter.CHECKCAST, "com/zhsu/lox/LoxInstance");
+                loadArguments(arguments, count);
+                code.invoke(ClassWriter.INVOKEVIRTUAL, "com/zhsu/lox/LoxFunction",
+                        "invoke" + count, "(" + I + "Lcom/zhsu/lox/LoxInstance;" + objects + ")" + O);
+            } else {
+                constant(target, "com/zhsu/lox/LoxCallable");
+                code.aload(RUNTIME_LOCAL);
+                loadArguments(arguments, count);
+                code.invoke(ClassWriter.INVOKEINTERFACE, "com/zhsu/lox/LoxCallable",
+                        "call" + count, "(" + I + objects + ")" + O);
+            }
+            code.jump(ClassWriter.GOTO, end);
+            code.mark(other);
+            code.aload(callee);
+            code.aload(receiver);
+            loadArguments(arguments, count);
+            code.aload(RUNTIME_LOCAL);
+            constant(expr, "com/zhsu/lox/Expr$Call");
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "call" + count,
+                    "(" + O + O + objects + I + "Lcom/zhsu/lox/Expr$Call;)" + O);
+            code.mark(end);
+            return Kind.OBJECT;
+        }
+
+        private void loadArguments(int first, int count) {
+            for (int i = 0; i < count; i++) {
+                code.aload(first + i);
+            }
+        }
+
+        @Override
+        public Kind visitGetExpr(Expr.Get expr) {
+            emit(expr.object, Kind.OBJECT);
+            constant(expr, "com/zhsu/lox/Expr$Get");
+            code.aload(RUNTIME_LOCAL);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "get",
+                    "(" + O + "Lcom/zhsu/lox/Expr$Get;" + I + ")" + O);
+            return Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitSetExpr(Expr.Set expr) {
+            emit(expr.object, Kind.OBJECT);
+            constant(expr, "com/zhsu/lox/Expr$Set");
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "setTarget",
+                    "(" + O + "Lcom/zhsu/lox/Expr$Set;)Lcom/zhsu/lox/LoxInstance;");
+            emit(expr.value, Kind.OBJECT);
+            constant(expr, "com/zhsu/lox/Expr$Set");
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "set",
+                    "(Lcom/zhsu/lox/LoxInstance;" + O + "Lcom/zhsu/lox/Expr$Set;)" + O);
+            return Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitSuperExpr(Expr.Super expr) {
+            superMethod(expr);
+            load(home(expr));
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "bind",
+                    "(Lcom/zhsu/lox/LoxFunction;" + O + ")" + O);
+            return Kind.OBJECT;
+        }
+
+        private void superMethod(Expr.Super expr) {
+            constant(expr, "com/zhsu/lox/Expr$Super");
+            code.aload(UPVALUES_LOCAL);
+            code.invoke(ClassWriter.INVOKESTATIC, INTERPRETER, "superMethod",
+                    "(Lcom/zhsu/lox/Expr$Super;[Lcom/zhsu/lox/Cell;)Lcom/zhsu/lox/LoxFunction;");
+        }
+
+        @Override
+        public Kind visitThisExpr(Expr.This expr) {
+            Home home = home(expr);
+            load(home);
+            return home.kind;
+        }
+
+        @Override
+        public Kind visitGroupingExpr(Expr.Grouping expr) {
+            return emit(expr.expression);
+        }
+
+        @Override
+        public Kind visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            if (value instanceof Double) {
+                code.ldc((double) value);
+                return Kind.NUMBER;
+            } else if (value instanceof Boolean) {
+                code.push((boolean) value ? 1 : 0);
+                return Kind.BOOLEAN;
+            } else if (value instanceof String) {
+                code.ldc((String) value);
+            } else if (value == null) {
+                code.op(ClassWriter.ACONST_NULL, 1);
+            } else {
+                constant(value, "java/lang/Object");
+            }
+            return Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitLogicalExpr(Expr.Logical expr) {
+            Kind kind = kindOf(expr);
+            boolean and = expr.operator.type == TokenType.AND;
+            ClassWriter.Label end = new ClassWriter.Label();
+            if (kind == Kind.NUMBER) {
+                // A number is always true: "or" is the left, "and" the right.
+                emit(expr.left);
+                if (and) {
+                    code.op(ClassWriter.POP2, -2);
+                    emit(expr.right);
+                }
+                return kind;
+            }
+            emit(expr.left, kind);
+            code.op(ClassWriter.DUP, 1);
+            if (kind == Kind.OBJECT) {
+                truthy();
+            }
+            code.jump(and ? ClassWriter.IFEQ : ClassWriter.IFNE, end);
+            code.op(ClassWriter.POP, -1);
+            emit(expr.right, kind);
+            code.mark(end);
+            return kind;
+        }
+
+        @Override
+        public Kind visitUnaryExpr(Expr.Unary expr) {
+            if (expr.operator.type == TokenType.BANG) {
+                return materialize(expr);
+            }
+            if (kindOf(expr.right) == Kind.NUMBER) {
+                emit(expr.right);
+                code.op(ClassWriter.DNEG, 0);
+                return Kind.NUMBER;
+            }
+            emit(expr.right, Kind.OBJECT);
+            token(expr.operator);
+            code.invoke(ClassWriter.INVOKESTATIC, RUNTIME, "negate", "(" + O + TOKEN + ")" + O);
+            unbox();
+            return Kind.NUMBER;
+        }
+
+        @Override
+        public Kind visitConditionalExpr(Expr.Conditional expr) {
+            Kind kind = kindOf(expr);
+            ClassWriter.Label falseValue = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            branch(expr.condition, false, falseValue);
+            emit(expr.trueValue, kind);
+            code.jump(ClassWriter.GOTO, end);
+            code.mark(falseValue);
+            emit(expr.FalseValue, kind);
+            code.mark(end);
+            return kind;
+        }
+
+        @Override
+        public Kind visitVariableExpr(Expr.Variable expr) {
+            Home home = home(expr);
+            load(home);
+            return home.kind;
+        }
+
+        @Override
+        public Kind visitLambdaExpr(Expr.Lambda expr) {
+            throw new Jit.Unsupported();
+        }
+    }
+}
@@ -0,0 +1,706 @@
+package com.zhsu.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class VM {
+
+    private static class CallFrame {
+
+        VmClosure closure;
+        int ip;
+        // Stack slot of local zero.
+        int base;
+        // Where the result goes when the frame returns. This is one below
+        // base for CALL_METHOD, which leaves the method under its receiver.
+        int returnSlot;
+    }
+
+    private static final int FRAMES_MAX = 1 << 16;
+    // How many GET_FIELD_SLOT_n there are.
+    private static final int FIELD_SLOTS = 4;
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private VmUpvalue openUpvalues = null;
+
+    final Map<String, Object> globals = new HashMap<>();
+
+    // Counts instructions run while set, for the Benchmark.
+    boolean countInstructions = false;
+    long instructionCount = 0;
+
+    // Counts how often each opcode runs right after each other one while
+    // set, which is what the superinstructions were picked from.
+    boolean profiling = false;
+    private long[] pairCounts = null;
+    private int previousOp = 0;
+
+    VM() {
+        globals.put("clock", new VmNative(0) {
+            @Override
+            Object call(Object[] args, int start) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        });
+    }
+
+    void interpret(VmFunction script) {
+        try {
+            VmClosure closure = new VmClosure(script);
+            push(closure);
+            call(closure, 0, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            resetStack();
+            Lox.runtimeError(error);
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Shape[] shapes = frame.closure.function.chunk.shapes;
+        int ip = frame.ip;
+        boolean instrumented = countInstructions || profiling;
+
+        for (;;) {
+            byte instruction = code[ip++];
+            if (instrumented) {
+                record(instruction);
+            }
+            switch (instruction) {
+                case OpCode.CONSTANT -> {
+                    push(constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                }
+                case OpCode.NIL ->
+                    push(null);
+                case OpCode.TRUE ->
+                    push(true);
+                case OpCode.FALSE ->
+                    push(false);
+                case OpCode.POP ->
+                    stack[--sp] = null;
+                case OpCode.GET_LOCAL ->
+                    push(stack[frame.base + (code[ip++] & 0xff)]);
+                case OpCode.SET_LOCAL ->
+                    stack[frame.base + (code[ip++] & 0xff)] = stack[sp - 1];
+                case OpCode.GET_GLOBAL -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + name + "'.");
+                    }
+                    push(value);
+                }
+                case OpCode.DEFINE_GLOBAL -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    globals.put(name, pop());
+                }
+                case OpCode.SET_GLOBAL -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + name + "'.");
+                    }
+                    globals.put(name, stack[sp - 1]);
+                }
+                case OpCode.GET_UPVALUE -> {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.isClosed ? upvalue.closed : stack[upvalue.slot]);
+                }
+                case OpCode.SET_UPVALUE -> {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.isClosed) {
+                        upvalue.closed = stack[sp - 1];
+                    } else {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    }
+                }
+                case OpCode.GET_PROPERTY -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    // A field of an instance quickens the instruction, but
+                    // only the first time: one that missed on another
+                    // shape stays generic.
+                    Object receiver = stack[sp - 1];
+                    if (receiver instanceof VmInstance && !(receiver instanceof VmClass)
+                            && shapes[ip - 3] == null) {
+                        Shape shape = ((VmInstance) receiver).shape;
+                        int slot = shape.slotOf(name);
+                        if (slot != -1 && slot < FIELD_SLOTS) {
+                            code[ip - 3] = (byte) (OpCode.GET_FIELD_SLOT_0 + slot);
+                            shapes[ip - 3] = shape;
+                        }
+                    }
+                    frame.ip = ip;
+                    if (getProperty(name)) {
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        shapes = frame.closure.function.chunk.shapes;
+                        ip = frame.ip;
+                    }
+                }
+                case OpCode.SET_PROPERTY -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object target = stack[sp - 2];
+                    if (!(target instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    Object value = pop();
+                    ((VmInstance) target).setField(name, value);
+                    stack[sp - 1] = value;
+                }
+                case OpCode.GET_SUPER -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClass superclass = (VmClass) pop();
+                    VmClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new VmBoundMethod(stack[sp - 1], method);
+                }
+                case OpCode.EQUAL -> {
+                    Object b = pop();
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                }
+                case OpCode.NOT_EQUAL -> {
+                    Object b = pop();
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                }
+                case OpCode.GREATER -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] > b;
+                }
+                case OpCode.GREATER_EQUAL -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] >= b;
+                }
+                case OpCode.LESS -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] < b;
+                }
+                case OpCode.LESS_EQUAL -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] <= b;
+                }
+                case OpCode.ADD, OpCode.ADD_GENERIC -> {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (a instanceof Double && b instanceof Double) {
+                        if (instruction == OpCode.ADD) {
+                            code[ip - 1] = OpCode.ADD_NUM;
+                        }
+                        stack[--sp] = null;
+                        stack[sp - 1] = (double) a + (double) b;
+                    } else {
+                        frame.ip = ip;
+                        Object sum = concatenate(a, b);
+                        stack[--sp] = null;
+                        stack[sp - 1] = sum;
+                    }
+                }
+                case OpCode.SUBTRACT -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] - b;
+                }
+                case OpCode.MULTIPLY -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] * b;
+                }
+                case OpCode.DIVIDE -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    double b = (double) pop();
+                    if (b == 0.0) {
+                        throw error("Deviding zero.");
+                    }
+                    stack[sp - 1] = (double) stack[sp - 1] / b;
+                }
+                case OpCode.NOT ->
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                case OpCode.NEGATE -> {
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double) stack[sp - 1];
+                }
+                case OpCode.PRINT ->
+                    System.out.println(Interpreter.stringify(pop()));
+                case OpCode.JUMP -> {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                }
+                case OpCode.JUMP_IF_FALSE -> {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += offset;
+                    }
+                }
+                case OpCode.LOOP -> {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                }
+                case OpCode.CALL -> {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int base = sp - argCount - 1;
+                    callValue(stack[base], argCount, base, base);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    shapes = frame.closure.function.chunk.shapes;
+                    ip = frame.ip;
+                }
+                case OpCode.GET_METHOD -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    if (getMethod(name)) {
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        shapes = frame.closure.function.chunk.shapes;
+                        ip = frame.ip;
+                    }
+                }
+                case OpCode.GET_SUPER_METHOD -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClass superclass = (VmClass) stack[sp - 1];
+                    VmClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    // [this, superclass] becomes [method, this].
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = method;
+                }
+                case OpCode.CALL_METHOD -> {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int base = sp - argCount - 1;
+                    Object method = stack[base - 1];
+                    if (method != null) {
+                        call((VmClosure) method, argCount, base, base - 1);
+                    } else {
+                        callValue(stack[base], argCount, base, base - 1);
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    shapes = frame.closure.function.chunk.shapes;
+                    ip = frame.ip;
+                }
+                case OpCode.CLOSURE -> {
+                    VmFunction function = (VmFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure closure = new VmClosure(function);
+                    push(closure);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] != 0;
+                        int index = code[ip++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(frame.base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                }
+                case OpCode.CLOSE_UPVALUE -> {
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                }
+                case OpCode.RETURN -> {
+                    Object result = pop();
+                    closeUpvalues(frame.base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        resetStack();
+                        return;
+                    }
+
+                    Arrays.fill(stack, frame.returnSlot, sp, null);
+                    sp = frame.returnSlot;
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    shapes = frame.closure.function.chunk.shapes;
+                    ip = frame.ip;
+                }
+                case OpCode.CLASS -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    push(new VmClass(name));
+                }
+                case OpCode.INHERIT -> {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof VmClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass) pop();
+                    subclass.methods.putAll(((VmClass) superclass).methods);
+                    subclass.staticMethods.putAll(((VmClass) superclass).staticMethods);
+                }
+                case OpCode.METHOD -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure method = (VmClosure) pop();
+                    ((VmClass) stack[sp - 1]).methods.put(name, method);
+                }
+                case OpCode.STATIC_METHOD -> {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure method = (VmClosure) pop();
+                    ((VmClass) stack[sp - 1]).staticMethods.put(name, method);
+                }
+                case OpCode.GET_LOCAL_CONSTANT -> {
+                    push(stack[frame.base + (code[ip] & 0xff)]);
+                    push(constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)]);
+                    ip += 3;
+                }
+                case OpCode.ADD_LOCAL_CONSTANT -> {
+                    int slot = frame.base + (code[ip] & 0xff);
+                    Object b = constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+                    ip += 3;
+                    Object a = stack[slot];
+                    if (a instanceof Double) {
+                        stack[slot] = (double) a + (double) b;
+                    } else {
+                        frame.ip = ip;
+                        stack[slot] = concatenate(a, b);
+                    }
+                }
+                case OpCode.POP_JUMP_IF_FALSE -> {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(pop())) {
+                        ip += offset;
+                    }
+                }
+                case OpCode.JUMP_IF_NOT_LESS -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    ip = jumpUnless(code, ip, (double) stack[sp - 2] < (double) stack[sp - 1]);
+                }
+                case OpCode.JUMP_IF_NOT_LESS_EQUAL -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    ip = jumpUnless(code, ip, (double) stack[sp - 2] <= (double) stack[sp - 1]);
+                }
+                case OpCode.JUMP_IF_NOT_GREATER -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    ip = jumpUnless(code, ip, (double) stack[sp - 2] > (double) stack[sp - 1]);
+                }
+                case OpCode.JUMP_IF_NOT_GREATER_EQUAL -> {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    ip = jumpUnless(code, ip, (double) stack[sp - 2] >= (double) stack[sp - 1]);
+                }
+                case OpCode.GET_FIELD_SLOT_0, OpCode.GET_FIELD_SLOT_1, OpCode.GET_FIELD_SLOT_2,
+                        OpCode.GET_FIELD_SLOT_3 -> {
+                    Object receiver = stack[sp - 1];
+                    if (receiver instanceof VmInstance
+                            && ((VmInstance) receiver).shape == shapes[ip - 1]) {
+                        int slot = instruction - OpCode.GET_FIELD_SLOT_0;
+                        stack[sp - 1] = ((VmInstance) receiver).fields[slot];
+                        ip += 2;
+                    } else {
+                        // Run it again as the GET_PROPERTY it was.
+                        code[--ip] = OpCode.GET_PROPERTY;
+                    }
+                }
+                case OpCode.ADD_NUM -> {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[--sp] = null;
+                        stack[sp - 1] = (double) a + (double) b;
+                    } else {
+                        // Run it again as an ADD that stays generic, so a
+                        // site seeing both numbers and strings does not
+                        // keep rewriting itself.
+                        code[--ip] = OpCode.ADD_GENERIC;
+                    }
+                }
+                default ->
+                    throw new IllegalStateException("Unknown opcode " + instruction);
+            }
+        }
+    }
+
+    // Pops the two operands of a compare-and-jump whose comparison gave
+    // holds, and returns where to go on from the jump at ip.
+    private int jumpUnless(byte[] code, int ip, boolean holds) {
+        stack[--sp] = null;
+        stack[--sp] = null;
+        if (holds) {
+            return ip + 2;
+        }
+        return ip + 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+    }
+
+    // ADD of anything but two numbers.
+    private Object concatenate(Object a, Object b) {
+        if (a instanceof String || b instanceof String) {
+            return Interpreter.stringify(a) + Interpreter.stringify(b);
+        }
+        throw error("Operands must be two numbers or two strings.");
+    }
+
+    private void record(byte instruction) {
+        if (countInstructions) {
+            instructionCount++;
+        }
+        if (profiling) {
+            if (pairCounts == null) {
+                pairCounts = new long[256 * 256];
+            }
+            pairCounts[previousOp << 8 | (instruction & 0xff)]++;
+            previousOp = instruction & 0xff;
+        }
+    }
+
+    // Prints the limit most frequent opcode pairs seen while profiling.
+    void dumpProfile(PrintStream out, int limit) {
+        if (pairCounts == null) {
+            return;
+        }
+        long total = 0;
+        Integer[] pairs = new Integer[pairCounts.length];
+        for (int i = 0; i < pairCounts.length; i++) {
+            pairs[i] = i;
+            total += pairCounts[i];
+        }
+        Arrays.sort(pairs, (x, y) -> Long.compare(pairCounts[y], pairCounts[x]));
+
+        out.printf("%d opcode pairs%n", total);
+        for (int i = 0; i < limit && pairCounts[pairs[i]] > 0; i++) {
+            long count = pairCounts[pairs[i]];
+            out.printf("%12d %5.1f%%  %s %s%n", count, 100.0 * count / total,
+                    OpCode.name(pairs[i] >> 8), OpCode.name(pairs[i]));
+        }
+    }
+
+    // Replaces the receiver on top of the stack with the named property.
+    // Returns true if a getter frame was pushed.
+    private boolean getProperty(String name) {
+        Object receiver = stack[sp - 1];
+        VmClosure method;
+        if (receiver instanceof VmClass) {
+            method = ((VmClass) receiver).staticMethods.get(name);
+        } else if (receiver instanceof VmInstance) {
+            VmInstance instance = (VmInstance) receiver;
+            int slot = instance.shape.slotOf(name);
+            if (slot != -1) {
+                stack[sp - 1] = instance.fields[slot];
+                return false;
+            }
+            method = instance.klass.methods.get(name);
+        } else {
+            throw error("Only instances have properties.");
+        }
+
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        if (method.function.isGetter) {
+            call(method, 0, sp - 1, sp - 1);
+            return true;
+        }
+        stack[sp - 1] = new VmBoundMethod(receiver, method);
+        return false;
+    }
+
+    // Turns [receiver] into [method, receiver] when the property is a plain
+    // method, and into [nil, value] otherwise, so CALL_METHOD never has to
+    // allocate a bound method. Returns true if a getter frame was pushed.
+    private boolean getMethod(String name) {
+        Object receiver = stack[sp - 1];
+        VmClosure method;
+        if (receiver instanceof VmClass) {
+            method = ((VmClass) receiver).staticMethods.get(name);
+        } else if (receiver instanceof VmInstance) {
+            VmInstance instance = (VmInstance) receiver;
+            int slot = instance.shape.slotOf(name);
+            if (slot != -1) {
+                stack[sp - 1] = null;
+                push(instance.fields[slot]);
+                return false;
+            }
+            method = instance.klass.methods.get(name);
+        } else {
+            throw error("Only instances have properties.");
+        }
+
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        if (method.function.isGetter) {
+            stack[sp - 1] = null;
+            push(receiver);
+            call(method, 0, sp - 1, sp - 1);
+            return true;
+        }
+        stack[sp - 1] = method;
+        push(receiver);
+        return false;
+    }
+
+    private void callValue(Object callee, int argCount, int base, int returnSlot) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure) callee, argCount, base, returnSlot);
+        } else if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod) callee;
+            stack[base] = bound.receiver;
+            call(bound.method, argCount, base, returnSlot);
+        } else if (callee instanceof VmClass) {
+            VmClass klass = (VmClass) callee;
+            stack[base] = new VmInstance(klass);
+            VmClosure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount, base, returnSlot);
+            } else {
+                checkArity(0, argCount);
+                finishNativeCall(stack[base], returnSlot);
+            }
+        } else if (callee instanceof VmNative) {
+            VmNative function = (VmNative) callee;
+            checkArity(function.arity, argCount);
+            finishNativeCall(function.call(stack, base + 1), returnSlot);
+        } else {
+            throw error("Can only call functions and classes.");
+        }
+    }
+
+    private void finishNativeCall(Object result, int returnSlot) {
+        Arrays.fill(stack, returnSlot, sp, null);
+        sp = returnSlot;
+        push(result);
+    }
+
+    private void call(VmClosure closure, int argCount, int base, int returnSlot) {
+        checkArity(closure.function.arity, argCount);
+        if (frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        frame.returnSlot = returnSlot;
+        frameCount++;
+    }
+
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw error("Expected " + arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        VmUpvalue created = new VmUpvalue(slot);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isClosed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands() {
+        if (!(stack[sp - 1] instanceof Double) || !(stack[sp - 2] instanceof Double)) {
+            throw error("Operands must be numbers.");
+        }
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    // Reports against the line of the instruction the current frame last
+    // read, so callers must store their ip into the frame first.
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+}
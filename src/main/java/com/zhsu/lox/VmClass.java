@@ -0,0 +1,24 @@
+package com.zhsu.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass extends VmInstance {
+
+    final String name;
+    // Inherited methods are copied down by INHERIT, so each lookup is a
+    // single probe.
+    final Map<String, VmClosure> methods = new HashMap<>();
+    final Map<String, VmClosure> staticMethods = new HashMap<>();
+    final Shape instanceShape = new Shape();
+
+    VmClass(String name) {
+        super(null);
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
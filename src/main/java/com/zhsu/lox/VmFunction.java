@@ -0,0 +1,23 @@
+package com.zhsu.lox;
+
+class VmFunction {
+
+    final String name;
+    final Chunk chunk = new Chunk();
+    final boolean isGetter;
+    int arity = 0;
+    int upvalueCount = 0;
+
+    VmFunction(String name, boolean isGetter) {
+        this.name = name;
+        this.isGetter = isGetter;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            return "<anonymous fn>";
+        }
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,29 @@
+package com.zhsu.lox;
+
+class VmInstance {
+
+    final VmClass klass;
+    Shape shape;
+    Object[] fields;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.shape = klass != null ? klass.instanceShape : new Shape();
+        this.fields = shape.newFields();
+    }
+
+    void setField(String name, Object value) {
+        int slot = shape.slotOf(name);
+        if (slot == -1) {
+            shape = shape.withField(name);
+            fields = shape.fit(fields);
+            slot = shape.size() - 1;
+        }
+        fields[slot] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
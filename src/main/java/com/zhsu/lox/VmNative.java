@@ -0,0 +1,18 @@
+package com.zhsu.lox;
+
+abstract class VmNative {
+
+    final int arity;
+
+    VmNative(int arity) {
+        this.arity = arity;
+    }
+
+    // Arguments live in args[start] .. args[start + arity - 1].
+    abstract Object call(Object[] args, int start);
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,15 @@
+package com.zhsu.lox;
+
+class VmUpvalue {
+
+    // Stack slot of the captured variable while it is still open.
+    final int slot;
+    Object closed;
+    boolean isClosed = false;
+    // Next open upvalue further down the stack.
+    VmUpvalue next;
+
+    VmUpvalue(int slot) {
+        this.slot = slot;
+    }
+}
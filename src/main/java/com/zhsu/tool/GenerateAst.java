@@ -15,34 +15,44 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Binary      : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Binary      : Expr left, Token operator, Expr right"
+                        + " | Specialization specialization = Specialization.UNINITIALIZED",
+                "Call     : Expr callee, Token paren, List<Expr> arguments"
+                        + " | LoxCallable target, boolean generic, CallSiteLink link",
+                "Get      : Expr object, Token name | PropertyCache cache",
+                "Set      : Expr object, Token name, Expr value | PropertyCache cache",
+                "Super    : Token keyword, Token method | int upvalue, int thisSlot = -1, int thisUpvalue = -1",
+                "This     : Token keyword | int slot = -1, int upvalue = -1",
                 "Grouping    : Expr expression",
                 "Literal     : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
                 "Unary       : Token operator, Expr right",
                 "Conditional : Expr condition, Expr trueValue, Expr FalseValue",
-                "Variable    : Token name",
-                "Assign      : Token name, Expr value",
-                "Lambda     : List<Token> params, List<Stmt> body"));
+                "Variable    : Token name | int slot = -1, int upvalue = -1, Cell global, Module module",
+                "Assign      : Token name, Expr value"
+                        + " | int slot = -1, int upvalue = -1, Cell global, Module module",
+                "Lambda     : List<Token> params, List<Stmt> body"
+                        + " | int slotCount, int[] captures, int[] boxedSlots,"
+                        + " Jit.Profile profile"));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements | int slotCount",
                 "Class      : Token name, Expr.Variable superclass," +
-                        " List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
+                        " List<Stmt.Function> methods, List<Stmt.Function> staticMethods" +
+                        " | int slot = -1, boolean boxed, int slotCount, int superSlot = -1, int thisSlot",
                 "Expression : Expr expression",
                 "Function   : Token name, List<Token> params,"
-                        + " List<Stmt> body, boolean isGetter",
+                        + " List<Stmt> body, boolean isGetter"
+                        + " | int slot = -1, boolean boxed, int slotCount, int[] captures, int[] boxedSlots,"
+                        + " Jit.Profile profile",
                 "If         : Expr condition, Stmt thenBranch,"
                         + " Stmt elseBranch",
+                "Import     : Token keyword, Token path | Module module",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"));
+                "Var        : Token name, Expr initializer | int slot = -1, boolean boxed",
+                "While      : Expr condition, Stmt body"
+                        + " | Jit.LoopProfile profile"));
     }
 
     public static void defineAst(
@@ -66,8 +76,10 @@ public class GenerateAst {
             // the AST classes.
             for (String type : types) {
                 String className = type.split(":")[0].trim();
-                String fields = type.split(":")[1].trim();
-                defineType(writer, baseName, className, fields);
+                String[] fieldLists = type.split(":")[1].split("\\|");
+                String fields = fieldLists[0].trim();
+                String lateFields = fieldLists.length > 1 ? fieldLists[1].trim() : null;
+                defineType(writer, baseName, className, fields, lateFields);
                 writer.println();
             }
 
@@ -90,7 +102,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String lateFieldList) {
         writer.println("  static class " + className + " extends "
                 + baseName + " {");
 
@@ -120,6 +132,16 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        // Mutable fields filled in after parsing, by the Resolver or at
+        // run time.
+        if (lateFieldList != null) {
+            writer.println();
+            writer.println("    // Filled in after parsing.");
+            for (String field : lateFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }
@@ -0,0 +1,94 @@
+package com.zhsu.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ClosureCompilerTest {
+
+    // Number literals on the right of an operator, which the compiler
+    // folds into the operation, with left operands of other types too.
+    private static final String CONSTANTS = """
+            print "s" + 1;
+            var x = 3;
+            print x * 2 + 1;
+            print x - 1 / 2;
+            print (x + 0.5) * 2 > 6;
+            print x <= 3 == true;
+            var n = 0 / 1;
+            print n + "!";
+            var s = "s";
+            print s < 1;
+            """;
+
+    // Top-level blocks, which get a frame of their own each time they run,
+    // nested in one another, in a loop and holding captured variables,
+    // and blocks inside a function, which use the function's frame.
+    private static final String BLOCKS = """
+            var total = 0;
+            {
+              var a = 1;
+              {
+                var b = a + 1;
+                total = total + b;
+              }
+              var c = a + 10;
+              total = total + c;
+            }
+            print total;
+            var fs = "";
+            for (var i = 0; i < 3; i = i + 1) {
+              var j = i * 2;
+              fun show() { return j; }
+              fs = fs + show();
+            }
+            print fs;
+            fun outer() {
+              var k = 1;
+              {
+                var m = k + 1;
+                {
+                  var k2 = m + 1;
+                  return k2 + k;
+                }
+              }
+            }
+            print outer();
+            {
+              var shared = 0;
+              fun bump() { shared = shared + 1; return shared; }
+              bump();
+              print bump();
+            }
+            """;
+
+    private static String run(String source, boolean compiled) {
+        return Output.withErrors(() -> {
+            List<Stmt> statements = Output.parse(source);
+            Interpreter interpreter = new Interpreter();
+            if (compiled) {
+                interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+            } else {
+                interpreter.interpret(statements);
+            }
+        });
+    }
+
+    @Test
+    public void testFoldedConstants() {
+        String expected = "s1\n7\n2.5\ntrue\ntrue\n0!\nOperands must be numbers.\n[line 10]\n";
+
+        assertEquals(expected, run(CONSTANTS, false));
+        assertEquals(expected, run(CONSTANTS, true));
+    }
+
+    @Test
+    public void testBlockFrames() {
+        String expected = "13\n024\n4\n2\n";
+
+        assertEquals(expected, run(BLOCKS, false));
+        assertEquals(expected, run(BLOCKS, true));
+    }
+}
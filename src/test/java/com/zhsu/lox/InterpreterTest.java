@@ -1,11 +1,18 @@
 package com.zhsu.lox;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
 
 public class InterpreterTest {
 
+  // What the tree-walker prints, a runtime error included.
+  private static String run(String source) {
+    return Output.withErrors(() -> new Interpreter().interpret(Output.parse(source)));
+  }
+
   @Test
   public void testInterpreter() {
     String input = """
@@ -39,9 +46,234 @@ public class InterpreterTest {
 
     Interpreter interpreter = new Interpreter();
 
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
 
     interpreter.interpret(statements);
   }
+
+  // A node specialized to numbers or strings falls back to the generic
+  // one when it sees anything else, nested arithmetic included.
+  @Test
+  public void testBinaryDeoptimizes() {
+    String input = """
+        fun add(a, b) { return a + b; }
+        print add(1, 2);
+        print add("a", "b");
+        print add(3, 4);
+        fun join(a, b) { return a + b; }
+        print join("x", "y");
+        print join(1, 2);
+        print join("p", "q");
+        fun less(a, b) { return a < b; }
+        print less(1, 2);
+        print less(3, 2);
+        fun sum3(a, b, c) { return (a + b) + c; }
+        print sum3(1, 2, 3);
+        print sum3("a", "b", "c");
+        print sum3(4, 5, 6);
+        print less("a", "b");
+        """;
+
+    assertEquals("3\nab\n7\nxy\n3\npq\ntrue\nfalse\n6\nabc\n15\n"
+        + "Operands must be numbers.\n[line 9]\n", run(input));
+  }
+
+  // A call site that cached one callee still checks the next one.
+  @Test
+  public void testCallSiteWithChangingCallee() {
+    String input = """
+        fun a() { return "a"; }
+        fun b() { return "b"; }
+        class K { init() { this.v = "k"; } }
+        fun callIt(f) { return f(); }
+        print callIt(a);
+        print callIt(a);
+        print callIt(b);
+        print callIt(K).v;
+        print callIt(a);
+        print callIt("nope");
+        """;
+
+    assertEquals("a\na\nb\nk\na\nCan only call functions and classes.\n[line 4]\n",
+        run(input));
+  }
+
+  @Test
+  public void testWrongArityAfterCachedCallee() {
+    String input = """
+        fun one(x) { return x; }
+        fun two(x, y) { return x + y; }
+        fun callOne(f) { return f(1); }
+        print callOne(one);
+        print callOne(one);
+        print callOne(two);
+        """;
+
+    assertEquals("1\n1\nExpected 2 arguments but got 1.\n[line 3]\n", run(input));
+  }
+
+  // Each iteration's local gets a cell of its own when a closure captures
+  // it, and two closures over one function's frame do not share cells.
+  @Test
+  public void testCapturedLocalInLoop() {
+    String input = """
+        var first;
+        var second;
+        for (var i = 0; i < 2; i = i + 1) {
+          var j = i * 10;
+          fun get() { return j; }
+          if (i == 0) first = get; else second = get;
+        }
+        print first();
+        print second();
+        fun counter() {
+          var count = 0;
+          fun next() { count = count + 1; return count; }
+          return next;
+        }
+        var c = counter();
+        var d = counter();
+        c();
+        print c();
+        print d();
+        """;
+
+    assertEquals("0\n10\n2\n1\n", run(input));
+  }
+
+  // Sites that have cached a shape keep seeing fields added later, a
+  // field that shadows a method included.
+  @Test
+  public void testFieldAddedAfterCacheHit() {
+    String input = """
+        class P { init() { this.x = 1; } m() { return "method"; } }
+        fun getX(o) { return o.x; }
+        fun callM(o) { return o.m(); }
+        fun getY(o) { return o.y; }
+        var p = P();
+        print getX(p);
+        print callM(p);
+        p.y = 2;
+        print getX(p);
+        print getY(p);
+        fun field() { return "field"; }
+        p.m = field;
+        print callM(p);
+        print callM(P());
+        var q = P();
+        q.z = 3;
+        q.y = 4;
+        print getY(q);
+        print getY(P());
+        """;
+
+    assertEquals("1\nmethod\n1\n2\nfield\nmethod\n4\nUndefined property 'y'.\n[line 4]\n",
+        run(input));
+  }
+
+  // A method inherited through the flattened table, then overridden by a
+  // class declared after the call site has run.
+  @Test
+  public void testInheritedMethodOverriddenLater() {
+    String input = """
+        class A { name() { return "A"; } greet() { return "hi " + this.name(); } }
+        class B < A {}
+        fun nameOf(o) { return o.name(); }
+        print nameOf(B());
+        print B().greet();
+        class C < B { name() { return "C"; } }
+        print nameOf(C());
+        print C().greet();
+        print nameOf(B());
+        class D < C { name() { return "D " + super.name(); } }
+        print nameOf(D());
+        """;
+
+    assertEquals("A\nhi A\nC\nhi C\nA\nD C\n", run(input));
+  }
+
+  // A return completes every block and loop it is nested in, and an
+  // initializer's bare return still yields the instance.
+  @Test
+  public void testReturnFromNestedBlock() {
+    String input = """
+        fun find(n) {
+          for (var i = 0; ; i = i + 1) {
+            {
+              if (i == n) {
+                while (true) { return i; }
+              }
+            }
+          }
+        }
+        print find(3);
+        fun early(flag) {
+          {
+            var label = "inner";
+            if (flag) return label;
+          }
+          return "outer";
+        }
+        print early(true);
+        print early(false);
+        class R { init(n) { this.n = n; { if (n > 0) return; } this.n = -1; } }
+        print R(2).n;
+        print R(0).n;
+        """;
+
+    assertEquals("3\ninner\nouter\n2\n-1\n", run(input));
+  }
+
+  // A global's cell stays the same when it is redefined, so uses that
+  // cached it see the new value.
+  @Test
+  public void testRedefinedGlobal() {
+    String input = """
+        var g = 1;
+        fun readG() { return g; }
+        print readG();
+        var g = "two";
+        print readG();
+        g = 3;
+        print readG();
+        fun h() { return "first"; }
+        fun useH() { return h(); }
+        print useH();
+        fun h() { return "second"; }
+        print useH();
+        print undefinedLater();
+        """;
+
+    assertEquals("1\ntwo\n3\nfirst\nsecond\nUndefined variable 'undefinedLater'.\n[line 13]\n",
+        run(input));
+  }
+
+  // NaN is a number like any other on the unboxed path: it must not be
+  // taken for the NaN that marks an operand that is not a number.
+  @Test
+  public void testNanOnUnboxedPath() {
+    String input = """
+        var big = 1;
+        for (var i = 0; i < 400; i = i + 1) big = big * 10;
+        var nan = big - big;
+        print big;
+        print nan;
+        print nan + 1;
+        print (nan * 2) - 1;
+        print -nan;
+        print -(nan + 1);
+        print nan < 1;
+        print nan >= 1;
+        fun twice(x) { return x * 2; }
+        print twice(1);
+        print twice(nan);
+        print twice(2);
+        print -(twice(nan) + 1);
+        print twice("s");
+        """;
+
+    assertEquals("Infinity\nNaN\nNaN\nNaN\nNaN\nNaN\nfalse\nfalse\n2\nNaN\n4\nNaN\n"
+        + "Operands must be numbers.\n[line 12]\n", run(input));
+  }
 }
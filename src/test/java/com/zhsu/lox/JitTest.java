@@ -0,0 +1,239 @@
+package com.zhsu.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class JitTest {
+
+    private static final String FUNCTION = """
+            class Point {
+              init(x) { this.x = x; }
+              label { return "p" + this.x; }
+            }
+            fun describe(n, p) {
+              var s = "";
+              var i = 0;
+              while (i < n) {
+                if (i == 1 or i > 3) s = s + i; else s = s + "-";
+                i = i + 1;
+              }
+              return s + " " + (n >= 2 ? p.label : -n) + " " + !(n != 3);
+            }
+            """;
+
+    private static final String CALLS = """
+            print describe(0, nil);
+            print describe(3, Point(7));
+            print describe(6, Point(1));
+            """;
+
+    private static String run(Interpreter interpreter, List<Stmt> statements) {
+        return Output.of(() -> interpreter.interpret(statements));
+    }
+
+    // A class the JVM rejected on the compiler thread fails the test, not
+    // just the speed-up.
+    @AfterEach
+    public void checkCompilerThread() {
+        assertNull(Jit.failure);
+    }
+
+    @Test
+    public void testBadClassIsNotHidden() {
+        assertThrows(ClassFormatError.class, () -> Jit.load(new byte[] {0}, new Object[0]));
+    }
+
+    @Test
+    public void testCompiledFunctionMatchesInterpreter() throws InterruptedException {
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> declarations = Output.parse(FUNCTION);
+        Stmt.Function describe = (Stmt.Function) declarations.get(1);
+        List<Stmt> calls = Output.parse(CALLS);
+
+        int threshold = Jit.threshold;
+        Jit.threshold = 1;
+        try {
+            run(interpreter, declarations);
+            String expected = run(interpreter, calls);
+
+            for (int i = 0; i < 100 && describe.profile.code == null; i++) {
+                Thread.sleep(50);
+            }
+            assertNotNull(describe.profile.code);
+            assertEquals(expected, run(interpreter, calls));
+        } finally {
+            Jit.threshold = threshold;
+        }
+    }
+
+    private static final String COUNTED = """
+            fun id(x) { return x; }
+            var i = 0;
+            while (i < 10) i = id(i) + 1;
+            """;
+
+    // Calls stop being counted once a function is queued, and are never
+    // counted with compilation off.
+    @Test
+    public void testInvocationsStopAtThreshold() {
+        int threshold = Jit.threshold;
+        try {
+            Jit.threshold = 0;
+            List<Stmt> statements = Output.parse(COUNTED);
+            run(new Interpreter(), statements);
+            assertEquals(0, ((Stmt.Function) statements.get(0)).profile.invocations);
+
+            Jit.threshold = 3;
+            statements = Output.parse(COUNTED);
+            run(new Interpreter(), statements);
+            assertEquals(3, ((Stmt.Function) statements.get(0)).profile.invocations);
+        } finally {
+            Jit.threshold = threshold;
+        }
+    }
+
+    @Test
+    public void testBackEdgesStopAtThreshold() {
+        int threshold = Jit.backEdgeThreshold;
+        try {
+            Jit.backEdgeThreshold = 0;
+            List<Stmt> statements = Output.parse(COUNTED);
+            run(new Interpreter(), statements);
+            assertEquals(0, ((Stmt.While) statements.get(2)).profile.backEdges);
+
+            Jit.backEdgeThreshold = 3;
+            statements = Output.parse(COUNTED);
+            run(new Interpreter(), statements);
+            assertEquals(3, ((Stmt.While) statements.get(2)).profile.backEdges);
+        } finally {
+            Jit.backEdgeThreshold = threshold;
+        }
+    }
+
+    private static final String LINKED = """
+            class A { f(x) { return x + 1; } }
+            class B < A { f(x) { return super.f(x) * 2; } }
+            fun sum(a, b, c, d, e) { return a + b + c + d + e; }
+            fun apply(o, n) {
+              var total = 0;
+              var i = 0;
+              while (i < n) {
+                total = total + o.f(i) + sum(i, 1, 2, 3, 4) + clock() * 0;
+                i = i + 1;
+              }
+              return total;
+            }
+            """;
+
+    private static final String LINKED_CALLS = """
+            print apply(A(), 5);
+            print apply(B(), 5);
+            print apply(A(), 3);
+            """;
+
+    @Test
+    public void testLinkedCallsMatchUnlinked() throws InterruptedException {
+        String expected = run(new Interpreter(), Output.parse(LINKED + LINKED_CALLS));
+
+        int threshold = Jit.threshold;
+        Jit.threshold = 1;
+        CallSiteLink.enabled = true;
+        try {
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> declarations = Output.parse(LINKED);
+            Stmt.Function apply = (Stmt.Function) declarations.get(3);
+            List<Stmt> calls = Output.parse(LINKED_CALLS);
+            run(interpreter, declarations);
+            assertEquals(expected, run(interpreter, calls));
+
+            for (int i = 0; i < 100 && apply.profile.code == null; i++) {
+                Thread.sleep(50);
+            }
+            assertNotNull(apply.profile.code);
+            assertEquals(expected, run(interpreter, calls));
+        } finally {
+            Jit.threshold = threshold;
+            CallSiteLink.enabled = false;
+        }
+    }
+
+    private static final String LOOP = """
+            var i = 0;
+            var s = "";
+            {
+              var total = 0;
+              fun get() { return total; }
+              while (i < 10) {
+                var d = i * 2;
+                if (i > 6) s = s + d;
+                total = total + d;
+                i = i + 1;
+              }
+              print get();
+            }
+            print s;
+            """;
+
+    @Test
+    public void testLoopEnteredMidwayMatchesInterpreter() throws InterruptedException {
+        Interpreter interpreter = new Interpreter();
+        List<Stmt> statements = Output.parse(LOOP);
+        Stmt.While loop = (Stmt.While) ((Stmt.Block) statements.get(2)).statements.get(2);
+
+        int threshold = Jit.backEdgeThreshold;
+        Jit.backEdgeThreshold = 1;
+        try {
+            String expected = run(interpreter, statements);
+
+            for (int i = 0; i < 100 && loop.profile.code == null; i++) {
+                Thread.sleep(50);
+            }
+            assertNotNull(loop.profile.code);
+            assertEquals(expected, run(interpreter, statements));
+        } finally {
+            Jit.backEdgeThreshold = threshold;
+        }
+    }
+
+    private static final String TRACED = """
+            var total = 0;
+            var odd = "";
+            fun half(x) { return x / 2; }
+            {
+              var i = 0;
+              while (i < 500) {
+                if (i > 490 and i != 495) odd = odd + i + ",";
+                else total = total + half(i) * 4;
+                i = i + 1;
+              }
+              print i;
+            }
+            print total;
+            print odd;
+            """;
+
+    @Test
+    public void testTracedLoopMatchesInterpreter() {
+        String expected = run(new Interpreter(), Output.parse(TRACED));
+
+        List<Stmt> statements = Output.parse(TRACED);
+        Stmt.While loop = (Stmt.While) ((Stmt.Block) statements.get(3)).statements.get(1);
+        int threshold = Jit.backEdgeThreshold;
+        Jit.backEdgeThreshold = 1;
+        Tracer.enabled = true;
+        try {
+            assertEquals(expected, run(new Interpreter(), statements));
+            assertNotNull(loop.profile.trace);
+        } finally {
+            Jit.backEdgeThreshold = threshold;
+            Tracer.enabled = false;
+        }
+    }
+}
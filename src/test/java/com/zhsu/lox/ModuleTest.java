@@ -0,0 +1,70 @@
+package com.zhsu.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ModuleTest {
+
+    @TempDir
+    Path directory;
+
+    private static final String MAIN = """
+            fun helper(x) { return "main " + x; }
+            import "lib/shapes.lox";
+            import "lib/shapes.lox";
+            print area(3, 4);
+            print Square(5).area;
+            print helper(1);
+            print count;
+            """;
+
+    private static final String SHAPES = """
+            import "util.lox";
+            var count = 0;
+            fun area(w, h) { count = count + 1; return twice(w * h) / 2; }
+            class Square { init(s) { this.s = s; } area { return area(this.s, this.s); } }
+            print "shapes";
+            """;
+
+    private static final String UTIL = """
+            fun twice(x) { return helper(x) * 2; }
+            fun helper(x) { return x; }
+            print "util";
+            """;
+
+    private String run(boolean closures) throws IOException {
+        Files.createDirectories(directory.resolve("lib"));
+        Files.writeString(directory.resolve("lib/shapes.lox"), SHAPES);
+        Files.writeString(directory.resolve("lib/util.lox"), UTIL);
+
+        return Output.of(() -> {
+            List<Stmt> statements = new Parser(new Scanner(MAIN).scan()).parse();
+            new ModuleLoader().load(statements, directory);
+            new Resolver().resolve(statements);
+
+            Interpreter interpreter = new Interpreter();
+            if (closures) {
+                interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+            } else {
+                interpreter.interpret(statements);
+            }
+        });
+    }
+
+    // Each module runs once and its functions see its own globals, while
+    // the importer gets a copy of them as they were when imported.
+    @Test
+    public void testModulesHaveTheirOwnGlobals() throws IOException {
+        String expected = "util\nshapes\n12\n25\nmain 1\n0\n";
+
+        assertEquals(expected, run(false));
+        assertEquals(expected, run(true));
+    }
+}
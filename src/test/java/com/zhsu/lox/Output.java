@@ -0,0 +1,48 @@
+package com.zhsu.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// What Lox code prints, caught by pointing System.out at a buffer while it
+// runs.
+final class Output {
+
+    private Output() {
+    }
+
+    // Scans, parses and resolves source, ready for any of the engines.
+    static List<Stmt> parse(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    static String of(Runnable code) {
+        return capture(code, false);
+    }
+
+    // Also catches what code reports on System.err, such as a runtime
+    // error, in the order it is printed.
+    static String withErrors(Runnable code) {
+        return capture(code, true);
+    }
+
+    private static String capture(Runnable code, boolean errors) {
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(buffer, true);
+        System.setOut(stream);
+        if (errors) {
+            System.setErr(stream);
+        }
+        try {
+            code.run();
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        return buffer.toString();
+    }
+}
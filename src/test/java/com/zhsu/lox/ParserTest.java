@@ -1,5 +1,8 @@
 package com.zhsu.lox;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -21,4 +24,40 @@ public class ParserTest {
             System.out.println(new AstPrinter().print(stmt));
         }
     }
+
+    @Test
+    public void testPrecedence() {
+        String input = "a ? b ? c : d : e ? f : g, i or j and !k == -l < m + n * o(p, q).r;";
+
+        Stmt stmt = new Parser(new Scanner(input).scan()).parse().get(0);
+
+        assertEquals("ExpressionStmt (, "
+                + "(?: (?: IDENTIFIER a (?: IDENTIFIER b IDENTIFIER c IDENTIFIER d) IDENTIFIER e)"
+                + " IDENTIFIER f IDENTIFIER g) "
+                + "(or IDENTIFIER i (and IDENTIFIER j (== (! IDENTIFIER k) (< (- IDENTIFIER l)"
+                + " (+ IDENTIFIER m (* IDENTIFIER n (IDENTIFIER o IDENTIFIER p IDENTIFIER q).r)))))))",
+                new AstPrinter().print(stmt));
+    }
+
+    @Test
+    public void testStreamingMatchesParse() {
+        String input = """
+                var a = 1 ? 2 : 3;
+                print a, -a * (2 + 3);
+                { var b = "s"; print b == nil or !b; }
+                while (a < 3) print f(a).g;
+                """;
+
+        List<String> expected = new ArrayList<>();
+        for (Stmt stmt : new Parser(new Scanner(input).scan()).parse()) {
+            expected.add(new AstPrinter().print(stmt));
+        }
+        List<String> streamed = new ArrayList<>();
+        Parser parser = new Parser(new Scanner(input));
+        while (parser.hasNext()) {
+            streamed.add(new AstPrinter().print(parser.next()));
+        }
+
+        assertEquals(expected, streamed);
+    }
 }
@@ -0,0 +1,66 @@
+package com.zhsu.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class RegisterVMTest {
+
+    // Assignments that reuse registers and conditions the compiler fuses
+    // into compare-and-jump instructions.
+    private static final String REGISTERS = """
+            {
+              var x = 3;
+              var y = 4;
+              x = y = x + y;
+              print x + y;
+              x = x < y and y or x;
+              print x;
+              print x == 7 ? "seven" : "other";
+              var w = x;
+              w = w + 1;
+              print x + w;
+              print -x + x * 2 - x / 7;
+              print "a" + 1 + nil + true;
+            }
+            fun swap(p, q) {
+              var t = p;
+              p = q;
+              q = t;
+              return p - q;
+            }
+            print swap(10, 3);
+            var i = 0;
+            while (i < 10) { if (i >= 3 and i != 5) i = i + 2; else i = i + 1; }
+            print i;
+            var n = 0;
+            for (var k = 0; k <= 100; k = k + 1) { if (k > 50) n = n + k; }
+            print n;
+            class P {
+              init(v) { this.v = v; }
+              double { return this.v * 2; }
+              add(o) { return P(this.v + o.v); }
+            }
+            class Q < P {
+              init(v) { super.init(v + 1); }
+              add(o) { var m = super.add; return m(o); }
+            }
+            print Q(1).add(Q(2)).double;
+            """;
+
+    private static String run(String source) {
+        return Output.of(() -> {
+            List<Stmt> statements = Output.parse(source);
+            RegisterVM vm = new RegisterVM();
+            vm.interpret(new RegisterCompiler(vm).compile(statements));
+        });
+    }
+
+    @Test
+    public void testRegisterVmMatchesInterpreter() {
+        assertEquals(VMTest.run(VMTest.PROGRAM, false), run(VMTest.PROGRAM));
+        assertEquals(VMTest.run(REGISTERS, false), run(REGISTERS));
+    }
+}
@@ -19,4 +19,29 @@ public class ScannerTest {
             System.out.println(token);
         }
     }
+
+    @Test
+    public void testKeywordsAndIdentifiers() {
+        TokenBuffer tokens = new Scanner("fun funny f for fortune this thistle tr true _if if").scan();
+
+        TokenType[] expected = {
+            TokenType.FUN, TokenType.IDENTIFIER, TokenType.IDENTIFIER, TokenType.FOR,
+            TokenType.IDENTIFIER, TokenType.THIS, TokenType.IDENTIFIER, TokenType.IDENTIFIER,
+            TokenType.TRUE, TokenType.IDENTIFIER, TokenType.IF, TokenType.EOF
+        };
+        assertEquals(expected.length, tokens.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], tokens.type(i));
+        }
+        assertEquals("thistle", tokens.lexeme(6));
+    }
+
+    @Test
+    public void testUtf8StringLiteral() {
+        TokenBuffer tokens = new Scanner("print \"h\u00e9llo \u2713\";").scan();
+
+        assertEquals(TokenType.STRING, tokens.type(1));
+        assertEquals("h\u00e9llo \u2713", tokens.literal(1));
+        assertEquals(TokenType.SEMICOLON, tokens.type(2));
+    }
 }
@@ -0,0 +1,129 @@
+package com.zhsu.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class VMTest {
+
+    static final String PROGRAM = """
+            fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+            print fib(15);
+
+            fun makeCounter() {
+              var count = 0;
+              fun counter() {
+                count = count + 1;
+                return count;
+              }
+              return counter;
+            }
+            var c = makeCounter();
+            c();
+            print c();
+
+            fun sums() {
+              var total = 0;
+              for (var i = 0; i < 3; i = i + 1) {
+                var k = i * 10;
+                fun add() { total = total + k + i; }
+                add();
+              }
+              var down = fun (n) { if (n == 0) return total; return down(n - 1); };
+              return down(3);
+            }
+            print sums();
+
+            class A {
+              init(name) { this.name = name; }
+              method() { return "A " + this.name; }
+              label { return "label " + this.name; }
+              class make() { return A("made"); }
+            }
+
+            class B < A {
+              method() { return super.method() + " via B"; }
+            }
+
+            var b = B("b");
+            print b.method();
+            print b.label;
+            print A.make().method();
+            var m = b.method;
+            print m;
+            print m();
+
+            var s = "";
+            for (var i = 0; i < 3; i = i + 1) {
+              s = s + i;
+            }
+            print s;
+            print 1, 2;
+            print true ? "yes" : "no";
+            print nil or "default";
+            """;
+
+    // Property reads and additions whose operands change after the VM has
+    // quickened them.
+    private static final String QUICKENING = """
+            class A { init() { this.x = 1; this.y = 2; } }
+            class B { init() { this.y = 3; this.x = 4; } }
+            class C { init() { this.a = 1; this.b = 2; this.c = 3; this.d = 4; this.x = 5; } }
+            class D { y { return "getter"; } }
+            fun getX(o) { return o.x; }
+            fun getY(o) { return o.y; }
+            var total = 0;
+            for (var i = 0; i < 30; i = i + 1) {
+              var o;
+              if (i < 10) o = A(); else if (i < 20) o = B(); else o = C();
+              total = total + getX(o);
+            }
+            print total;
+            var a = A();
+            print getY(a);
+            a.z = 9;
+            print getY(a);
+            print getY(D());
+            fun add(p, q) { return p + q; }
+            print add(1, 2);
+            print add("a", 2);
+            print add(3, 4);
+            var text = false;
+            for (var m = 0; m < 8; m = m + 1) {
+              if (text) print add("m", m); else print add(m, m);
+              text = !text;
+            }
+            var s = "s";
+            for (var j = 0; j < 3; j = j + 1) s = s + 1;
+            print s;
+            var k = 0;
+            while (k <= 5) k = k + 2.5;
+            print k > 5 ? "big" : "small";
+            """;
+
+    static String run(String source, boolean useVm) {
+        return Output.of(() -> {
+            List<Stmt> statements = Output.parse(source);
+            if (useVm) {
+                new VM().interpret(new Compiler().compile(statements));
+            } else {
+                new Interpreter().interpret(statements);
+            }
+        });
+    }
+
+    @Test
+    public void testVmMatchesInterpreter() {
+        String expected = run(PROGRAM, false);
+        String actual = run(PROGRAM, true);
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testQuickenedInstructionsMatchInterpreter() {
+        assertEquals(run(QUICKENING, false), run(QUICKENING, true));
+    }
+}